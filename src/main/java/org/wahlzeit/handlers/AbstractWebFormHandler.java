@@ -26,6 +26,7 @@ import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.webparts.WebPart;
 
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -63,14 +64,14 @@ public abstract class AbstractWebFormHandler extends AbstractWebPartHandler impl
 	public final String handlePost(UserSession us, Map args) {
 		String emailAddress = us.getClient().getEmailAddress().asString();
 		if (!hasAccessRights(us, args)) {
-			log.warning(LogBuilder.createSystemMessage().
-					addParameter("insufficient rights for POST from", emailAddress).toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addParameter("insufficient rights for POST from", emailAddress).log();
 			return getIllegalAccessErrorPage(us);
 		}
 
 		if (!isWellFormedPost(us, args)) {
-			log.warning(LogBuilder.createSystemMessage().
-					addParameter("received ill-formed POST from", emailAddress).toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addParameter("received ill-formed POST from", emailAddress).log();
 			return getIllegalArgumentErrorPage(us);
 		}
 
@@ -78,7 +79,7 @@ public abstract class AbstractWebFormHandler extends AbstractWebPartHandler impl
 			// may throw Exception
 			return doHandlePost(us, args);
 		} catch (Throwable t) {
-			log.warning(LogBuilder.createSystemMessage().addException("Handle post failed", t).toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).addException("Handle post failed", t).log();
 			return getInternalProcessingErrorPage(us);
 		}
 	}
@@ -28,6 +28,7 @@ import org.wahlzeit.services.Language;
 import org.wahlzeit.services.SysConfig;
 import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.webparts.WebPart;
+import org.wahlzeit.webparts.WebPartFragmentCache;
 
 /**
  * A superclass for handling web pages.
@@ -83,6 +84,13 @@ public abstract class AbstractWebPageHandler extends AbstractWebPartHandler impl
 		page.addString("heading", heading);
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isCacheableForGuests() {
+		return false;
+	}
+
 	/**
 	 * @methodtype boolean-query
 	 */
@@ -108,7 +116,9 @@ public abstract class AbstractWebPageHandler extends AbstractWebPartHandler impl
 			menu = config.getGuestMenu();
 		}
 
-		page.addString("menu", menu.toString());
+		String name = "menu/" + config.getLanguageCode();
+		String rights = client.getAccessRights().asString();
+		page.addWritable("menu", WebPartFragmentCache.getInstance().getFragment(name, rights, menu));
 	}
 
 	/**
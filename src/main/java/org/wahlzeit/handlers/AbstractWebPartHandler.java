@@ -33,11 +33,15 @@ import org.wahlzeit.services.SysConfig;
 import org.wahlzeit.utils.HtmlUtil;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
+import org.wahlzeit.webparts.WebPartFragmentCache;
 import org.wahlzeit.webparts.WebPartTemplate;
 import org.wahlzeit.webparts.WebPartTemplateService;
+import org.wahlzeit.webparts.Writable;
 
 import java.io.File;
+import java.util.Collections;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -79,6 +83,33 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 		return new WebPart(tmpl);
 	}
 
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates a part whose output depends on nothing but the template, the language, and the access rights of the
+	 * client; it is rendered once and then taken from the WebPartFragmentCache.
+	 */
+	protected final Writable createStaticWebPart(UserSession us, String name) {
+		return createStaticWebPart(us, name, Collections.<String, String>emptyMap());
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates a part like createStaticWebPart(UserSession, String) that is filled with the given values, which are
+	 * part of the cache key.
+	 */
+	protected final Writable createStaticWebPart(UserSession us, String name, Map<String, String> values) {
+		WebPartTemplateService wpts = WebPartTemplateService.getInstance();
+		WebPartTemplate tmpl = wpts.getTemplate(us.getClient().getLanguageConfiguration().getLanguageCode(), name);
+		if (tmpl == null) {
+			return new WebPart(tmpl);
+		}
+
+		String rights = us.getClient().getAccessRights().asString();
+		return WebPartFragmentCache.getInstance().getFragment(tmpl, rights, values);
+	}
+
 	/**
 	 *
 	 */
@@ -160,14 +191,14 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 	 */
 	public final String handleGet(UserSession us, String link, Map args) {
 		if (!hasAccessRights(us, args)) {
-			log.warning(LogBuilder.createSystemMessage().
-					addMessage("insufficient rights for GET").toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addMessage("insufficient rights for GET").log();
 			return getIllegalAccessErrorPage(us);
 		}
 
 		if (!isWellFormedGet(us, link, args)) {
-			log.warning(LogBuilder.createSystemMessage().
-					addMessage("received ill-formed GET").toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addMessage("received ill-formed GET").log();
 			return getIllegalArgumentErrorPage(us);
 		}
 
@@ -175,7 +206,7 @@ public abstract class AbstractWebPartHandler implements WebPartHandler {
 			// may throw Exception
 			return doHandleGet(us, link, args);
 		} catch (Throwable t) {
-			log.warning(LogBuilder.createSystemMessage().addException("Handle get failed", t).toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).addException("Handle get failed", t).log();
 			return getInternalProcessingErrorPage(us);
 		}
 	}
@@ -31,6 +31,7 @@ import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -88,7 +89,7 @@ public class PraisePhotoFormHandler extends AbstractWebFormHandler {
 			}
 		}
 
-		log.info(LogBuilder.createUserMessage().addAction(wasPraised ? "PraisePhoto" : "SkipPhoto").toString());
+		LogBuilder.createUserMessage(log, Level.INFO).addAction(wasPraised ? "PraisePhoto" : "SkipPhoto").log();
 
 		return PartUtil.SHOW_PHOTO_PAGE_NAME;
 	}
@@ -43,11 +43,19 @@ public class ShowInfoPageHandler extends AbstractWebPageHandler {
 		infoTmplName = myInfoTmplName;
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 */
+	@Override
+	public boolean isCacheableForGuests() {
+		return AccessRights.hasRights(AccessRights.GUEST, getNeededRights());
+	}
+
 	/**
 	 *
 	 */
 	protected void makeWebPageBody(UserSession us, WebPart page) {
-		page.addWritable("info", createWebPart(us, infoTmplName));
+		page.addWritable("info", createStaticWebPart(us, infoTmplName));
 	}
 
 }
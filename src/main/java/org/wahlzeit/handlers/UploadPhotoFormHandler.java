@@ -36,6 +36,7 @@ import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -49,6 +50,11 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 	public static final String CAR_MODEL = "carModel";
 	public static final String CAR_YEAR = "carYear";
 
+	/**
+	 * Key of the uploaded image in the request arguments
+	 */
+	public static final String UPLOADED_IMAGE = "uploadedImage";
+
 	/**
 	 *
 	 */
@@ -82,7 +88,11 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 			PhotoManager pm = PhotoManager.getInstance();
 			String fileName = us.getAsString(args, "fileName");
 			User user = (User) us.getClient();
-			Image uploadedImage = user.getUploadedImage();
+			Image uploadedImage = (Image) args.get(UPLOADED_IMAGE);
+			if (uploadedImage == null) {
+				us.setMessage(config.getPhotoUploadFailed());
+				return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
+			}
 			
 			Photo photo = null;
 			
@@ -105,25 +115,25 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 
 			photo.setTags(new Tags(tags));
 
-			log.config(LogBuilder.createUserMessage().
+			LogBuilder.createUserMessage(log, Level.CONFIG).
 					addAction("Upload Photo").
 					addParameter("Photo", photo.getId().asString()).
-					addParameter("tags", photo.getTags().asString()).toString());
+					addParameter("tags", photo.getTags().asString()).log();
 
 			us.setTwoLineMessage(config.getPhotoUploadSucceeded(), config.getKeepGoing());
-			log.config(LogBuilder.createSystemMessage().
+			LogBuilder.createSystemMessage(log, Level.CONFIG).
 					addAction("Calling async task to save Photo").
-					addParameter("ID", photo.getId().asString()).toString());
+					addParameter("ID", photo.getId().asString()).log();
 
 			AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
 		}  
 		catch(CarPhotoCreationException ex) {
 			// Handle this particular exception case by giving a more specific error message
-			log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed due to malformed input parameter(s)", ex).toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).addException("uploading photo failed due to malformed input parameter(s)", ex).log();
 			us.setMessage(config.getPhotoUploadFailed() + "(Photo object could not be create due to malformed input parameters make, model or year)");
 		} 
 		catch (Exception ex) {
-			log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed", ex).toString());
+			LogBuilder.createSystemMessage(log, Level.WARNING).addException("uploading photo failed", ex).log();
 			us.setMessage(config.getPhotoUploadFailed());
 		}
 
@@ -34,5 +34,10 @@ public interface WebPageHandler extends WebPartHandler {
 	 */
 	WebPart makeWebPart(UserSession us);
 
+	/**
+	 * Returns true if the page looks the same for all new guests with the same language, so that it may be served
+	 * from a cache without looking at the session.
+	 */
+	boolean isCacheableForGuests();
 
 }
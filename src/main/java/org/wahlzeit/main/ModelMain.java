@@ -28,13 +28,19 @@ import java.util.logging.Logger;
 import org.wahlzeit.model.CarPhotoFactory;
 import org.wahlzeit.model.CarPhotoManager;
 import org.wahlzeit.model.GlobalsManager;
+import org.wahlzeit.model.ImageResizer;
+import org.wahlzeit.model.ImagesServiceResizer;
+import org.wahlzeit.model.JavaImageResizer;
 import org.wahlzeit.model.PhotoCaseManager;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.FileSystemAdapter;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.WriteBehindBuffer;
 
 /**
  * A single-threaded Main class with database connection. Can be used by tools that don't want to start a server.
@@ -43,6 +49,18 @@ public abstract class ModelMain extends AbstractMain {
 
 	private static final Logger log = Logger.getLogger(ModelMain.class.getName());
 
+	/**
+	 * System property to select the ImageStorage, e.g. -Dwahlzeit.imageStorage=filesystem
+	 */
+	public static final String IMAGE_STORAGE_PROPERTY = "wahlzeit.imageStorage";
+	public static final String FILE_SYSTEM_IMAGE_STORAGE = "filesystem";
+
+	/**
+	 * System property to select the ImageResizer, e.g. -Dwahlzeit.imageResizer=java
+	 */
+	public static final String IMAGE_RESIZER_PROPERTY = "wahlzeit.imageResizer";
+	public static final String JAVA_IMAGE_RESIZER = "java";
+
 	/**
 	 *
 	 */
@@ -52,7 +70,11 @@ public abstract class ModelMain extends AbstractMain {
 
 		log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
 		//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
-		ImageStorage.setInstance(new DatastoreAdapter());
+		ImageStorage.setInstance(createImageStorage());
+		ImageResizer.setInstance(createImageResizer());
+
+		log.config(LogBuilder.createSystemMessage().addAction("configure write-behind").toString());
+		ObjectManager.setWriteBehindBuffer(WriteBehindBuffer.createFromSystemProperties());
 
 		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
 		GlobalsManager.getInstance().loadGlobals();
@@ -68,6 +90,30 @@ public abstract class ModelMain extends AbstractMain {
 	}
 
 
+	/**
+	 * @methodtype factory
+	 *
+	 * Images are kept in the Datastore unless the system property selects the local file system.
+	 */
+	protected ImageStorage createImageStorage() {
+		if (FILE_SYSTEM_IMAGE_STORAGE.equals(System.getProperty(IMAGE_STORAGE_PROPERTY))) {
+			return new FileSystemAdapter();
+		}
+		return new DatastoreAdapter();
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Images are scaled by the App Engine Images service unless the system property selects plain Java.
+	 */
+	protected ImageResizer<?> createImageResizer() {
+		if (JAVA_IMAGE_RESIZER.equals(System.getProperty(IMAGE_RESIZER_PROPERTY))) {
+			return new JavaImageResizer();
+		}
+		return new ImagesServiceResizer();
+	}
+
 	/**
 	 *
 	 */
@@ -85,6 +131,7 @@ public abstract class ModelMain extends AbstractMain {
 		PhotoManager.getInstance().savePhotos();
 		UserManager.getInstance().saveClients();
 		GlobalsManager.getInstance().saveGlobals();
+		ObjectManager.flushWrites();
 	}
 
 	/**
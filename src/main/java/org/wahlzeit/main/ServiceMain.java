@@ -29,8 +29,12 @@ import org.wahlzeit.services.ConfigDir;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SysConfig;
+import org.wahlzeit.servlets.PageCache;
+import org.wahlzeit.webparts.WebPartFragmentCache;
 import org.wahlzeit.webparts.WebPartTemplateService;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -111,7 +115,19 @@ public class ServiceMain extends ModelMain {
 	 */
 	public void configureWebPartTemplateService() {
 		ConfigDir templatesDir = SysConfig.getTemplatesDir();
-		WebPartTemplateService.getInstance().setTemplatesDir(templatesDir);
+		templatesDir.invalidate();
+		WebPartTemplateService templateService = WebPartTemplateService.getInstance();
+		templateService.setTemplatesDir(templatesDir);
+
+		List<String> langs = new ArrayList<String>();
+		for (Language language : Language.values()) {
+			langs.add(language.asIsoCode());
+		}
+		templateService.preloadTemplates(langs);
+		templateService.startWatchingIfRequested();
+
+		WebPartFragmentCache.getInstance().clear();
+		PageCache.getInstance().clear();
 	}
 
 	/**
@@ -211,6 +227,8 @@ public class ServiceMain extends ModelMain {
 	public void configureLanguageModels() {
 		LanguageConfigs.put(Language.ENGLISH, new EnglishModelConfig());
 		LanguageConfigs.put(Language.GERMAN, new GermanModelConfig());
+		WebPartFragmentCache.getInstance().clear(); // menus
+		PageCache.getInstance().clear();
 	}
 
 	/**
@@ -0,0 +1,310 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An ImageCache keeps the bytes of recently requested images outside of the Java heap, in direct ByteBuffers, so that
+ * photos do not need to hold on to their images. It is the hot tier in front of the ImageStorage.
+ *
+ * The byte budget of the cache is split among the photo sizes, each of which is a least recently used segment of its
+ * own. Small sizes get a larger share and are admitted on first request; large sizes get a smaller share and are only
+ * admitted when requested again soon, so a burst of full size views does not push out the thumbnails.
+ */
+public class ImageCache {
+
+	/**
+	 * System property to set the byte budget, e.g. in appengine-web.xml
+	 */
+	public static final String MAX_BYTES_PROPERTY = "wahlzeit.imageCache.maxBytes";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Share of the byte budget per photo size in percent, indexed by PhotoSize.asInt()
+	 */
+	protected static final int[] SHARES = { 40, 15, 15, 15, 10, 5 };
+
+	/**
+	 * Number of requests before an image is admitted, indexed by PhotoSize.asInt()
+	 */
+	protected static final int[] MIN_NO_REQUESTS = { 1, 1, 1, 2, 2, 2 };
+
+	/**
+	 * Number of rejected images per size that are remembered to count their requests
+	 */
+	protected static final int MAX_NO_CANDIDATES = 1024;
+
+	/**
+	 *
+	 */
+	protected final long maxBytes;
+	protected final Segment[] segments = new Segment[PhotoSize.values().length];
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noHits = new AtomicLong();
+	protected final AtomicLong noMisses = new AtomicLong();
+	protected final AtomicLong noEvictions = new AtomicLong();
+	protected final AtomicLong noRejections = new AtomicLong();
+
+	/**
+	 *
+	 */
+	public ImageCache() {
+		this(DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 *
+	 */
+	public ImageCache(long myMaxBytes) {
+		if (myMaxBytes < 0) {
+			throw new IllegalArgumentException("maxBytes should not be negative");
+		}
+
+		maxBytes = myMaxBytes;
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			int index = photoSize.asInt();
+			segments[index] = new Segment(maxBytes * SHARES[index] / 100, MIN_NO_REQUESTS[index]);
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static ImageCache createFromSystemProperties() {
+		return new ImageCache(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes(PhotoSize photoSize) {
+		return segments[photoSize.asInt()].maxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a read-only view of the image bytes, or null if the image is not cached.
+	 */
+	public ByteBuffer get(PhotoId photoId, PhotoSize photoSize) {
+		ByteBuffer result = segments[photoSize.asInt()].get(photoId);
+		if (result == null) {
+			noMisses.incrementAndGet();
+			return null;
+		}
+
+		noHits.incrementAndGet();
+		return result.asReadOnlyBuffer();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Offers the image bytes to the cache; returns true if they have been admitted.
+	 */
+	public boolean put(PhotoId photoId, PhotoSize photoSize, byte[] imageData) {
+		Segment segment = segments[photoSize.asInt()];
+		if (!segment.isAdmitted(photoId, imageData.length)) {
+			noRejections.incrementAndGet();
+			return false;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(imageData.length);
+		buffer.put(imageData);
+		((Buffer) buffer).flip(); // Buffer.flip(), as ByteBuffer.flip() does not exist before Java 9
+		noEvictions.addAndGet(segment.put(photoId, buffer));
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes all sizes of the image, e.g. because the photo has been replaced.
+	 */
+	public void remove(PhotoId photoId) {
+		for (Segment segment : segments) {
+			segment.remove(photoId);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		for (Segment segment : segments) {
+			segment.clear();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoBytes() {
+		long result = 0;
+		for (Segment segment : segments) {
+			result += segment.getNoBytes();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoEvictions() {
+		return noEvictions.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoRejections() {
+		return noRejections.get();
+	}
+
+	/**
+	 * The cached images of one photo size, least recently used first.
+	 */
+	protected static class Segment {
+
+		protected final long maxBytes;
+		protected final int minNoRequests;
+		protected long noBytes = 0;
+
+		protected final LinkedHashMap<PhotoId, ByteBuffer> buffers =
+				new LinkedHashMap<PhotoId, ByteBuffer>(16, 0.75f, true);
+
+		/**
+		 * Requests of images that have not been admitted yet, oldest first
+		 */
+		protected final LinkedHashMap<PhotoId, Integer> candidates = new LinkedHashMap<PhotoId, Integer>() {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<PhotoId, Integer> eldest) {
+				return size() > MAX_NO_CANDIDATES;
+			}
+		};
+
+		protected Segment(long myMaxBytes, int myMinNoRequests) {
+			maxBytes = myMaxBytes;
+			minNoRequests = myMinNoRequests;
+		}
+
+		protected synchronized ByteBuffer get(PhotoId photoId) {
+			return buffers.get(photoId);
+		}
+
+		/**
+		 * Counts the request and decides whether the image may enter the segment.
+		 */
+		protected synchronized boolean isAdmitted(PhotoId photoId, int noImageBytes) {
+			if (noImageBytes > maxBytes / 4) {
+				return false; // would displace too many others
+			}
+
+			if (minNoRequests <= 1) {
+				return true;
+			}
+
+			Integer noRequests = candidates.remove(photoId);
+			int newNoRequests = (noRequests == null) ? 1 : noRequests + 1;
+			if (newNoRequests >= minNoRequests) {
+				return true;
+			}
+
+			candidates.put(photoId, newNoRequests);
+			return false;
+		}
+
+		/**
+		 * Returns the number of evicted images.
+		 */
+		protected synchronized int put(PhotoId photoId, ByteBuffer buffer) {
+			ByteBuffer previous = buffers.put(photoId, buffer);
+			if (previous != null) {
+				noBytes -= previous.capacity();
+			}
+			noBytes += buffer.capacity();
+
+			int result = 0;
+			for (Iterator<ByteBuffer> i = buffers.values().iterator(); (noBytes > maxBytes) && i.hasNext(); ) {
+				ByteBuffer eldest = i.next();
+				if (eldest != buffer) {
+					noBytes -= eldest.capacity();
+					i.remove();
+					result++;
+				}
+			}
+			return result;
+		}
+
+		protected synchronized void remove(PhotoId photoId) {
+			ByteBuffer buffer = buffers.remove(photoId);
+			if (buffer != null) {
+				noBytes -= buffer.capacity();
+			}
+			candidates.remove(photoId);
+		}
+
+		protected synchronized void clear() {
+			buffers.clear();
+			candidates.clear();
+			noBytes = 0;
+		}
+
+		protected synchronized long getNoBytes() {
+			return noBytes;
+		}
+	}
+
+}
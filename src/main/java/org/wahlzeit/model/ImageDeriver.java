@@ -0,0 +1,291 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.images.Image;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An ImageDeriver creates the images of a photo in the different photo sizes from the uploaded image. The source is
+ * decoded once; each size is then scaled from the smallest larger size that is at least twice as wide, or from the
+ * source, rather than from the source each time. This results in independent chains of sizes (e.g. extra large,
+ * medium, extra small, thumb and large, small), which are scaled in parallel by a bounded number of worker threads.
+ */
+public class ImageDeriver {
+
+	private static final Logger log = Logger.getLogger(ImageDeriver.class.getName());
+
+	/**
+	 * System property to limit the number of worker threads of all concurrent uploads, e.g. in appengine-web.xml
+	 */
+	public static final String MAX_WORKERS_PROPERTY = "wahlzeit.imageDeriver.maxWorkers";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_MAX_WORKERS = Math.min(Runtime.getRuntime().availableProcessors(), 4);
+
+	/**
+	 *
+	 */
+	protected static ImageDeriver instance =
+			new ImageDeriver(Integer.getInteger(MAX_WORKERS_PROPERTY, DEFAULT_MAX_WORKERS));
+
+	/**
+	 * Chains that get no worker are scaled by the calling thread
+	 */
+	protected final Semaphore workers;
+
+	/**
+	 *
+	 */
+	public ImageDeriver(int maxWorkers) {
+		workers = new Semaphore(Math.max(maxWorkers, 0));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static ImageDeriver getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setInstance(ImageDeriver newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns the images of the source in the given sizes.
+	 */
+	public Map<PhotoSize, Image> deriveImages(Image source, Collection<PhotoSize> sizes) throws IOException {
+		return doDeriveImages(ImageResizer.getInstance(), source, sizes);
+	}
+
+	/**
+	 * @methodtype factory
+	 * @methodproperty primitive
+	 */
+	protected <T> Map<PhotoSize, Image> doDeriveImages(ImageResizer<T> resizer, Image source,
+			Collection<PhotoSize> sizes) throws IOException {
+		Map<PhotoSize, Image> result = new ConcurrentHashMap<PhotoSize, Image>();
+		if (sizes.isEmpty()) {
+			return result;
+		}
+
+		T decodedSource = resizer.decode(source);
+		List<List<PhotoSize>> chains = getChains(sizes);
+
+		List<FutureTask<Void>> tasks = new ArrayList<FutureTask<Void>>(chains.size());
+		for (List<PhotoSize> chain : chains) {
+			tasks.add(new FutureTask<Void>(createChainTask(resizer, source, decodedSource, chain, result)));
+		}
+
+		// the first chain is the longest one, the calling thread scales it while the workers scale the others
+		List<FutureTask<Void>> inlineTasks = new ArrayList<FutureTask<Void>>();
+		inlineTasks.add(tasks.get(0));
+		for (FutureTask<Void> task : tasks.subList(1, tasks.size())) {
+			if (!startWorker(task)) {
+				inlineTasks.add(task);
+			}
+		}
+
+		for (FutureTask<Void> task : inlineTasks) {
+			task.run();
+		}
+
+		for (FutureTask<Void> task : tasks) {
+			awaitTask(task);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Groups the sizes into chains, each of which starts at the source and continues with sizes scaled from the
+	 * previous one. The longest chain comes first.
+	 */
+	protected List<List<PhotoSize>> getChains(Collection<PhotoSize> sizes) {
+		List<List<PhotoSize>> result = new ArrayList<List<PhotoSize>>();
+		Map<PhotoSize, List<PhotoSize>> chainsBySize = new EnumMap<PhotoSize, List<PhotoSize>>(PhotoSize.class);
+
+		PhotoSize[] allSizes = PhotoSize.values();
+		for (int i = allSizes.length - 1; i >= 0; i--) {
+			PhotoSize size = allSizes[i];
+			if (!sizes.contains(size)) {
+				continue;
+			}
+
+			PhotoSize parent = getParentSize(size, chainsBySize.keySet());
+			List<PhotoSize> chain = (parent != null) ? chainsBySize.get(parent) : null;
+			if ((chain == null) || (chain.get(chain.size() - 1) != parent)) {
+				// no parent or the parent has been scaled further already, so scale from the source
+				chain = new ArrayList<PhotoSize>();
+				result.add(chain);
+			}
+			chain.add(size);
+			chainsBySize.put(size, chain);
+		}
+
+		Collections.sort(result, new Comparator<List<PhotoSize>>() {
+			@Override
+			public int compare(List<PhotoSize> a, List<PhotoSize> b) {
+				return Integer.compare(b.size(), a.size());
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the smallest of the given larger sizes that is at least twice as wide as the size, or null if the size
+	 * is to be scaled from the source. Scaling by a factor of two or more keeps the quality of each step acceptable.
+	 */
+	protected PhotoSize getParentSize(PhotoSize size, Collection<PhotoSize> largerSizes) {
+		PhotoSize result = null;
+		for (PhotoSize largerSize : largerSizes) {
+			if (largerSize.getMaxPhotoWidth() >= 2 * size.getMaxPhotoWidth()) {
+				if ((result == null) || largerSize.isSmaller(result)) {
+					result = largerSize;
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected <T> Callable<Void> createChainTask(final ImageResizer<T> resizer, final Image source,
+			final T decodedSource, final List<PhotoSize> chain, final Map<PhotoSize, Image> result) {
+		return new Callable<Void>() {
+			@Override
+			public Void call() throws IOException {
+				int sourceWidth = source.getWidth();
+				int sourceHeight = source.getHeight();
+
+				T image = decodedSource;
+				for (PhotoSize size : chain) {
+					int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
+					int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
+					image = resizer.resize(image, targetWidth, targetHeight);
+					result.put(size, resizer.encode(image, source));
+
+					LogBuilder.createSystemMessage(log, Level.CONFIG).
+							addParameter("Scaled image to size", size.asString()).log();
+				}
+				return null;
+			}
+		};
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Runs the task in a worker thread if the limit of workers has not been reached; returns false otherwise.
+	 */
+	protected boolean startWorker(final FutureTask<Void> task) {
+		if (!workers.tryAcquire()) {
+			return false;
+		}
+
+		try {
+			Thread worker = getThreadFactory().newThread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						workers.release();
+					}
+				}
+			});
+			worker.start();
+			return true;
+		} catch (RuntimeException ex) {
+			workers.release();
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addException("Could not start worker thread, scaling in request thread", ex).log();
+			return false;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * App Engine only allows threads that are bound to the current request; outside of App Engine, e.g. in tests,
+	 * plain threads are used.
+	 */
+	protected ThreadFactory getThreadFactory() {
+		try {
+			return ThreadManager.currentRequestThreadFactory();
+		} catch (RuntimeException ex) {
+			return Executors.defaultThreadFactory();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void awaitTask(FutureTask<Void> task) throws IOException {
+		try {
+			task.get();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted while scaling images", ex);
+		} catch (ExecutionException ex) {
+			Throwable cause = ex.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException("could not scale image", cause);
+		}
+	}
+
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * An ImageResizer scales images, see ImageDeriver. The source image is decoded once into the representation T of the
+ * backend; all sizes are then scaled from decoded images and only encoded at the end.
+ */
+public abstract class ImageResizer<T> {
+
+	private static final Logger log = Logger.getLogger(ImageResizer.class.getName());
+
+	/**
+	 * Scales with the App Engine Images service unless set otherwise
+	 */
+	protected static ImageResizer<?> instance = new ImagesServiceResizer();
+
+	/**
+	 * @methodtype get
+	 */
+	public static ImageResizer<?> getInstance() {
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static void setInstance(ImageResizer<?> newInstance) {
+		log.config(LogBuilder.createSystemMessage().
+				addAction("set ImageResizer instance").
+				addParameter("instance", newInstance).toString());
+		instance = newInstance;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public abstract T decode(Image source) throws IOException;
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Returns a scaled copy of the image; the image itself is not changed, so it may be scaled concurrently.
+	 */
+	public abstract T resize(T image, int targetWidth, int targetHeight) throws IOException;
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Encodes the image in the format of the source, if possible.
+	 */
+	public abstract Image encode(T image, Image source) throws IOException;
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesService;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.api.images.Transform;
+
+/**
+ * An ImageResizer that uses the App Engine Images service. Images need not be decoded, the service does that.
+ */
+public class ImagesServiceResizer extends ImageResizer<Image> {
+
+	@Override
+	public Image decode(Image source) {
+		return source;
+	}
+
+	/**
+	 * The Images service transforms images in place, so it gets a copy.
+	 */
+	@Override
+	public Image resize(Image image, int targetWidth, int targetHeight) {
+		ImagesService imagesService = ImagesServiceFactory.getImagesService();
+		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
+		return imagesService.applyTransform(resize, ImagesServiceFactory.makeImage(image.getImageData()));
+	}
+
+	@Override
+	public Image encode(Image image, Image source) {
+		return image;
+	}
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * An ImageResizer in pure Java (javax.imageio and java.awt), so that images can be scaled without the App Engine
+ * Images service, e.g. for self-hosted deployments.
+ */
+public class JavaImageResizer extends ImageResizer<BufferedImage> {
+
+	@Override
+	public BufferedImage decode(Image source) throws IOException {
+		BufferedImage result = ImageIO.read(new ByteArrayInputStream(source.getImageData()));
+		if (result == null) {
+			throw new IOException("unsupported image format");
+		}
+		return result;
+	}
+
+	/**
+	 * Scales with bilinear interpolation, which is fine for the factors of at most two or so that ImageDeriver uses.
+	 */
+	@Override
+	public BufferedImage resize(BufferedImage image, int targetWidth, int targetHeight) {
+		int type = image.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+		BufferedImage result = new BufferedImage(targetWidth, targetHeight, type);
+		Graphics2D graphics = result.createGraphics();
+		try {
+			graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+			graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+			graphics.drawImage(image, 0, 0, targetWidth, targetHeight, null);
+		} finally {
+			graphics.dispose();
+		}
+		return result;
+	}
+
+	@Override
+	public Image encode(BufferedImage image, Image source) throws IOException {
+		String formatName = getFormatName(source);
+		if ("jpg".equals(formatName) && image.getColorModel().hasAlpha()) {
+			image = withoutAlpha(image); // JPEG has no alpha channel
+		}
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		if (!ImageIO.write(image, formatName, out)) {
+			throw new IOException("no writer for image format: " + formatName);
+		}
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected String getFormatName(Image source) {
+		Image.Format format = source.getFormat();
+		if (format == Image.Format.PNG) {
+			return "png";
+		} else if (format == Image.Format.GIF) {
+			return "gif";
+		} else {
+			return "jpg";
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected BufferedImage withoutAlpha(BufferedImage image) {
+		BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+		Graphics2D graphics = result.createGraphics();
+		try {
+			graphics.drawImage(image, 0, 0, null);
+		} finally {
+			graphics.dispose();
+		}
+		return result;
+	}
+
+}
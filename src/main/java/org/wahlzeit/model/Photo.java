@@ -27,6 +27,7 @@ import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Parent;
+import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.DataObject;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
@@ -59,6 +60,13 @@ public class Photo extends DataObject {
 	public static final String IS_INVISIBLE = "isInvisible";
 	public static final String UPLOADED_ON = "uploadedOn";
 
+	/**
+	 * Field masks of fields with dependents, see DataObject.incWriteCount(long)
+	 */
+	public static final long TAGS_FIELD = 1 << 1;
+	public static final long IMAGES_FIELD = 1 << 2;
+	public static final long OWNER_FIELD = 1 << 3;
+
 	/**
 	 *
 	 */
@@ -77,10 +85,26 @@ public class Photo extends DataObject {
 	/**
 	 * Each photo can be viewed in different sizes (XS, S, M, L, XL)
 	 * Images are pre-computed in these sizes to optimize bandwidth when requested.
+	 * Only images that have not been written to the ImageStorage yet are kept here, see ImageCache.
 	 */
 	@Ignore
 	transient protected Map<PhotoSize, Image> images = new ArrayMap<PhotoSize, Image>();
+
+	/**
+	 * The uploaded image, kept until it has been written to the ImageStorage; sizes that have not been created at
+	 * upload are created from it on demand
+	 */
+	@Ignore
+	transient protected Image originalImage = null;
 	
+	/**
+	 * Sizes of this photo that exist in the ImageStorage as bit set, see PhotoSize.asBit(). Photos that have been
+	 * saved before there was such a manifest start with UNKNOWN_STORED_SIZES.
+	 */
+	public static final int UNKNOWN_STORED_SIZES = -1;
+	public static final int ORIGINAL_IMAGE_BIT = 1 << ImageStorage.ORIGINAL_IMAGE_SIZE;
+	protected int storedSizes = UNKNOWN_STORED_SIZES;
+
 	/**
 	 *
 	 */
@@ -156,17 +180,112 @@ public class Photo extends DataObject {
 	/**
 	 * @methodtype get
 	 */
-	public Image getImage(PhotoSize photoSize) {
+	public synchronized Image getImage(PhotoSize photoSize) {
 		return images.get(photoSize);
 	}
 
 	/**
 	 * @methodtype set
+	 *
+	 * Only images of sizes that are not in the ImageStorage yet need to be written.
 	 */
-	public void setImage(PhotoSize photoSize, Image image) {
+	public synchronized void setImage(PhotoSize photoSize, Image image) {
 		this.images.put(photoSize, image);
+		if (!isStoredSize(photoSize)) {
+			incWriteCount(IMAGES_FIELD);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void removeImage(PhotoSize photoSize) {
+		images.remove(photoSize);
 	}
 	
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getStoredSizes() {
+		return storedSizes;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public synchronized void setStoredSizes(int newStoredSizes) {
+		storedSizes = newStoredSizes;
+		incWriteCount(PLAIN_FIELDS);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean hasKnownStoredSizes() {
+		return storedSizes != UNKNOWN_STORED_SIZES;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean isStoredSize(PhotoSize photoSize) {
+		return hasKnownStoredSizes() && (storedSizes & photoSize.asBit()) != 0;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void addStoredSize(PhotoSize photoSize) {
+		setStoredSizes((hasKnownStoredSizes() ? storedSizes : 0) | photoSize.asBit());
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized Image getOriginalImage() {
+		return originalImage;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public synchronized void setOriginalImage(Image image) {
+		originalImage = image;
+		if (!isOriginalImageStored()) {
+			incWriteCount(IMAGES_FIELD);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void removeOriginalImage() {
+		originalImage = null;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean isOriginalImageStored() {
+		return hasKnownStoredSizes() && (storedSizes & ORIGINAL_IMAGE_BIT) != 0;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if sizes that do not exist yet can be created from the original image.
+	 */
+	public synchronized boolean hasOriginalImage() {
+		return (originalImage != null) || isOriginalImageStored();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void addStoredOriginalImage() {
+		setStoredSizes((hasKnownStoredSizes() ? storedSizes : 0) | ORIGINAL_IMAGE_BIT);
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -208,7 +327,7 @@ public class Photo extends DataObject {
 	 */
 	public void setOwnerId(String newName) {
 		ownerId = newName;
-		incWriteCount();
+		incWriteCount(OWNER_FIELD | TAGS_FIELD); // the owner name is a tag, too
 	}
 
 	/**
@@ -238,7 +357,7 @@ public class Photo extends DataObject {
 	 */
 	public void setOwnerNotifyAboutPraise(boolean newNotifyAboutPraise) {
 		ownerNotifyAboutPraise = newNotifyAboutPraise;
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
 	}
 
 	/**
@@ -253,7 +372,7 @@ public class Photo extends DataObject {
 	 */
 	public void setOwnerLanguage(Language newLanguage) {
 		ownerLanguage = newLanguage;
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
 	}
 
 	/**
@@ -275,7 +394,7 @@ public class Photo extends DataObject {
 	 */
 	public void setOwnerEmailAddress(EmailAddress newEmailAddress) {
 		ownerEmailAddress = newEmailAddress;
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
 	}
 
 	/**
@@ -322,7 +441,7 @@ public class Photo extends DataObject {
 
 		maxPhotoSize = PhotoSize.getFromWidthHeight(width, height);
 
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
 	}
 
 	/**
@@ -361,7 +480,7 @@ public class Photo extends DataObject {
 	public void addToPraise(int value) {
 		praiseSum += value;
 		noVotes += 1;
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
 	}
 
 	/**
@@ -383,7 +502,9 @@ public class Photo extends DataObject {
 	 */
 	public void setStatus(PhotoStatus newStatus) {
 		status = newStatus;
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
+
+		PhotoManager.getInstance().updateDisplayablePhotoId(this);
 	}
 
 	/**
@@ -405,7 +526,7 @@ public class Photo extends DataObject {
 	 */
 	public void setTags(Tags newTags) {
 		tags = newTags;
-		incWriteCount();
+		incWriteCount(TAGS_FIELD);
 	}
 
 	/**
@@ -436,6 +557,6 @@ public class Photo extends DataObject {
 	 */
 	public void setNoNewPraise() {
 		noVotesAtLastNotification = noVotes;
-		incWriteCount();
+		incWriteCount(PLAIN_FIELDS);
 	}
 }
@@ -0,0 +1,393 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A PhotoCache is a bounded, thread-safe cache of photos. If it is full, it evicts photos that have been accessed
+ * least often recently, using a clock of access counters ("generalized clock"): each access increments the counter of a
+ * photo, each pass of the clock hand decrements it, and photos with a counter of zero are evicted. Photos with unsaved
+ * changes or new praise are never evicted, as they would be lost respectively never be notified about.
+ *
+ * The cache also remembers ids of photos that do not exist for a short time, so that requests for bogus ids do not
+ * reach the datastore each time.
+ */
+public class PhotoCache extends AbstractMap<PhotoId, Photo> {
+
+	/**
+	 * System properties to tune the cache, e.g. in appengine-web.xml
+	 */
+	public static final String MAX_SIZE_PROPERTY = "wahlzeit.photoCache.maxSize";
+	public static final String MISSING_PHOTO_TTL_PROPERTY = "wahlzeit.photoCache.missingPhotoTtl";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_MAX_SIZE = 10000;
+	public static final long DEFAULT_MISSING_PHOTO_TTL = 30 * 1000; // milliseconds
+
+	/**
+	 * Upper bound of the access counters, so that formerly popular photos do not stay forever
+	 */
+	protected static final int MAX_FREQUENCY = 15;
+
+	/**
+	 *
+	 */
+	protected final int maxSize;
+	protected final long missingPhotoTtl;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<PhotoId, CacheEntry> entries = new ConcurrentHashMap<PhotoId, CacheEntry>();
+
+	/**
+	 * All entries in insertion order; the head is the position of the clock hand
+	 */
+	protected final Queue<CacheEntry> clock = new ConcurrentLinkedQueue<CacheEntry>();
+
+	/**
+	 *
+	 */
+	protected final Object evictionLock = new Object();
+
+	/**
+	 * Ids of photos that do not exist, with the time when this information expires
+	 */
+	protected final ConcurrentMap<PhotoId, Long> missingPhotoIds = new ConcurrentHashMap<PhotoId, Long>();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noHits = new AtomicLong();
+	protected final AtomicLong noMisses = new AtomicLong();
+	protected final AtomicLong noMissingPhotoHits = new AtomicLong();
+	protected final AtomicLong noEvictions = new AtomicLong();
+
+	/**
+	 *
+	 */
+	public PhotoCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MISSING_PHOTO_TTL);
+	}
+
+	/**
+	 *
+	 */
+	public PhotoCache(int myMaxSize, long myMissingPhotoTtl) {
+		if (myMaxSize < 1) {
+			throw new IllegalArgumentException("maxSize should be at least 1");
+		}
+		if (myMissingPhotoTtl < 0) {
+			throw new IllegalArgumentException("missingPhotoTtl should not be negative");
+		}
+
+		maxSize = myMaxSize;
+		missingPhotoTtl = myMissingPhotoTtl;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static PhotoCache createFromSystemProperties() {
+		int size = Integer.getInteger(MAX_SIZE_PROPERTY, DEFAULT_MAX_SIZE);
+		long ttl = Long.getLong(MISSING_PHOTO_TTL_PROPERTY, DEFAULT_MISSING_PHOTO_TTL);
+		return new PhotoCache(size, ttl);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the cached photo and counts the access, or null if the photo is not cached.
+	 */
+	@Override
+	public Photo get(Object id) {
+		CacheEntry entry = entries.get(id);
+		if (entry == null) {
+			noMisses.incrementAndGet();
+			return null;
+		}
+
+		noHits.incrementAndGet();
+		entry.recordAccess();
+		return entry.photo;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	@Override
+	public boolean containsKey(Object id) {
+		return entries.containsKey(id);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public Photo put(PhotoId id, Photo photo) {
+		missingPhotoIds.remove(id);
+
+		CacheEntry newEntry = new CacheEntry(id, photo);
+		CacheEntry entry = entries.putIfAbsent(id, newEntry);
+		if (entry != null) {
+			Photo result = entry.photo;
+			entry.photo = photo;
+			return result;
+		}
+
+		clock.offer(newEntry);
+		if (entries.size() > maxSize) {
+			evict();
+		}
+		return null;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public Photo remove(Object id) {
+		CacheEntry entry = entries.remove(id);
+		if (entry == null) {
+			return null;
+		}
+
+		entry.isRemoved = true; // the clock drops it when it gets there
+		return entry.photo;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void clear() {
+		entries.clear();
+		clock.clear();
+		missingPhotoIds.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Iterating over the entries does not count as access.
+	 */
+	@Override
+	public Set<Entry<PhotoId, Photo>> entrySet() {
+		return new AbstractSet<Entry<PhotoId, Photo>>() {
+			@Override
+			public Iterator<Entry<PhotoId, Photo>> iterator() {
+				final Iterator<CacheEntry> iterator = entries.values().iterator();
+				return new Iterator<Entry<PhotoId, Photo>>() {
+					protected CacheEntry current = null;
+
+					@Override
+					public boolean hasNext() {
+						return iterator.hasNext();
+					}
+
+					@Override
+					public Entry<PhotoId, Photo> next() {
+						current = iterator.next();
+						return new SimpleImmutableEntry<PhotoId, Photo>(current.id, current.photo);
+					}
+
+					@Override
+					public void remove() {
+						PhotoCache.this.remove(current.id);
+					}
+				};
+			}
+
+			@Override
+			public int size() {
+				return entries.size();
+			}
+		};
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves the clock hand until the cache is within its bounds again or no photo can be evicted.
+	 */
+	protected void evict() {
+		synchronized (evictionLock) {
+			long noSteps = (long) entries.size() * (MAX_FREQUENCY + 1);
+			while ((entries.size() > maxSize) && (noSteps-- > 0)) {
+				CacheEntry entry = clock.poll();
+				if (entry == null) {
+					return;
+				}
+
+				if (entry.isRemoved) {
+					continue;
+				}
+
+				if ((entry.frequency > 0) || !isEvictable(entry.photo)) {
+					entry.frequency = Math.max(entry.frequency - 1, 0);
+					clock.offer(entry);
+				} else if (entries.remove(entry.id, entry)) {
+					noEvictions.incrementAndGet();
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 * @methodproperty hook
+	 */
+	protected boolean isEvictable(Photo photo) {
+		return !photo.isDirty() && !photo.hasNewPraise();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Remembers that the photo does not exist.
+	 */
+	public void putMissingPhotoId(PhotoId id) {
+		if (missingPhotoTtl == 0) {
+			return;
+		}
+
+		if (missingPhotoIds.size() >= maxSize) {
+			removeExpiredMissingPhotoIds();
+			if (missingPhotoIds.size() >= maxSize) {
+				missingPhotoIds.clear(); // flooded by bogus ids, start over
+			}
+		}
+		missingPhotoIds.put(id, System.currentTimeMillis() + missingPhotoTtl);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the photo was found not to exist recently.
+	 */
+	public boolean isMissingPhotoId(PhotoId id) {
+		Long expiryTime = missingPhotoIds.get(id);
+		if (expiryTime == null) {
+			return false;
+		}
+
+		if (expiryTime < System.currentTimeMillis()) {
+			missingPhotoIds.remove(id, expiryTime);
+			return false;
+		}
+
+		noMissingPhotoHits.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void removeExpiredMissingPhotoIds() {
+		long now = System.currentTimeMillis();
+		for (Iterator<Long> i = missingPhotoIds.values().iterator(); i.hasNext(); ) {
+			if (i.next() < now) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMissingPhotoHits() {
+		return noMissingPhotoHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoEvictions() {
+		return noEvictions.get();
+	}
+
+	/**
+	 * A cached photo with its access counter.
+	 */
+	protected static class CacheEntry {
+
+		protected final PhotoId id;
+		protected volatile Photo photo;
+		protected volatile int frequency = 1;
+		protected volatile boolean isRemoved = false;
+
+		protected CacheEntry(PhotoId myId, Photo myPhoto) {
+			id = myId;
+			photo = myPhoto;
+		}
+
+		/**
+		 * Lost updates under contention are fine, the counter is only a hint.
+		 */
+		protected void recordAccess() {
+			int value = frequency;
+			if (value < MAX_FREQUENCY) {
+				frequency = value + 1;
+			}
+		}
+	}
+
+}
@@ -21,14 +21,14 @@
 package org.wahlzeit.model;
 
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.utils.CompressedIntSet;
 import org.wahlzeit.utils.StringUtil;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -37,6 +37,8 @@ import java.util.logging.Logger;
  */
 public class PhotoFilter implements Serializable {
 
+	private static final long serialVersionUID = 1L;
+
 	private static Logger log = Logger.getLogger(PhotoFilter.class.getName());
 
 	/**
@@ -52,17 +54,46 @@ public class PhotoFilter implements Serializable {
 	protected Tags tags = Tags.EMPTY_TAGS;
 
 	/**
-	 *
+	 * Photo ids as ints, see PhotoId.asInt()
+	 */
+	protected CompressedIntSet displayablePhotoIds;
+	protected CompressedIntSet processedPhotoIds = new CompressedIntSet();
+	protected CompressedIntSet skippedPhotoIds = new CompressedIntSet();
+
+	/**
+	 * Number of photo ids that are drawn at once and kept for the next requests
+	 */
+	public static final int PREFETCH_SIZE = 8;
+
+	/**
+	 * Number of random draws per prefetch before falling back to computing the exact set of photos to show
+	 */
+	public static final int MAX_SAMPLING_ATTEMPTS = 4 * PREFETCH_SIZE;
+
+	/**
+	 * Displayable photos matching the filter conditions, as of the given PhotoManager version; sampled from instead of
+	 * computing the photos to show for each request
 	 */
-	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+	protected transient CompressedIntSet candidatePhotoIds = null;
+	protected transient long candidatePhotoIdsVersion = -1;
+
+	/**
+	 * Photo ids drawn in advance, used as a stack
+	 */
+	protected int[] prefetchedPhotoIds = new int[PREFETCH_SIZE];
+	protected int noPrefetchedPhotoIds = 0;
 
 	/**
 	 *
 	 */
 	protected Random randomNumber = new Random(System.currentTimeMillis());
 
+	/**
+	 * Whether filter conditions or photo ids have changed since the filter has been saved with its session; drawing
+	 * photos in advance does not count
+	 */
+	protected transient boolean isDirty = false;
+
 	/**
 	 *
 	 */
@@ -85,6 +116,8 @@ public class PhotoFilter implements Serializable {
 		setTags(Tags.EMPTY_TAGS);
 		displayablePhotoIds.clear();
 		processedPhotoIds.clear();
+		resetCandidatePhotoIds();
+		setDirty();
 	}
 
 	/**
@@ -141,46 +174,155 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void generateDisplayablePhotoIds() {
 		displayablePhotoIds = getFilteredPhotoIds();
+		setDirty();
 	}
 
 	/**
 	 * Get a random photo that has not been rated. If possible avoid skipped photos.
+	 *
+	 * All such photos are equally likely. Photos are drawn from the displayable photos that match the filter
+	 * conditions, a few at a time, so usually neither the set of photos to show is computed nor a photo is loaded.
 	 */
 	public PhotoId getRandomDisplayablePhotoId() {
-		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
-			return displayablePhotoIds.get(index);
-		} else {
-			return PhotoId.NULL_ID;
+		updateCandidatePhotoIds();
+
+		int photoId = pollPrefetchedPhotoId();
+		if (photoId < 0) {
+			prefetchPhotoIds();
+			photoId = pollPrefetchedPhotoId();
+		}
+
+		return (photoId >= 0) ? PhotoId.getIdFromInt(photoId) : PhotoId.NULL_ID;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Refreshes the candidates if photos have changed their status or tags since they were determined.
+	 */
+	protected void updateCandidatePhotoIds() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		long version = photoManager.getDisplayablePhotoIdsVersion();
+		if ((candidatePhotoIds == null) || (version != candidatePhotoIdsVersion)) {
+			candidatePhotoIds = photoManager.getDisplayablePhotoIds(getFilterConditions());
+			candidatePhotoIdsVersion = version;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void resetCandidatePhotoIds() {
+		candidatePhotoIds = null;
+		noPrefetchedPhotoIds = 0;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns the next prefetched photo id that may still be shown, or -1 if there is none.
+	 */
+	protected int pollPrefetchedPhotoId() {
+		while (noPrefetchedPhotoIds > 0) {
+			int photoId = prefetchedPhotoIds[--noPrefetchedPhotoIds];
+			if (!processedPhotoIds.contains(photoId) && PhotoManager.getInstance().isDisplayablePhotoId(photoId)) {
+				return photoId;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Draws uniformly from the candidates and rejects processed, skipped and already drawn photos. If (almost) all
+	 * candidates are rejected, draws from the exact set of photos to show instead.
+	 */
+	protected void prefetchPhotoIds() {
+		noPrefetchedPhotoIds = 0;
+
+		int noCandidates = candidatePhotoIds.cardinality();
+		for (int i = 0; (i < MAX_SAMPLING_ATTEMPTS) && (noPrefetchedPhotoIds < PREFETCH_SIZE) && (noCandidates > 0); i++) {
+			int photoId = candidatePhotoIds.select(randomNumber.nextInt(noCandidates));
+			if (!processedPhotoIds.contains(photoId) && !skippedPhotoIds.contains(photoId)) {
+				addPrefetchedPhotoId(photoId);
+			}
+		}
+
+		if (noPrefetchedPhotoIds == 0) {
+			generateDisplayablePhotoIds();
+			int noDisplayablePhotoIds = displayablePhotoIds.cardinality();
+			int noDraws = Math.min(PREFETCH_SIZE, noDisplayablePhotoIds);
+			for (int i = 0; (i < MAX_SAMPLING_ATTEMPTS) && (noPrefetchedPhotoIds < noDraws); i++) {
+				addPrefetchedPhotoId(displayablePhotoIds.select(randomNumber.nextInt(noDisplayablePhotoIds)));
+			}
 		}
+
+		loadPrefetchedPhotos();
 	}
 
 	/**
+	 * @methodtype command
+	 */
+	protected void addPrefetchedPhotoId(int photoId) {
+		for (int i = 0; i < noPrefetchedPhotoIds; i++) {
+			if (prefetchedPhotoIds[i] == photoId) {
+				return;
+			}
+		}
+		prefetchedPhotoIds[noPrefetchedPhotoIds++] = photoId;
+	}
+
+	/**
+	 * @methodtype command
 	 *
+	 * Loads the prefetched photos that are not cached yet in one batch.
 	 */
-	public List<PhotoId> getDisplayablePhotoIds() {
+	protected void loadPrefetchedPhotos() {
+		if (noPrefetchedPhotoIds > 1) {
+			List<PhotoId> photoIds = new ArrayList<PhotoId>(noPrefetchedPhotoIds);
+			for (int i = 0; i < noPrefetchedPhotoIds; i++) {
+				photoIds.add(PhotoId.getIdFromInt(prefetchedPhotoIds[i]));
+			}
+			PhotoManager.getInstance().getPhotos(photoIds);
+		}
+	}
+
+	/**
+	 *
+	 */
+	public CompressedIntSet getDisplayablePhotoIds() {
 		return displayablePhotoIds;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public int getNoDisplayablePhotoIds() {
+		return displayablePhotoIds.cardinality();
+	}
+
 	/**
 	 *
 	 */
-	public void setDisplayablePhotoIds(List<PhotoId> newPhotoIds) {
+	public void setDisplayablePhotoIds(CompressedIntSet newPhotoIds) {
 		displayablePhotoIds = newPhotoIds;
+		setDirty();
 	}
 
 	/**
 	 *
 	 */
 	public void resetDisplayablePhotoIds() {
-		displayablePhotoIds = new ArrayList<PhotoId>();
+		displayablePhotoIds = new CompressedIntSet();
+		resetCandidatePhotoIds();
+		setDirty();
 	}
 
 	/**
 	 *
 	 */
-	public List<PhotoId> getProcessedPhotoIds() {
+	public CompressedIntSet getProcessedPhotoIds() {
 		return processedPhotoIds;
 	}
 
@@ -188,91 +330,90 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
-		}
-		return processedPhotoIds.contains(photoId);
+		return processedPhotoIds.contains(photoId.asInt());
 	}
 
 	/**
 	 *
 	 */
 	public void addProcessedPhoto(Photo photo) {
-		PhotoId photoId = photo.getId();
+		int photoId = photo.getId().asInt();
 		processedPhotoIds.add(photoId);
 		skippedPhotoIds.remove(photoId);
 		if (displayablePhotoIds != null) {
 			displayablePhotoIds.remove(photoId);
 		}
+		setDirty();
 	}
 
 
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
+	public CompressedIntSet getSkippedPhotoIds() {
 		return skippedPhotoIds;
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
+	public void setSkippedPhotoIds(CompressedIntSet skippedPhotoIds) {
 		this.skippedPhotoIds = skippedPhotoIds;
+		setDirty();
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
+		if (skippedPhotoIds.add(skippedPhotoId.asInt())) {
+			setDirty();
 		}
 	}
 
 	/**
-	 *
+	 * @methodtype boolean-query
 	 */
-	protected List<PhotoId> getFilteredPhotoIds() {
-		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
-		int noFilterConditions = getFilterConditions().size();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
-
-		Collection<PhotoId> candidates;
-		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
-		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
-			}
-		}
+	public boolean isDirty() {
+		return isDirty;
+	}
 
-		int newPhotos = 0;
-		for (PhotoId candidateId : candidates) {
-			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
-				result.add(candidateId);
-				++newPhotos;
-			}
-		}
-		int skippedPhotos = skippedPhotoIds.size();
-		if (newPhotos == 0 && skippedPhotos > 0) {
-			result.addAll(skippedPhotoIds);
-			newPhotos = skippedPhotos;
+	/**
+	 * @methodtype set
+	 */
+	protected void setDirty() {
+		isDirty = true;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void resetDirty() {
+		isDirty = false;
+	}
+
+	/**
+	 * Returns the ids of all visible photos that match all filter conditions and have been neither processed nor
+	 * skipped. If only skipped photos are left, these are shown again.
+	 */
+	protected CompressedIntSet getFilteredPhotoIds() {
+		List<String> filterConditions = getFilterConditions();
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Number of filter conditions", filterConditions.size()).log();
+
+		CompressedIntSet candidates = PhotoManager.getInstance().getDisplayablePhotoIds(filterConditions);
+		candidates.andNot(processedPhotoIds);
+		CompressedIntSet result = new CompressedIntSet(candidates);
+		result.andNot(skippedPhotoIds);
+
+		if (result.isEmpty()) {
+			// show the skipped photos that match the filter once more
+			result = candidates;
+			result.and(skippedPhotoIds);
 		}
 
-		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", newPhotos)
-				.toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Number of photos to show", result.cardinality()).log();
 
 		return result;
 	}
@@ -21,23 +21,39 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
 import org.wahlzeit.model.persistence.ImageStorage;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.services.Persistent;
+import org.wahlzeit.utils.CompressedIntSet;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -53,20 +69,55 @@ public class PhotoManager extends ObjectManager {
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
 	/**
-	 * In-memory cache for photos
+	 * In-memory cache for photos; bounded, so not all photos need to be in it
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	protected PhotoCache photoCache = PhotoCache.createFromSystemProperties();
+
+	/**
+	 * Datastore keys of all known photos, so that photos missing in the cache can be loaded in one batch
+	 */
+	protected Map<PhotoId, Key<Photo>> photoKeys = new ConcurrentHashMap<PhotoId, Key<Photo>>();
+
+	/**
+	 * Image loads that are currently running, so that concurrent requests for the same image share one load
+	 */
+	protected ConcurrentMap<String, FutureTask<Image>> pendingImageLoads =
+			new ConcurrentHashMap<String, FutureTask<Image>>();
+
+	/**
+	 * Bytes of recently requested images, so that photos need not keep their images
+	 */
+	protected ImageCache imageCache = ImageCache.createFromSystemProperties();
+
+	/**
+	 * Photo loads that are currently running, so that concurrent requests for the same photo share one load
+	 */
+	protected ConcurrentMap<PhotoId, FutureTask<Photo>> pendingPhotoLoads =
+			new ConcurrentHashMap<PhotoId, FutureTask<Photo>>();
 
 	/**
 	 *
 	 */
 	protected PhotoTagCollector photoTagCollector = null;
 
+	/**
+	 * In-memory index of the tags of all photos, see PhotoFilter
+	 */
+	protected PhotoTagIndex photoTagIndex = null;
+
+	/**
+	 * Ids of all photos that can be displayed, see Photo.isVisible(); kept up to date by Photo.setStatus()
+	 */
+	protected CompressedIntSet displayablePhotoIds = new CompressedIntSet();
+	protected final ReadWriteLock displayablePhotoIdsLock = new ReentrantReadWriteLock();
+	protected volatile long displayablePhotoIdsVersion = 0;
+
 	/**
 	 *
 	 */
 	public PhotoManager() {
 		photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+		photoTagIndex = new PhotoTagIndex(photoTagCollector);
 	}
 
 	/**
@@ -107,10 +158,91 @@ public class PhotoManager extends ObjectManager {
 
 		Photo result = doGetPhotoFromId(id);
 
-		if (result == null) {
-			result = PhotoFactory.getInstance().loadPhoto(id);
-			if (result != null) {
-				doAddPhoto(result);
+		if ((result == null) && !photoCache.isMissingPhotoId(id)) {
+			result = loadPhoto(id);
+		}
+
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the photo missing in the cache; concurrent loads of the same photo are coalesced into one.
+	 */
+	protected Photo loadPhoto(final PhotoId id) {
+		FutureTask<Photo> newLoad = new FutureTask<Photo>(new Callable<Photo>() {
+			@Override
+			public Photo call() {
+				Photo result = doGetPhotoFromId(id);
+				return (result != null) ? result : getPhotos(Collections.singletonList(id)).get(id);
+			}
+		});
+
+		FutureTask<Photo> load = pendingPhotoLoads.putIfAbsent(id, newLoad);
+		if (load == null) {
+			load = newLoad;
+			try {
+				newLoad.run();
+			} finally {
+				pendingPhotoLoads.remove(id, newLoad);
+			}
+		}
+
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addParameter("photo ID", id.asString()).
+					addException("Could not load photo", e.getCause()).log();
+		}
+		return null;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the photos with the given ids; photos that are not in the cache are loaded in one batch. Ids of photos
+	 * that do not exist are not contained in the result.
+	 */
+	public Map<PhotoId, Photo> getPhotos(Collection<PhotoId> ids) {
+		Map<PhotoId, Photo> result = new LinkedHashMap<PhotoId, Photo>();
+		List<Key<Photo>> missingKeys = new ArrayList<Key<Photo>>();
+		List<PhotoId> unknownIds = new ArrayList<PhotoId>();
+
+		for (PhotoId id : ids) {
+			if (id == null || result.containsKey(id)) {
+				continue;
+			}
+
+			Photo photo = doGetPhotoFromId(id);
+			if (photo != null) {
+				result.put(id, photo);
+			} else if (photoKeys.containsKey(id)) {
+				missingKeys.add(photoKeys.get(id));
+			} else if (!photoCache.isMissingPhotoId(id)) {
+				unknownIds.add(id);
+			}
+		}
+
+		if (!missingKeys.isEmpty()) {
+			Map<Key<Photo>, Photo> loadedPhotos = new HashMap<Key<Photo>, Photo>();
+			readObjects(loadedPhotos, missingKeys);
+			for (Photo photo : loadedPhotos.values()) {
+				doAddPhoto(photo);
+				result.put(photo.getId(), photo);
+			}
+		}
+
+		for (PhotoId id : unknownIds) {
+			Photo photo = PhotoFactory.getInstance().loadPhoto(id);
+			if (photo != null) {
+				doAddPhoto(photo);
+				result.put(id, photo);
+			} else {
+				photoCache.putMissingPhotoId(id);
 			}
 		}
 
@@ -131,6 +263,20 @@ public class PhotoManager extends ObjectManager {
 	 */
 	protected void doAddPhoto(Photo myPhoto) {
 		photoCache.put(myPhoto.getId(), myPhoto);
+		doAddPhotoKey(myPhoto);
+		updateDisplayablePhotoId(myPhoto);
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperties primitive
+	 *
+	 * Remembers the datastore key of the photo; photos that have not been saved yet do not have a key.
+	 */
+	protected void doAddPhotoKey(Photo myPhoto) {
+		if (myPhoto.idLong != null) {
+			photoKeys.put(myPhoto.getId(), Key.create(myPhoto));
+		}
 	}
 
 	/**
@@ -150,7 +296,8 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Load all persisted photos. Executed when Wahlzeit is restarted.
+	 * Load all persisted photos. Executed when Wahlzeit is restarted. Only the photo data is loaded, the images are
+	 * loaded on demand, see getImage(Photo, PhotoSize).
 	 */
 	public void loadPhotos() {
 		Collection<Photo> existingPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
@@ -164,17 +311,18 @@ public class PhotoManager extends ObjectManager {
 
 		for (Photo photo : existingPhotos) {
 			if (!doHasPhoto(photo.getId())) {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Load Photo with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
+				LogBuilder.createSystemMessage(log, Level.CONFIG).
+						addParameter("Load Photo with ID", photo.getIdAsString()).log();
 				doAddPhoto(photo);
 			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+				LogBuilder.createSystemMessage(log, Level.CONFIG).
+						addParameter("Already loaded Photo", photo.getIdAsString()).log();
 			}
 		}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
+		photoTagIndex.rebuild(existingPhotos);
+
+		LogBuilder.createSystemMessage(log, Level.INFO).addMessage("All photos loaded.").log();
 	}
 
 	/**
@@ -185,37 +333,192 @@ public class PhotoManager extends ObjectManager {
 		return photoCache.containsKey(id);
 	}
 
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the image of the photo in the given size. Images are not loaded at startup but on the first request;
+	 * concurrent requests for the same image wait for one shared load. Returns null if the image does not exist.
+	 */
+	public Image getImage(Photo photo, PhotoSize photoSize) {
+		Image result = photo.getImage(photoSize);
+		if (result == null) {
+			ByteBuffer imageData = imageCache.get(photo.getId(), photoSize);
+			if (imageData != null) {
+				result = ImagesServiceFactory.makeImage(asByteArray(imageData));
+			} else {
+				result = loadImage(photo, photoSize);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the bytes of the image, or null if it does not exist. Cached images are not copied to the heap.
+	 */
+	public ByteBuffer getImageData(Photo photo, PhotoSize photoSize) {
+		Image image = photo.getImage(photoSize);
+		if (image == null) {
+			ByteBuffer result = imageCache.get(photo.getId(), photoSize);
+			if (result != null) {
+				return result;
+			}
+			image = loadImage(photo, photoSize);
+		}
+		return (image != null) ? ByteBuffer.wrap(image.getImageData()) : null;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected byte[] asByteArray(ByteBuffer buffer) {
+		byte[] result = new byte[buffer.remaining()];
+		buffer.duplicate().get(result);
+		return result;
+	}
+
 	/**
 	 * @methodtype command
+	 */
+	protected Image loadImage(final Photo photo, final PhotoSize photoSize) {
+		String loadKey = photo.getId().asString() + photoSize.asInt();
+		FutureTask<Image> newLoad = new FutureTask<Image>(new Callable<Image>() {
+			@Override
+			public Image call() {
+				return doLoadImage(photo, photoSize);
+			}
+		});
+
+		FutureTask<Image> load = pendingImageLoads.putIfAbsent(loadKey, newLoad);
+		if (load == null) {
+			load = newLoad;
+			try {
+				newLoad.run();
+			} finally {
+				pendingImageLoads.remove(loadKey, newLoad);
+			}
+		}
+
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photo.getIdAsString()).
+					addException("Could not load image", e.getCause()).log();
+		}
+		return null;
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
 	 *
-	 * Loads all scaled Images of this Photo from Google Cloud Storage
+	 * Loads the image from the ImageStorage and keeps it with the photo.
 	 */
-	protected void loadScaledImages(Photo photo) {
+	protected Image doLoadImage(Photo photo, PhotoSize photoSize) throws IllegalArgumentException {
+		Image result = photo.getImage(photoSize);
+		if (result != null) {
+			return result; // the image has not been written yet
+		}
+
+		ByteBuffer imageData = imageCache.get(photo.getId(), photoSize);
+		if (imageData != null) {
+			return ImagesServiceFactory.makeImage(asByteArray(imageData)); // a load that just finished got it already
+		}
+
+		if ((getStoredSizes(photo) & photoSize.asBit()) == 0) {
+			if (photo.hasOriginalImage() && photo.hasPhotoSize(photoSize)) {
+				return createImage(photo, photoSize);
+			}
+
+			LogBuilder.createSystemMessage(log, Level.CONFIG).
+					addParameter("Size does not exist", photoSize.asString()).log();
+			return null;
+		}
+
 		String photoIdAsString = photo.getId().asString();
-		ImageStorage imageStorage = ImageStorage.getInstance();
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("loading image").
+				addParameter("image size", photoSize.asString()).
+				addParameter("photo ID", photoIdAsString).log();
+
+		try {
+			Serializable rawImage = ImageStorage.getInstance().readImage(photoIdAsString, photoSize.asInt());
+			if (rawImage instanceof Image) {
+				result = (Image) rawImage;
+				imageCache.put(photo.getId(), photoSize, result.getImageData());
+			} else {
+				LogBuilder.createSystemMessage(log, Level.CONFIG).
+						addParameter("Size does not exist", photoSize.asString()).log();
+			}
+		} catch (IOException e) {
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photoIdAsString).
+					addException("Could not load image although it exists", e).log();
+		}
 
-		for (PhotoSize photoSize : PhotoSize.values()) {
-			log.config(LogBuilder.createSystemMessage().
-					addAction("loading image").
-					addParameter("image size", photoSize.asString()).
-					addParameter("photo ID", photoIdAsString).toString());
-			if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-				try {
-					Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-					if (rawImage != null && rawImage instanceof Image) {
-						photo.setImage(photoSize, (Image) rawImage);
-					}
-				} catch (IOException e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addParameter("size", photoSize.asString()).
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Creates an image size that has not been created at upload from the original image and writes it to the
+	 * ImageStorage. Concurrent requests for the size share one creation, see loadImage(Photo, PhotoSize).
+	 */
+	protected Image createImage(Photo photo, PhotoSize photoSize) {
+		String photoIdAsString = photo.getId().asString();
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("creating image from original").
+				addParameter("image size", photoSize.asString()).
+				addParameter("photo ID", photoIdAsString).log();
+
+		try {
+			Image originalImage = photo.getOriginalImage();
+			if (originalImage == null) {
+				Serializable rawImage = ImageStorage.getInstance().readOriginalImage(photoIdAsString);
+				if (!(rawImage instanceof Image)) {
+					LogBuilder.createSystemMessage(log, Level.WARNING).
 							addParameter("photo ID", photoIdAsString).
-							addException("Could not load image although it exists", e).toString());
+							addMessage("original image does not exist").log();
+					return null;
 				}
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Size does not exist", photoSize.asString()).toString());
+				originalImage = (Image) rawImage;
 			}
+
+			Set<PhotoSize> photoSizes = EnumSet.of(photoSize);
+			Image result = ImageDeriver.getInstance().deriveImages(originalImage, photoSizes).get(photoSize);
+			ImageStorage.getInstance().writeImage(result, photoIdAsString, photoSize.asInt());
+			photo.addStoredSize(photoSize);
+			savePhoto(photo);
+
+			imageCache.put(photo.getId(), photoSize, result.getImageData());
+			return result;
+		} catch (IOException e) {
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photoIdAsString).
+					addException("Could not create image", e).log();
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the sizes of the photo that exist in the ImageStorage, see Photo.getStoredSizes(). Photos without a
+	 * manifest get one with a single check of the ImageStorage.
+	 */
+	protected int getStoredSizes(Photo photo) {
+		if (!photo.hasKnownStoredSizes()) {
+			photo.setStoredSizes(ImageStorage.getInstance().getStoredSizes(photo.getIdAsString()));
 		}
+		return photo.getStoredSizes();
 	}
 
 	/**
@@ -225,15 +528,26 @@ public class PhotoManager extends ObjectManager {
 		updateObject(photo);
 	}
 
+	/**
+	 * Only updates the dependents of fields that have changed, e.g. a new praise does not touch images, tags, or owner.
+	 */
 	@Override
 	protected void updateDependents(Persistent obj) {
 		if (obj instanceof Photo) {
 			Photo photo = (Photo) obj;
-			saveScaledImages(photo);
-			updateTags(photo);
-			UserManager userManager = UserManager.getInstance();
-			Client owner = userManager.getClientById(photo.getOwnerId());
-			userManager.saveClient(owner);
+			doAddPhotoKey(photo);
+			if (photo.isDirty(Photo.IMAGES_FIELD) && saveScaledImages(photo)) {
+				// the photo has been written before its images, so write it again to persist its manifest
+				OfyService.ofy().save().entity(photo).now();
+			}
+			if (photo.isDirty(Photo.TAGS_FIELD)) {
+				updateTags(photo);
+			}
+			if (photo.isDirty(Photo.OWNER_FIELD)) {
+				UserManager userManager = UserManager.getInstance();
+				Client owner = userManager.getClientById(photo.getOwnerId());
+				userManager.saveClient(owner);
+			}
 		}
 	}
 
@@ -248,35 +562,50 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Persists all available sizes of the Photo. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
-	 * the Datastore, it is simply not persisted.
+	 * Persists all available sizes of the Photo that are not stored yet. If one size exceeds the limit of the
+	 * persistence layer, e.g. > 1MB for the Datastore, it is simply not persisted. Returns true if the manifest of
+	 * stored sizes of the photo has changed.
 	 */
-	protected void saveScaledImages(Photo photo) {
+	protected boolean saveScaledImages(Photo photo) {
 		String photoIdAsString = photo.getId().asString();
 		ImageStorage imageStorage = ImageStorage.getInstance();
-		PhotoSize photoSize;
-		int it = 0;
-		boolean moreSizesExist = true;
-		do{
-			photoSize = PhotoSize.values()[it];
-			it++;
+		boolean isManifestChanged = !photo.hasKnownStoredSizes();
+		int storedSizes = getStoredSizes(photo);
+		for (PhotoSize photoSize : PhotoSize.values()) {
 			Image image = photo.getImage(photoSize);
-			if (image != null) {
-				try {
-					if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-						imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
-					}
-				} catch (Exception e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addException("Problem when storing image", e).toString());
-					moreSizesExist = false;
+			if (image == null) {
+				continue; // created on first request from the original image
+			}
+
+			try {
+				if ((storedSizes & photoSize.asBit()) == 0) {
+					imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
+					photo.addStoredSize(photoSize);
+					isManifestChanged = true;
+					imageCache.put(photo.getId(), photoSize, image.getImageData());
 				}
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("No image for size", photoSize.asString()).toString());
-				moreSizesExist = false;
+				photo.removeImage(photoSize); // from now on, it is loaded on demand
+			} catch (Exception e) {
+				LogBuilder.createSystemMessage(log, Level.WARNING).
+						addException("Problem when storing image", e).log();
+				return isManifestChanged;
 			}
-		} while (it < PhotoSize.values().length && moreSizesExist);
+		}
+
+		Image originalImage = photo.getOriginalImage();
+		if ((originalImage != null) && !photo.isOriginalImageStored()) {
+			try {
+				imageStorage.writeOriginalImage(originalImage, photoIdAsString);
+				photo.addStoredOriginalImage();
+				isManifestChanged = true;
+				photo.removeOriginalImage();
+			} catch (Exception e) {
+				LogBuilder.createSystemMessage(log, Level.WARNING).
+						addException("Problem when storing original image", e).log();
+			}
+		}
+
+		return isManifestChanged;
 	}
 
 	/**
@@ -287,12 +616,13 @@ public class PhotoManager extends ObjectManager {
 		// delete all existing tags, for the case that some have been removed
 		deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
 
-		// add all current tags to the datastore
+		// add all current tags to the datastore and the index
 		Set<String> tags = new HashSet<String>();
 		photoTagCollector.collect(tags, photo);
+		photoTagIndex.update(photo);
 		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
 			Tag tag = new Tag(i.next(), photo.getId().asString());
-			log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
+			LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("Writing Tag", tag.asString()).log();
 			writeObject(tag);
 		}
 	}
@@ -307,7 +637,89 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype get
 	 */
-	public Map<PhotoId, Photo> getPhotoCache() {
+	public PhotoTagIndex getPhotoTagIndex() {
+		return photoTagIndex;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public ImageCache getImageCache() {
+		return imageCache;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the photo to or removes it from the displayable photos, depending on its status. Photos that are not
+	 * managed by this PhotoManager are never displayable.
+	 */
+	public void updateDisplayablePhotoId(Photo photo) {
+		PhotoId photoId = photo.getId();
+		boolean isDisplayable = photo.isVisible() && (doHasPhoto(photoId) || photoKeys.containsKey(photoId));
+
+		displayablePhotoIdsLock.writeLock().lock();
+		try {
+			boolean isChanged = isDisplayable ?
+					displayablePhotoIds.add(photoId.asInt()) : displayablePhotoIds.remove(photoId.asInt());
+			if (isChanged) {
+				displayablePhotoIdsVersion++;
+			}
+		} finally {
+			displayablePhotoIdsLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isDisplayablePhotoId(int photoId) {
+		displayablePhotoIdsLock.readLock().lock();
+		try {
+			return displayablePhotoIds.contains(photoId);
+		} finally {
+			displayablePhotoIdsLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the ids of all displayable photos that have all of the tags (or of all displayable photos if there are
+	 * no tags) as a set the caller may change.
+	 */
+	public CompressedIntSet getDisplayablePhotoIds(Collection<String> tags) {
+		CompressedIntSet result = tags.isEmpty() ? null : photoTagIndex.getPhotoIdsWithAllTags(tags);
+		if ((result != null) && result.isEmpty()) {
+			return result;
+		}
+
+		displayablePhotoIdsLock.readLock().lock();
+		try {
+			if (result == null) {
+				result = new CompressedIntSet(displayablePhotoIds);
+			} else {
+				result.and(displayablePhotoIds);
+			}
+		} finally {
+			displayablePhotoIdsLock.readLock().unlock();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Changes whenever the result of getDisplayablePhotoIds(tags) may have changed.
+	 */
+	public long getDisplayablePhotoIdsVersion() {
+		return displayablePhotoIdsVersion + photoTagIndex.getVersion();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoCache getPhotoCache() {
 		return photoCache;
 	}
 
@@ -329,7 +741,6 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public Photo getVisiblePhoto(PhotoFilter filter) {
-		filter.generateDisplayablePhotoIds();
 		return getPhotoFromId(filter.getRandomDisplayablePhotoId());
 	}
 
@@ -359,6 +770,9 @@ public class PhotoManager extends ObjectManager {
 	public void addPhoto(Photo photo) throws IOException {
 		PhotoId id = photo.getId();
 		assertIsNewPhoto(id);
+		if (!photo.hasKnownStoredSizes()) {
+			photo.setStoredSizes(0); // a new photo has no images in the storage yet
+		}
 		doAddPhoto(photo);
 
 		GlobalsManager.getInstance().saveGlobals();
@@ -123,6 +123,13 @@ public enum PhotoSize implements EnumValue {
 		return value;
 	}
 
+	/**
+	 * Returns the bit of this size in a set of sizes, e.g. Photo.getStoredSizes()
+	 */
+	public int asBit() {
+		return 1 << value;
+	}
+
 	/**
 	 *
 	 */
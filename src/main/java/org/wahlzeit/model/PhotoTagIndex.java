@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.CompressedIntSet;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A PhotoTagIndex maps the tags of the PhotoTagCollector, e.g. "tg:flower" or "un:tommy", to the ids of all photos
+ * with that tag. It lives in memory, covers all photos (not only the cached ones), and is kept up to date whenever the
+ * tags of a photo are written.
+ */
+public class PhotoTagIndex {
+
+	/**
+	 * Photo ids (as ints) per tag
+	 */
+	protected Map<String, CompressedIntSet> photoIdsByTag = new HashMap<String, CompressedIntSet>();
+
+	/**
+	 * Indexed tags per photo, to remove tags that a photo no longer has
+	 */
+	protected Map<PhotoId, Set<String>> tagsByPhotoId = new HashMap<PhotoId, Set<String>>();
+
+	/**
+	 *
+	 */
+	protected PhotoTagCollector photoTagCollector;
+
+	/**
+	 *
+	 */
+	protected final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/**
+	 * Incremented on each change, so that users can tell whether results they keep are outdated
+	 */
+	protected volatile long version = 0;
+
+	/**
+	 *
+	 */
+	public PhotoTagIndex(PhotoTagCollector myPhotoTagCollector) {
+		photoTagCollector = myPhotoTagCollector;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Indexes the current tags of the photo and drops the tags it no longer has.
+	 */
+	public void update(Photo photo) {
+		Set<String> newTags = new HashSet<String>();
+		photoTagCollector.collect(newTags, photo);
+
+		lock.writeLock().lock();
+		try {
+			doUpdate(photo.getId(), newTags);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void doUpdate(PhotoId photoId, Set<String> newTags) {
+		Set<String> oldTags = tagsByPhotoId.get(photoId);
+		if (newTags.equals(oldTags)) {
+			return;
+		}
+
+		if (oldTags != null) {
+			for (String tag : oldTags) {
+				if (!newTags.contains(tag)) {
+					removePhotoId(tag, photoId);
+				}
+			}
+		}
+
+		for (String tag : newTags) {
+			if ((oldTags == null) || !oldTags.contains(tag)) {
+				addPhotoId(tag, photoId);
+			}
+		}
+
+		if (newTags.isEmpty()) {
+			tagsByPhotoId.remove(photoId);
+		} else {
+			tagsByPhotoId.put(photoId, newTags);
+		}
+		version++;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void remove(PhotoId photoId) {
+		lock.writeLock().lock();
+		try {
+			doUpdate(photoId, new HashSet<String>());
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Replaces the index with one for the given photos, e.g. after all photos have been loaded at startup.
+	 */
+	public void rebuild(Collection<Photo> photos) {
+		lock.writeLock().lock();
+		try {
+			photoIdsByTag.clear();
+			tagsByPhotoId.clear();
+			version++;
+			for (Photo photo : photos) {
+				Set<String> tags = new HashSet<String>();
+				photoTagCollector.collect(tags, photo);
+				doUpdate(photo.getId(), tags);
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a copy of the ids of all photos with the tag, which the caller may change.
+	 */
+	public CompressedIntSet getPhotoIds(String tag) {
+		lock.readLock().lock();
+		try {
+			CompressedIntSet photoIds = photoIdsByTag.get(tag);
+			return (photoIds != null) ? new CompressedIntSet(photoIds) : new CompressedIntSet();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the ids of all photos that have all of the tags. Intersects the smallest sets first, so the intermediate
+	 * results stay small and an empty result is found early.
+	 */
+	public CompressedIntSet getPhotoIdsWithAllTags(Collection<String> tags) {
+		lock.readLock().lock();
+		try {
+			List<CompressedIntSet> photoIdSets = new ArrayList<CompressedIntSet>(tags.size());
+			for (String tag : tags) {
+				CompressedIntSet photoIds = photoIdsByTag.get(tag);
+				if (photoIds == null) {
+					return new CompressedIntSet();
+				}
+				photoIdSets.add(photoIds);
+			}
+
+			if (photoIdSets.isEmpty()) {
+				return new CompressedIntSet();
+			}
+
+			Collections.sort(photoIdSets, new Comparator<CompressedIntSet>() {
+				@Override
+				public int compare(CompressedIntSet a, CompressedIntSet b) {
+					return Integer.compare(a.cardinality(), b.cardinality());
+				}
+			});
+
+			CompressedIntSet result = new CompressedIntSet(photoIdSets.get(0));
+			for (int i = 1; (i < photoIdSets.size()) && !result.isEmpty(); i++) {
+				result.and(photoIdSets.get(i));
+			}
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoPhotoIds(String tag) {
+		lock.readLock().lock();
+		try {
+			CompressedIntSet photoIds = photoIdsByTag.get(tag);
+			return (photoIds != null) ? photoIds.cardinality() : 0;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void addPhotoId(String tag, PhotoId photoId) {
+		CompressedIntSet photoIds = photoIdsByTag.get(tag);
+		if (photoIds == null) {
+			photoIds = new CompressedIntSet();
+			photoIdsByTag.put(tag, photoIds);
+		}
+		photoIds.add(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void removePhotoId(String tag, PhotoId photoId) {
+		CompressedIntSet photoIds = photoIdsByTag.get(tag);
+		if (photoIds != null) {
+			photoIds.remove(photoId.asInt());
+			if (photoIds.isEmpty()) {
+				photoIdsByTag.remove(tag);
+			}
+		}
+	}
+
+}
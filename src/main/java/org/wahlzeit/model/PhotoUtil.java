@@ -21,12 +21,11 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.images.Image;
-import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.Transform;
-import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.CustomAssertionUtils;
 
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -84,7 +83,14 @@ public class PhotoUtil {
 	}
 
 	/**
-	 *
+	 * The size in which photos are shown unless the client chose another one, see Client.getPhotoSize()
+	 */
+	public static final PhotoSize DEFAULT_PHOTO_SIZE = PhotoSize.MEDIUM;
+
+	/**
+	 * Creates the thumbnail and the image in the default size, see ImageDeriver, and keeps the source as original
+	 * image. All other sizes are created from the original when they are requested for the first time, see
+	 * PhotoManager.getImage(Photo, PhotoSize).
 	 */
 	public static void createImageFiles(Image source, Photo photo) throws Exception {
 		assertIsValidImage(source);
@@ -93,11 +99,27 @@ public class PhotoUtil {
 		int sourceHeight = source.getHeight();
 		assertHasValidSize(sourceWidth, sourceHeight);
 
+		Map<PhotoSize, Image> images =
+				ImageDeriver.getInstance().deriveImages(source, getEagerSizes(sourceWidth, sourceHeight));
+		for (Map.Entry<PhotoSize, Image> entry : images.entrySet()) {
+			photo.setImage(entry.getKey(), entry.getValue());
+		}
+		photo.setOriginalImage(source);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the thumbnail size and the default size, or the largest size below it if the source is too small.
+	 */
+	protected static Set<PhotoSize> getEagerSizes(int sourceWidth, int sourceHeight) {
+		PhotoSize defaultSize = PhotoSize.THUMB;
 		for (PhotoSize size : PhotoSize.values()) {
-			if (!size.isWiderAndHigher(sourceWidth, sourceHeight)) {
-				scaleImage(ImagesServiceFactory.makeImage(source.getImageData()), size, photo);
+			if (!size.isWiderAndHigher(sourceWidth, sourceHeight) && !DEFAULT_PHOTO_SIZE.isSmaller(size)) {
+				defaultSize = size;
 			}
 		}
+		return EnumSet.of(PhotoSize.THUMB, defaultSize);
 	}
 
 	/**
@@ -118,24 +140,4 @@ public class PhotoUtil {
 		}
 	}
 
-	/**
-	 * @methodtype command Scale the source picture to the given size, store it in
-	 *             the datastore and reference it in the photo.
-	 */
-	protected static void scaleImage(Image source, PhotoSize size, Photo photo) throws Exception {
-		int sourceWidth = source.getWidth();
-		int sourceHeight = source.getHeight();
-
-		int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
-		int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
-
-		ImagesService imagesService = ImagesServiceFactory.getImagesService();
-		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
-		Image newImage = imagesService.applyTransform(resize, source);
-
-		photo.setImage(size, newImage);
-
-		log.config(LogBuilder.createSystemMessage().addParameter("Scaled image to size", size.asString()).toString());
-	}
-
 }
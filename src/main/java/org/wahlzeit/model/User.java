@@ -20,8 +20,6 @@
 
 package org.wahlzeit.model;
 
-import com.google.appengine.api.images.Image;
-import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Subclass;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
@@ -32,6 +30,7 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -73,8 +72,6 @@ public class User extends Client {
 	 */
 	protected Photo userPhoto = null;
 	protected Set<Photo> photos = new HashSet<Photo>();
-	@Ignore // only used as temporary variable
-	protected Image uploadedImage = null;
 
 	/**
 	 *
@@ -110,11 +107,11 @@ public class User extends Client {
 							  Client previousClient) {
 		super.initialize(id, nickName, emailAddress, accessRights, previousClient);
 
-		log.config(LogBuilder.createSystemMessage().
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
 				addAction("initialize user").
 				addParameter("id", id).
 				addParameter("name", nickName).
-				addParameter("E-Mail", emailAddress.asString()).toString());
+				addParameter("E-Mail", emailAddress.asString()).log();
 		incWriteCount();
 	}
 
@@ -270,6 +267,14 @@ public class User extends Client {
 	 */
 	public Photo[] getPhotosReverseOrderedByPraise() {
 		Photo[] result = photos.toArray(new Photo[0]);
+		// the user keeps copies of its photos, which are not written again on each change of a photo
+		PhotoManager photoManager = PhotoManager.getInstance();
+		for (int i = 0; i < result.length; i++) {
+			Photo current = photoManager.getPhoto(result[i].getId());
+			if (current != null) {
+				result[i] = current;
+			}
+		}
 		Arrays.sort(result, getPhotoByPraiseReverseComparator());
 		return result;
 	}
@@ -294,18 +299,4 @@ public class User extends Client {
 			}
 		};
 	}
-
-	/**
-	 * @methodtype set
-	 */
-	public void setUploadedImage(Image image) {
-		uploadedImage = image;
-	}
-
-	/**
-	 * @methodtype get
-	 */
-	public Image getUploadedImage() {
-		return uploadedImage;
-	}
 }
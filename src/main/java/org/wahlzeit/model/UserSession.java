@@ -26,37 +26,34 @@ import org.wahlzeit.utils.HtmlUtil;
 
 import javax.servlet.http.HttpSession;
 import java.io.Serializable;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Map;
-import java.util.Set;
 import java.util.logging.Logger;
 
 /**
  * Wrapper class for {@link HttpSession} to provide a readable interface for Wahlzeit.
  *
- * {@link HttpSession}s are managed automatically by Google App Engine.
+ * {@link HttpSession}s are managed automatically by Google App Engine. As App Engine saves the whole session whenever
+ * an attribute is set, all state is kept in one {@link UserSessionState}, which is set again at the end of a request
+ * and only if it has changed (see {@link #saveState()}).
  */
 public class UserSession extends Session implements Serializable {
 
 	/**
-	 * Keys to store the according properties in the <code>HttpSession</code>
+	 * Key to store the state in the <code>HttpSession</code>
+	 */
+	public static final String STATE = "state";
+
+	/**
+	 *
 	 */
-	public static final String PHOTO_CASE = "photoCase";
-	public static final String PHOTO_FILTER = "photoFilter";
-	public static final String PRAISED_PHOTOS = "praisedPhotoIds";
 	public static final String MESSAGE = "message";
-	public static final String HEADING = "heading";
-	public static final String CLIENT_ID = "clientId";
-	public static final String SITE_URL = "siteUrl";
-	public static final String SAVED_ARGS = "savedArgs";
-	public static final String INITIALIZED = "initialized";
 	public static final String ANONYMOUS_CLIENT = "anon";
 
 
 	private static Logger log = Logger.getLogger(UserSession.class.getName());
 
 	protected HttpSession httpSession;
+	protected UserSessionState state;
 
 	/**
 	 *
@@ -64,9 +61,11 @@ public class UserSession extends Session implements Serializable {
 	public UserSession(String myName, String mySiteUrl, HttpSession myHttpSession, String myLanguage) {
 		httpSession = myHttpSession;
 		initialize(myName);
-		if (httpSession.getAttribute(INITIALIZED) == null) {
-			httpSession.setAttribute(SITE_URL, mySiteUrl);
-			httpSession.setAttribute(PHOTO_FILTER, PhotoFactory.getInstance().createPhotoFilter());
+		state = (UserSessionState) httpSession.getAttribute(STATE);
+		if (state == null) {
+			state = new UserSessionState();
+			state.setSiteUrl(mySiteUrl);
+			state.setPhotoFilter(PhotoFactory.getInstance().createPhotoFilter());
 
 			setClient(new Guest());
 			try {
@@ -79,19 +78,40 @@ public class UserSession extends Session implements Serializable {
 			clearDisplayedPhotos();
 			clearPraisedPhotos();
 			clearSavedArgs();
-			httpSession.setAttribute(INITIALIZED, INITIALIZED);
+			state.setDirty();
+		}
+	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the state back into the <code>HttpSession</code> if it has changed during the request; returns true if
+	 * it has been written.
+	 */
+	public boolean saveState() {
+		if (!state.isDirty()) {
+			return false;
 		}
+
+		state.resetDirty();
+		httpSession.setAttribute(STATE, state);
+		return true;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public UserSessionState getState() {
+		return state;
 	}
 
 	/**
 	 *
 	 */
 	public void clearDisplayedPhotos() {
-		PhotoFilter photoFilter = (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		PhotoFilter photoFilter = state.getPhotoFilter();
 		if (photoFilter != null) {
 			photoFilter.clear();
-			httpSession.setAttribute(PHOTO_FILTER, photoFilter);
 		} else {
 			log.warning("No PhotoFilter found in HttpSession to clear.");
 		}
@@ -101,14 +121,14 @@ public class UserSession extends Session implements Serializable {
 	 *
 	 */
 	public void clearPraisedPhotos() {
-		httpSession.setAttribute(PRAISED_PHOTOS, new HashSet<Photo>());
+		state.clearPraisedPhotoIds();
 	}
 
 	/**
 	 * @methodtype init
 	 */
 	public void clearSavedArgs() {
-		httpSession.setAttribute(SAVED_ARGS, new HashMap<String, Object>());
+		state.clearSavedArgs();
 	}
 
 	/**
@@ -123,39 +143,28 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public String getSiteUrl() {
-		return (String) httpSession.getAttribute(SITE_URL);
-	}
-
-	@Override
-	protected void notifyNameChanged() {
-		httpSession.setAttribute(Session.NAME, super.getName());
+		return state.getSiteUrl();
 	}
 
 	/**
 	 * @methodtype convert Returns some signifier of current user
 	 */
 	public String getClientId() {
-		return (String) httpSession.getAttribute(CLIENT_ID);
-	}
-
-	@Override
-	protected void notifyProcessingTimeChanged() {
-		httpSession.setAttribute(Session.PROCESSING_TIME, super.getProcessingTime());
+		return state.getClientId();
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Client getClient() {
-		String clientName = (String) httpSession.getAttribute(CLIENT_ID);
-		return UserManager.getInstance().getClientById(clientName);
+		return UserManager.getInstance().getClientById(state.getClientId());
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setClient(Client newClient) {
-		String previousClientId = (String) httpSession.getAttribute(CLIENT_ID);
+		String previousClientId = state.getClientId();
 		if (previousClientId != null) {
 			Client previousClient = UserManager.getInstance().getClientById(previousClientId);
 			if (previousClient instanceof Guest) {
@@ -163,7 +172,7 @@ public class UserSession extends Session implements Serializable {
 			}
 		}
 
-		httpSession.setAttribute(CLIENT_ID, newClient.getId());
+		state.setClientId(newClient.getId());
 		UserManager.getInstance().addHttpSessionIdToClientMapping(httpSession.getId(), newClient);
 	}
 
@@ -171,30 +180,23 @@ public class UserSession extends Session implements Serializable {
 	 *
 	 */
 	public PhotoFilter getPhotoFilter() {
-		return (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		return state.getPhotoFilter();
 	}
 
 	/**
 	 * @methodtype boolean query
 	 */
 	public boolean hasPraisedPhoto(Photo photo) {
-		Set praisedPhotos = (Set) httpSession.getAttribute(PRAISED_PHOTOS);
-		if (praisedPhotos != null) {
-			return praisedPhotos.contains(photo);
-		} else {
-			log.warning("Found no set of praised Photos to search for Photo.");
-			return false;
-		}
+		return state.hasPraisedPhotoId(photo.getId());
 	}
 
 	/**
 	 *
 	 */
 	public void addProcessedPhoto(Photo photo) {
-		PhotoFilter photoFilter = (PhotoFilter) httpSession.getAttribute(PHOTO_FILTER);
+		PhotoFilter photoFilter = state.getPhotoFilter();
 		if (photoFilter != null) {
 			photoFilter.addProcessedPhoto(photo);
-			httpSession.setAttribute(PHOTO_FILTER, photoFilter);
 		} else {
 			log.warning("No PhotoFilter found in HttpSession to add Photo.");
 		}
@@ -204,70 +206,70 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public String getHeading() {
-		return (String) httpSession.getAttribute(HEADING);
+		return state.getHeading();
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setHeading(String myHeading) {
-		httpSession.setAttribute(HEADING, myHeading);
+		state.setHeading(myHeading);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public String getMessage() {
-		return (String) httpSession.getAttribute(MESSAGE);
+		return state.getMessage();
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setMessage(String myMessage) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(myMessage));
+		state.setMessage(HtmlUtil.asP(myMessage));
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setTwoLineMessage(String msg1, String msg2) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2));
+		state.setMessage(HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2));
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setThreeLineMessage(String msg1, String msg2, String msg3) {
-		httpSession.setAttribute(MESSAGE, HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2) + HtmlUtil.asP(msg3));
+		state.setMessage(HtmlUtil.asP(msg1) + HtmlUtil.asP(msg2) + HtmlUtil.asP(msg3));
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public PhotoId getPhotoId() {
-		return (PhotoId) httpSession.getAttribute(Photo.ID);
+		return state.getPhotoId();
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setPhotoId(PhotoId newPhotoId) {
-		httpSession.setAttribute(Photo.ID, newPhotoId);
+		state.setPhotoId(newPhotoId);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public PhotoCase getPhotoCase() {
-		return (PhotoCase) httpSession.getAttribute(PHOTO_CASE);
+		return state.getPhotoCase();
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void setPhotoCase(PhotoCase photoCase) {
-		httpSession.setAttribute(PHOTO_CASE, photoCase);
+		state.setPhotoCase(photoCase);
 	}
 
 	/**
@@ -287,8 +289,7 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype get
 	 */
 	public Object getSavedArg(String key) {
-		Map<String, Object> savedArgs = (Map<String, Object>) httpSession.getAttribute(SAVED_ARGS);
-		return savedArgs.get(key);
+		return state.getSavedArgs().get(key);
 	}
 
 	/**
@@ -333,16 +334,14 @@ public class UserSession extends Session implements Serializable {
 	 * @methodtype set
 	 */
 	public void setSavedArg(String key, Object value) {
-		Map<String, Object> savedArgs = getSavedArgs();
-		savedArgs.put(key, value);
-		httpSession.setAttribute(SAVED_ARGS, savedArgs);
+		state.setSavedArg(key, value);
 	}
 
 	/**
 	 * @methodtype get
 	 */
 	public Map<String, Object> getSavedArgs() {
-		return (Map<String, Object>) httpSession.getAttribute(SAVED_ARGS);
+		return state.getSavedArgs();
 	}
 
 }
@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.CompressedIntSet;
+
+import java.io.Serializable;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The UserSessionState holds everything a UserSession keeps in its HttpSession, so that it is stored as one
+ * attribute. It tracks whether it has changed, so that the UserSession writes it back at most once per request and
+ * only if needed; each write back increments its version.
+ */
+public class UserSessionState implements Serializable {
+
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 *
+	 */
+	protected long version = 0;
+
+	/**
+	 *
+	 */
+	protected String siteUrl;
+	protected String clientId;
+	protected PhotoFilter photoFilter;
+	protected CompressedIntSet praisedPhotoIds = new CompressedIntSet();
+	protected String heading;
+	protected String message;
+	protected PhotoId photoId;
+	protected PhotoCase photoCase;
+	protected HashMap<String, Object> savedArgs = new HashMap<String, Object>();
+
+	/**
+	 *
+	 */
+	protected transient boolean isDirty = false;
+
+	/**
+	 *
+	 */
+	public UserSessionState() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isDirty() {
+		return isDirty || ((photoFilter != null) && photoFilter.isDirty());
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setDirty() {
+		isDirty = true;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Marks the state as saved.
+	 */
+	public void resetDirty() {
+		version++;
+		isDirty = false;
+		if (photoFilter != null) {
+			photoFilter.resetDirty();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getSiteUrl() {
+		return siteUrl;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setSiteUrl(String newSiteUrl) {
+		isDirty |= !isEqual(siteUrl, newSiteUrl);
+		siteUrl = newSiteUrl;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getClientId() {
+		return clientId;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setClientId(String newClientId) {
+		isDirty |= !isEqual(clientId, newClientId);
+		clientId = newClientId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoFilter getPhotoFilter() {
+		return photoFilter;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPhotoFilter(PhotoFilter newPhotoFilter) {
+		isDirty |= (photoFilter != newPhotoFilter);
+		photoFilter = newPhotoFilter;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasPraisedPhotoId(PhotoId praisedPhotoId) {
+		return praisedPhotoIds.contains(praisedPhotoId.asInt());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clearPraisedPhotoIds() {
+		if (!praisedPhotoIds.isEmpty()) {
+			praisedPhotoIds.clear();
+			isDirty = true;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getHeading() {
+		return heading;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setHeading(String newHeading) {
+		isDirty |= !isEqual(heading, newHeading);
+		heading = newHeading;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setMessage(String newMessage) {
+		isDirty |= !isEqual(message, newMessage);
+		message = newMessage;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoId getPhotoId() {
+		return photoId;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPhotoId(PhotoId newPhotoId) {
+		isDirty |= !isEqual(photoId, newPhotoId);
+		photoId = newPhotoId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoCase getPhotoCase() {
+		return photoCase;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPhotoCase(PhotoCase newPhotoCase) {
+		isDirty |= (photoCase != newPhotoCase);
+		photoCase = newPhotoCase;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Map<String, Object> getSavedArgs() {
+		return savedArgs;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setSavedArg(String key, Object value) {
+		boolean isNewKey = !savedArgs.containsKey(key);
+		Object previousValue = savedArgs.put(key, value);
+		isDirty |= isNewKey || !isEqual(previousValue, value);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clearSavedArgs() {
+		if (!savedArgs.isEmpty()) {
+			savedArgs.clear();
+			isDirty = true;
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected static boolean isEqual(Object a, Object b) {
+		return (a == null) ? (b == null) : a.equals(b);
+	}
+
+}
@@ -22,10 +22,13 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.OfyService;
 import org.wahlzeit.utils.PatternInstance;
@@ -33,6 +36,12 @@ import org.wahlzeit.utils.PatternInstance;
 import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -45,27 +54,109 @@ public class DatastoreAdapter extends ImageStorage {
 
 	private static final Logger log = Logger.getLogger(DatastoreAdapter.class.getName());
 
+	/**
+	 * Images are split into chunks, so the only limit is a sanity check
+	 */
+	public static final int MAX_IMAGE_SIZE = 32 * 1024 * 1024;
+
+	/**
+	 * Number of chunks that are written or read with one datastore call
+	 */
+	protected static final int CHUNKS_PER_BATCH = 4;
+
 
 	@Override
 	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
 			throws IOException, InvalidParameterException {
 		if (image instanceof Image) {
-			final ImageWrapper imageWrapper = new ImageWrapper(photoIdAsString + size);
-			imageWrapper.setImage((Image) image);
+			final String imageId = photoIdAsString + size;
+			final byte[] imageData = ((Image) image).getImageData();
+			if (imageData.length > MAX_IMAGE_SIZE) {
+				throw new ArrayIndexOutOfBoundsException("Can not store images > " + MAX_IMAGE_SIZE + " bytes.");
+			}
 
 			ObjectifyService.run(new Work<Boolean>() {
 				@Override
 				public Boolean run() {
+					Key<ImageWrapper> key = Key.create(ImageWrapper.class, imageId);
+					ImageWrapper oldImageWrapper = OfyService.ofy().load().key(key).now();
+					ImageWrapper imageWrapper = new ImageWrapper(imageId);
+					if (imageData.length < ImageChunk.MAX_CHUNK_SIZE) {
+						imageWrapper.setImageData(imageData);
+					} else {
+						imageWrapper.setChunks(imageData.length, writeChunks(imageId, imageData));
+					}
+
+					// the header is written last, so readers never see a header without its chunks
 					OfyService.ofy().save().entity(imageWrapper).now();
+					deleteStaleChunks(oldImageWrapper, imageWrapper);
 					return null;
 				}
 			});
 
-			log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
+			LogBuilder.createSystemMessage(log, Level.CONFIG).addMessage("image successfully written").log();
 		} else {
-			log.warning(LogBuilder.createSystemMessage().
+			LogBuilder.createSystemMessage(log, Level.WARNING).
 					addMessage("did not get an Image type to store").
-					addParameter("image type", image.toString()).toString());
+					addParameter("image type", image.toString()).log();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Splits the image data into chunks and writes them in parallel batches. Returns the version of the chunks.
+	 */
+	protected long writeChunks(String imageId, byte[] imageData) {
+		long version = System.currentTimeMillis();
+		int noChunks = ImageChunk.getNoChunks(imageData.length);
+
+		List<Result<Map<Key<ImageChunk>, ImageChunk>>> results =
+				new ArrayList<Result<Map<Key<ImageChunk>, ImageChunk>>>();
+		List<ImageChunk> batch = new ArrayList<ImageChunk>();
+		for (int i = 0; i < noChunks; i++) {
+			int from = i * ImageChunk.MAX_CHUNK_SIZE;
+			int to = Math.min(from + ImageChunk.MAX_CHUNK_SIZE, imageData.length);
+			batch.add(new ImageChunk(ImageChunk.getId(imageId, version, i), Arrays.copyOfRange(imageData, from, to)));
+
+			if (batch.size() == CHUNKS_PER_BATCH || i == noChunks - 1) {
+				results.add(OfyService.ofy().save().entities(batch));
+				batch = new ArrayList<ImageChunk>();
+			}
+		}
+
+		for (Result<Map<Key<ImageChunk>, ImageChunk>> result : results) {
+			result.now();
+		}
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("image chunks written", noChunks).
+				addParameter("image size", imageData.length).log();
+		return version;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the chunks of the previous version of the image by key, as read from its previous header with a
+	 * (strongly consistent) get; nothing to do if the previous image did not exist or was kept in its header.
+	 */
+	protected void deleteStaleChunks(ImageWrapper oldImageWrapper, ImageWrapper imageWrapper) {
+		if ((oldImageWrapper == null) || !oldImageWrapper.isChunked()) {
+			return;
+		}
+
+		boolean isSameVersion = imageWrapper.isChunked() && (oldImageWrapper.getVersion() == imageWrapper.getVersion());
+		List<Key<ImageChunk>> staleKeys = new ArrayList<Key<ImageChunk>>();
+		for (int i = 0; i < oldImageWrapper.getNoChunks(); i++) {
+			if (!isSameVersion || (i >= imageWrapper.getNoChunks())) {
+				String chunkId = ImageChunk.getId(oldImageWrapper.getId(), oldImageWrapper.getVersion(), i);
+				staleKeys.add(Key.create(ImageChunk.class, chunkId));
+			}
+		}
+
+		if (!staleKeys.isEmpty()) {
+			OfyService.ofy().delete().keys(staleKeys).now();
 		}
 	}
 
@@ -73,46 +164,120 @@ public class DatastoreAdapter extends ImageStorage {
 	protected Image doReadImage(final String photoIdAsString, final int size) throws IOException {
 		Image result = null;
 
-		ImageWrapper imageWrapper = ObjectifyService.run(new Work<ImageWrapper>() {
+		byte[] imageData = ObjectifyService.run(new Work<byte[]>() {
 			@Override
-			public ImageWrapper run() {
-				return OfyService.ofy().load().type(ImageWrapper.class).id(photoIdAsString + size).now();
+			public byte[] run() {
+				ImageWrapper imageWrapper =
+						OfyService.ofy().load().type(ImageWrapper.class).id(photoIdAsString + size).now();
+				if (imageWrapper == null) {
+					LogBuilder.createSystemMessage(log, Level.INFO).addMessage("does not exist!").log();
+					return null;
+				}
+				return imageWrapper.isChunked() ? readChunks(imageWrapper) : imageWrapper.getImageData();
 			}
 		});
 
-		if (imageWrapper == null) {
-			log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
-		} else {
-			result = imageWrapper.getImage();
-			if (result != null) {
-				log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
-			} else {
-				log.warning(LogBuilder.createSystemMessage().addMessage("ImageWrapper contains no Image").toString());
+		if (imageData != null) {
+			result = ImagesServiceFactory.makeImage(imageData);
+			LogBuilder.createSystemMessage(log, Level.CONFIG).addMessage("image successfully read").log();
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Loads all chunks of the image with batched loads that run in parallel and puts the image data back together.
+	 * Returns null if a chunk is missing.
+	 */
+	protected byte[] readChunks(ImageWrapper imageWrapper) {
+		String imageId = imageWrapper.getId();
+		int noChunks = imageWrapper.getNoChunks();
+
+		// start all batches first; Objectify only waits for a batch when its result is accessed
+		List<Map<String, ImageChunk>> batches = new ArrayList<Map<String, ImageChunk>>();
+		for (int first = 0; first < noChunks; first += CHUNKS_PER_BATCH) {
+			List<String> ids = new ArrayList<String>();
+			for (int i = first; i < Math.min(first + CHUNKS_PER_BATCH, noChunks); i++) {
+				ids.add(ImageChunk.getId(imageId, imageWrapper.getVersion(), i));
+			}
+			batches.add(OfyService.ofy().load().type(ImageChunk.class).ids(ids));
+		}
+
+		byte[] result = new byte[imageWrapper.getLength()];
+		int position = 0;
+		for (int i = 0; i < noChunks; i++) {
+			Map<String, ImageChunk> batch = batches.get(i / CHUNKS_PER_BATCH);
+			ImageChunk chunk = batch.get(ImageChunk.getId(imageId, imageWrapper.getVersion(), i));
+			if (chunk == null || position + chunk.getData().length > result.length) {
+				LogBuilder.createSystemMessage(log, Level.WARNING).
+						addParameter("image is incomplete, missing chunk", i).
+						addParameter("image id", imageId).log();
+				return null;
 			}
+
+			byte[] data = chunk.getData();
+			System.arraycopy(data, 0, result, position, data.length);
+			position += data.length;
 		}
+
+		return result;
+	}
+
+	/**
+	 * Uses a get by key rather than a (keys-only) query, as only gets are strongly consistent; a query may miss an
+	 * image that has just been written.
+	 */
+	@Override
+	protected boolean doDoesImageExist(final String photoIdAsString, final int size) {
+		boolean result = ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				Key<ImageWrapper> key = Key.create(ImageWrapper.class, photoIdAsString + size);
+				return OfyService.ofy().load().key(key).now() != null;
+			}
+		});
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("does image exist", result).log();
 		return result;
 	}
 
+	/**
+	 * Checks all sizes with one strongly consistent batch get, see doDoesImageExist().
+	 */
 	@Override
-	protected boolean doDoesImageExist(String photoIdAsString, int size) {
-		Image image = null;
-		boolean result = false;
-		try {
-			image = doReadImage(photoIdAsString, size);
-		} catch (IOException e) {
-			log.warning(
-					LogBuilder.createSystemMessage().addException("IOException when checking for Image existance", e)
-							.toString());
-		}
-		if (image != null) {
-			result = true;
-		}
-		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
+	protected int doGetStoredSizes(final String photoIdAsString) {
+		final List<Key<ImageWrapper>> keys = new ArrayList<Key<ImageWrapper>>();
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			keys.add(Key.create(ImageWrapper.class, photoIdAsString + photoSize.asInt()));
+		}
+		final Key<ImageWrapper> originalImageKey = Key.create(ImageWrapper.class, photoIdAsString + ORIGINAL_IMAGE_SIZE);
+		keys.add(originalImageKey);
+
+		Set<Key<ImageWrapper>> existingKeys = ObjectifyService.run(new Work<Set<Key<ImageWrapper>>>() {
+			@Override
+			public Set<Key<ImageWrapper>> run() {
+				return OfyService.ofy().load().keys(keys).keySet();
+			}
+		});
+
+		int result = 0;
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			if (existingKeys.contains(keys.get(photoSize.asInt()))) {
+				result |= photoSize.asBit();
+			}
+		}
+		if (existingKeys.contains(originalImageKey)) {
+			result |= 1 << ORIGINAL_IMAGE_SIZE;
+		}
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("stored sizes", result).log();
 		return result;
 	}
 
 	/**
-	 * Wrapper class to store {@link Image}s in the Google Datastore with Objectify.
+	 * Header entity to store {@link Image}s in the Google Datastore with Objectify. Images smaller than one chunk are
+	 * kept in the header itself, larger ones are split into {@link ImageChunk}s.
 	 * 
  	 * @review
 	 */
@@ -127,6 +292,13 @@ public class DatastoreAdapter extends ImageStorage {
 
 		private byte[] imageData;
 
+		/**
+		 * Only set for chunked images; chunks of other versions are stale
+		 */
+		private int noChunks = 0;
+		private int length = 0;
+		private long version = 0;
+
 		public ImageWrapper() {
 			// just for Objectify to load it from Datastore
 		}
@@ -138,22 +310,157 @@ public class DatastoreAdapter extends ImageStorage {
 		/**
 		 * @methodtype get
 		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @methodtype get
+		 *
+		 * Returns null for chunked images, see DatastoreAdapter.readChunks(ImageWrapper).
+		 */
 		public Image getImage() {
-			return ImagesServiceFactory.makeImage(imageData);
+			return isChunked() ? null : ImagesServiceFactory.makeImage(imageData);
 		}
 
 		/**
 		 * @methodtype set
 		 *
-		 * Can not handle images >= 1 MB because this is the upper limit of entities in Google Datastore.
+		 * Can not handle images >= 1 MB because this is the upper limit of entities in Google Datastore; use chunks
+		 * for these.
 		 */
 		public void setImage(Image image) throws ArrayIndexOutOfBoundsException {
-			if(image.getImageData().length >= maxEntitySize) {
-				throw new ArrayIndexOutOfBoundsException("Can not store images >= 1 MB in the Google Datastore.");
-			}
-			else {
-				imageData = image.getImageData();
+			setImageData(image.getImageData());
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public byte[] getImageData() {
+			return imageData;
+		}
+
+		/**
+		 * @methodtype set
+		 */
+		public void setImageData(byte[] newImageData) throws ArrayIndexOutOfBoundsException {
+			if (newImageData.length >= maxEntitySize) {
+				throw new ArrayIndexOutOfBoundsException("Can not store images >= 1 MB in a single entity.");
 			}
+
+			imageData = newImageData;
+			noChunks = 0;
+			length = newImageData.length;
+			version = 0;
+		}
+
+		/**
+		 * @methodtype set
+		 */
+		public void setChunks(int newLength, long newVersion) {
+			imageData = null;
+			noChunks = ImageChunk.getNoChunks(newLength);
+			length = newLength;
+			version = newVersion;
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		public boolean isChunked() {
+			return noChunks > 0;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoChunks() {
+			return noChunks;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getVersion() {
+			return version;
+		}
+	}
+
+	/**
+	 * A part of an image that is too large for a single entity, see {@link ImageWrapper}. The id consists of image id,
+	 * version and index, e.g. "x1a5#1514764800000#3".
+	 */
+	@Entity
+	public static class ImageChunk {
+
+		/**
+		 * Leaves room for the key and property overhead of an entity
+		 */
+		public static final int MAX_CHUNK_SIZE = 1000 * 1000;
+
+		/**
+		 *
+		 */
+		protected static final char ID_SEPARATOR = '#';
+
+		@Id
+		private String id;
+
+		private byte[] data;
+
+		public ImageChunk() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public ImageChunk(String id, byte[] data) {
+			this.id = id;
+			this.data = data;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public static String getId(String imageId, long version, int index) {
+			return imageId + ID_SEPARATOR + version + ID_SEPARATOR + index;
+		}
+
+		/**
+		 * @methodtype get
+		 *
+		 * Returns a lower bound for the ids of all chunks of the image.
+		 */
+		public static String getFirstId(String imageId) {
+			return imageId + ID_SEPARATOR;
+		}
+
+		/**
+		 * @methodtype get
+		 *
+		 * Returns an upper bound (exclusive) for the ids of all chunks of the image.
+		 */
+		public static String getLastId(String imageId) {
+			return imageId + (char) (ID_SEPARATOR + 1);
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public static int getNoChunks(int length) {
+			return (length + MAX_CHUNK_SIZE - 1) / MAX_CHUNK_SIZE;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public byte[] getData() {
+			return data;
 		}
 	}
 }
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SysConfig;
+import org.wahlzeit.utils.PatternInstance;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.InvalidParameterException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Adapter for the local file system, e.g. for self-hosted or test deployments; App Engine itself does not allow
+ * writing files. Images are stored below the photos directory (see SysConfig.getPhotosDir()) in 256 shard directories
+ * so that no directory gets too large.
+ */
+@PatternInstance(patternName = "Adapter (Class)", participants = { "PhotoFactory" })
+public class FileSystemAdapter extends ImageStorage {
+
+	private static final Logger log = Logger.getLogger(FileSystemAdapter.class.getName());
+
+	/**
+	 *
+	 */
+	protected static final String FILE_ENDING = ".img";
+	protected static final String TEMP_FILE_ENDING = ".tmp";
+
+	/**
+	 *
+	 */
+	protected final Path rootDir;
+
+	/**
+	 * Stores the images in the photos directory of the SysConfig.
+	 */
+	public FileSystemAdapter() {
+		this(Paths.get(SysConfig.getPhotosDir().asString()));
+	}
+
+	/**
+	 *
+	 */
+	public FileSystemAdapter(Path myRootDir) {
+		rootDir = myRootDir;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Path getRootDir() {
+		return rootDir;
+	}
+
+	/**
+	 * Writes to a temporary file first and renames it afterwards, so readers never see a partially written image.
+	 */
+	@Override
+	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
+			throws IOException, InvalidParameterException {
+		if (image instanceof Image) {
+			Path file = getImageFile(photoIdAsString, size);
+			Path dir = file.getParent();
+			Files.createDirectories(dir);
+
+			Path tempFile = Files.createTempFile(dir, file.getFileName().toString(), TEMP_FILE_ENDING);
+			try {
+				Files.write(tempFile, ((Image) image).getImageData());
+				moveFile(tempFile, file);
+			} finally {
+				Files.deleteIfExists(tempFile);
+			}
+
+			LogBuilder.createSystemMessage(log, Level.CONFIG).
+					addMessage("image successfully written").
+					addParameter("file", file).log();
+		} else {
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addMessage("did not get an Image type to store").
+					addParameter("image type", image.toString()).log();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void moveFile(Path source, Path target) throws IOException {
+		try {
+			Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException ex) {
+			Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	@Override
+	protected Image doReadImage(String photoIdAsString, int size) throws IOException {
+		Path file = getImageFile(photoIdAsString, size);
+		if (!Files.isRegularFile(file)) {
+			LogBuilder.createSystemMessage(log, Level.INFO).addMessage("does not exist!").log();
+			return null;
+		}
+
+		byte[] imageData = Files.readAllBytes(file);
+		LogBuilder.createSystemMessage(log, Level.CONFIG).addMessage("image successfully read").log();
+		return ImagesServiceFactory.makeImage(imageData);
+	}
+
+	@Override
+	protected boolean doDoesImageExist(String photoIdAsString, int size) {
+		boolean result = Files.isRegularFile(getImageFile(photoIdAsString, size));
+		LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("does image exist", result).log();
+		return result;
+	}
+
+	@Override
+	protected Path doGetLocalImageFile(String photoIdAsString, int size) {
+		Path result = getImageFile(photoIdAsString, size);
+		return Files.isRegularFile(result) ? result : null;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the file of the image, e.g. photos/3f/x1a-2.img. The shard directory is derived from the photo id, so
+	 * all sizes of a photo end up in the same directory.
+	 */
+	protected Path getImageFile(String photoIdAsString, int size) {
+		String fileName = asFileName(photoIdAsString);
+		String shard = String.format("%02x", photoIdAsString.hashCode() & 0xff);
+		return rootDir.resolve(shard).resolve(fileName + "-" + size + FILE_ENDING);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected String asFileName(String photoIdAsString) {
+		try {
+			return URLEncoder.encode(photoIdAsString, "UTF-8");
+		} catch (UnsupportedEncodingException ex) {
+			throw new IllegalStateException("UTF-8 is not supported", ex);
+		}
+	}
+
+}
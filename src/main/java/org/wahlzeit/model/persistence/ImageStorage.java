@@ -5,7 +5,9 @@ import org.wahlzeit.services.LogBuilder;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.security.InvalidParameterException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -15,6 +17,11 @@ import java.util.logging.Logger;
  */
 public abstract class ImageStorage {
 
+	/**
+	 * Size under which the original (uploaded) image of a photo is stored; it is not a PhotoSize
+	 */
+	public static final int ORIGINAL_IMAGE_SIZE = 9;
+
 	private static final Logger log = Logger.getLogger(ImageStorage.class.getName());
 	private static ImageStorage instance = null;
 
@@ -34,9 +41,9 @@ public abstract class ImageStorage {
 	 * @methodtype set
 	 */
 	public static void setInstance(ImageStorage newInstance) {
-		log.config(LogBuilder.createSystemMessage().
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
 				addAction("set ImageStorage instance").
-				addParameter("instance", newInstance).toString());
+				addParameter("instance", newInstance).log();
 		instance = newInstance;
 	}
 
@@ -57,11 +64,11 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
-		log.config(LogBuilder.createSystemMessage().
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
 				addAction("write image to storage").
 				addParameter("image", image).
 				addParameter("photo id", photoIdAsString).
-				addParameter("size", size).toString());
+				addParameter("size", size).log();
 
 		doWriteImage(image, photoIdAsString, size);
 	}
@@ -76,6 +83,26 @@ public abstract class ImageStorage {
 			throws IOException, InvalidParameterException;
 
 
+	/**
+	 * Writes the original image of the photo, from which further sizes can be created later on.
+	 *
+	 * @methodtype command
+	 * @methodproperty wrapper
+	 */
+	public void writeOriginalImage(Serializable image, String photoIdAsString)
+			throws InvalidParameterException, IOException {
+
+		assertImageNotNull(image);
+		assertValidPhotoId(photoIdAsString);
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("write original image to storage").
+				addParameter("photo id", photoIdAsString).log();
+
+		doWriteImage(image, photoIdAsString, ORIGINAL_IMAGE_SIZE);
+	}
+
+
 	// read methods ----------------------------------------------------------------------------------------------------
 
 	/**
@@ -90,10 +117,10 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
-		log.config(LogBuilder.createSystemMessage().
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
 				addAction("read image from storage").
 				addParameter("photo id", photoIdAsString).
-				addParameter("size", size).toString());
+				addParameter("size", size).log();
 
 		return doReadImage(photoIdAsString, size);
 	}
@@ -107,6 +134,24 @@ public abstract class ImageStorage {
 	protected abstract Serializable doReadImage(String filename, int size)
 			throws IOException;
 
+	/**
+	 * Reads the original image of the photo. When not found, null is returned.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Serializable readOriginalImage(String photoIdAsString)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("read original image from storage").
+				addParameter("photo id", photoIdAsString).log();
+
+		return doReadImage(photoIdAsString, ORIGINAL_IMAGE_SIZE);
+	}
+
 
 	// exist method ----------------------------------------------------------------------------------------------------
 
@@ -122,10 +167,10 @@ public abstract class ImageStorage {
 		assertValidPhotoId(photoIdAsString);
 		PhotoSize.assertIsValidPhotoSizeAsInt(size);
 
-		log.config(LogBuilder.createSystemMessage().
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
 				addAction("check if image exists in storage").
 				addParameter("photo id", photoIdAsString).
-				addParameter("size", size).toString());
+				addParameter("size", size).log();
 
 		return doDoesImageExist(photoIdAsString, size);
 	}
@@ -140,6 +185,72 @@ public abstract class ImageStorage {
 	protected abstract boolean doDoesImageExist(String photoIdAsString, int size);
 
 
+	/**
+	 * Checks which sizes of the photo exist in the storage, without reading any image data. The result is a bit set,
+	 * see PhotoSize.asBit(); the original image is bit ORIGINAL_IMAGE_SIZE.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public int getStoredSizes(String photoIdAsString)
+			throws IllegalArgumentException {
+
+		assertValidPhotoId(photoIdAsString);
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("check stored sizes in storage").
+				addParameter("photo id", photoIdAsString).log();
+
+		return doGetStoredSizes(photoIdAsString);
+	}
+
+	/**
+	 * Actually checks which sizes exist. Checks size by size; override this if the storage can check all sizes at
+	 * once.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected int doGetStoredSizes(String photoIdAsString) {
+		int result = 0;
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			if (doDoesImageExist(photoIdAsString, photoSize.asInt())) {
+				result |= photoSize.asBit();
+			}
+		}
+		if (doDoesImageExist(photoIdAsString, ORIGINAL_IMAGE_SIZE)) {
+			result |= 1 << ORIGINAL_IMAGE_SIZE;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the local file that holds the image, so that it can be served without reading it into memory, or null
+	 * if the image does not exist or is not stored in a local file.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Path getLocalImageFile(String photoIdAsString, int size)
+			throws IllegalArgumentException {
+
+		assertValidPhotoId(photoIdAsString);
+		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+
+		return doGetLocalImageFile(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually returns the local file. Storages that do not use local files return null.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Path doGetLocalImageFile(String photoIdAsString, int size) {
+		return null;
+	}
+
+
 	// assertion methods -----------------------------------------------------------------------------------------------
 
 	/**
@@ -0,0 +1,473 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Formatter;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogManager;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+/**
+ * An AsyncLogHandler takes log records off the request threads: publishing a record only puts it into a bounded ring
+ * buffer, from which a single drain thread writes batches of records as newline-delimited JSON. If the buffer is full,
+ * records are either dropped and counted, or the publishing thread waits for space, depending on the overflow policy.
+ *
+ * It is configured in logging.properties, e.g.:
+ *
+ * handlers = org.wahlzeit.services.AsyncLogHandler
+ * org.wahlzeit.services.AsyncLogHandler.capacity = 8192
+ * org.wahlzeit.services.AsyncLogHandler.batchSize = 256
+ * org.wahlzeit.services.AsyncLogHandler.overflowPolicy = DROP
+ *
+ * If the drain thread cannot be started, e.g. because the environment does not allow threads, records are written
+ * by the publishing thread.
+ */
+public class AsyncLogHandler extends Handler {
+
+	/**
+	 * What to do with a record if the buffer is full
+	 */
+	public enum OverflowPolicy {
+		DROP, BLOCK
+	}
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_CAPACITY = 8192;
+	public static final int DEFAULT_BATCH_SIZE = 256;
+	public static final OverflowPolicy DEFAULT_OVERFLOW_POLICY = OverflowPolicy.DROP;
+
+	/**
+	 * Time the drain thread sleeps if it is not woken up by a new record
+	 */
+	protected static final long MAX_IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	/**
+	 * Time a publishing thread waits before looking for space again, if the overflow policy is BLOCK
+	 */
+	protected static final long BLOCK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+	/**
+	 * Time to wait for the drain thread to write the remaining records when closing
+	 */
+	protected static final long CLOSE_TIMEOUT = 5000; // milliseconds
+
+	/**
+	 * Slots of the ring buffer; a slot is null until the record claimed for it has been put in
+	 */
+	protected final AtomicReferenceArray<LogRecord> slots;
+	protected final int mask;
+
+	/**
+	 * Number of records claimed by publishing threads respectively taken by the drain thread so far; the difference is
+	 * the number of records in the buffer
+	 */
+	protected final AtomicLong tail = new AtomicLong();
+	protected volatile long head = 0;
+
+	/**
+	 *
+	 */
+	protected final int batchSize;
+	protected final OverflowPolicy overflowPolicy;
+	protected final Writer writer;
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noWrittenRecords = new AtomicLong();
+	protected final AtomicLong noDroppedRecords = new AtomicLong();
+
+	/**
+	 *
+	 */
+	protected final Thread drainThread;
+	protected volatile boolean isDrainThreadWaiting = false;
+	protected volatile boolean isClosed = false;
+
+	/**
+	 * Formats the messages of records with parameters
+	 */
+	protected final Formatter messageFormatter = new SimpleFormatter();
+
+	/**
+	 * Writes to System.err, configured by the LogManager properties
+	 */
+	public AsyncLogHandler() {
+		this(System.err, getIntProperty("capacity", DEFAULT_CAPACITY), getIntProperty("batchSize", DEFAULT_BATCH_SIZE),
+				getOverflowPolicyProperty());
+		String level = getProperty("level");
+		if (level != null) {
+			setLevel(Level.parse(level.trim()));
+		}
+	}
+
+	/**
+	 *
+	 */
+	public AsyncLogHandler(OutputStream out, int capacity, int myBatchSize, OverflowPolicy myOverflowPolicy) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("capacity should be at least 1");
+		}
+		if (myBatchSize < 1) {
+			throw new IllegalArgumentException("batchSize should be at least 1");
+		}
+
+		int noSlots = Integer.highestOneBit(capacity);
+		if (noSlots < capacity) {
+			noSlots <<= 1;
+		}
+		slots = new AtomicReferenceArray<LogRecord>(noSlots);
+		mask = noSlots - 1;
+
+		batchSize = myBatchSize;
+		overflowPolicy = myOverflowPolicy;
+		writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+		drainThread = startDrainThread();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static String getProperty(String name) {
+		return LogManager.getLogManager().getProperty(AsyncLogHandler.class.getName() + "." + name);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static int getIntProperty(String name, int defaultValue) {
+		String value = getProperty(name);
+		try {
+			return (value != null) ? Integer.parseInt(value.trim()) : defaultValue;
+		} catch (NumberFormatException ex) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected static OverflowPolicy getOverflowPolicyProperty() {
+		String value = getProperty("overflowPolicy");
+		try {
+			return (value != null) ? OverflowPolicy.valueOf(value.trim()) : DEFAULT_OVERFLOW_POLICY;
+		} catch (IllegalArgumentException ex) {
+			return DEFAULT_OVERFLOW_POLICY;
+		}
+	}
+
+	/**
+	 * @methodtype initialization
+	 */
+	protected Thread startDrainThread() {
+		try {
+			Thread result = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					drain();
+				}
+			}, "async log handler");
+			result.setDaemon(true);
+			result.start();
+			return result;
+		} catch (RuntimeException ex) {
+			reportError("Could not start drain thread, writing records synchronously", ex, ErrorManager.OPEN_FAILURE);
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void publish(LogRecord record) {
+		if (isClosed || !isLoggable(record)) {
+			return;
+		}
+
+		// the caller is inferred from the stack of the publishing thread, so it must be known before handing over
+		record.getSourceClassName();
+
+		if (drainThread == null) {
+			synchronized (writer) {
+				write(record);
+				flushWriter();
+			}
+			return;
+		}
+
+		boolean isOffered = offer(record);
+		while (!isOffered && (overflowPolicy == OverflowPolicy.BLOCK) && !isClosed) {
+			wakeUpDrainThread();
+			LockSupport.parkNanos(BLOCK_NANOS);
+			isOffered = offer(record);
+		}
+
+		if (isOffered) {
+			if (isDrainThreadWaiting) {
+				wakeUpDrainThread();
+			}
+		} else {
+			noDroppedRecords.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Claims the next slot and puts the record in; returns false if the buffer is full.
+	 */
+	protected boolean offer(LogRecord record) {
+		while (true) {
+			long claim = tail.get();
+			if (claim - head >= slots.length()) {
+				return false;
+			}
+			if (tail.compareAndSet(claim, claim + 1)) {
+				slots.set((int) claim & mask, record);
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Takes the next record, or returns null if there is none yet. Only called by the drain thread.
+	 */
+	protected LogRecord poll() {
+		int index = (int) head & mask;
+		LogRecord result = slots.get(index);
+		if (result != null) {
+			slots.set(index, null);
+			head = head + 1; // frees the slot for publishing threads
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void wakeUpDrainThread() {
+		LockSupport.unpark(drainThread);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes batches of records until the handler is closed and all records are written.
+	 */
+	protected void drain() {
+		while (true) {
+			int noRecords = 0;
+			synchronized (writer) {
+				for (LogRecord record = poll(); record != null; record = (noRecords < batchSize) ? poll() : null) {
+					write(record);
+					noRecords++;
+				}
+				if (noRecords > 0) {
+					flushWriter();
+				}
+			}
+
+			if (noRecords == 0) {
+				if (isClosed && (tail.get() == head)) {
+					return;
+				}
+
+				isDrainThreadWaiting = true;
+				if (tail.get() == head) {
+					LockSupport.parkNanos(this, MAX_IDLE_NANOS);
+				}
+				isDrainThreadWaiting = false;
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void write(LogRecord record) {
+		try {
+			writer.write(asJson(record));
+			noWrittenRecords.incrementAndGet();
+		} catch (IOException | RuntimeException ex) {
+			reportError("Could not write record", ex, ErrorManager.WRITE_FAILURE);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void flushWriter() {
+		try {
+			writer.flush();
+		} catch (IOException ex) {
+			reportError("Could not flush records", ex, ErrorManager.FLUSH_FAILURE);
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the record as one line of JSON, including the line break.
+	 */
+	protected String asJson(LogRecord record) {
+		StringBuilder result = new StringBuilder(256);
+		result.append("{\"time\":").append(record.getMillis());
+		result.append(",\"level\":");
+		appendJsonString(result, record.getLevel().getName());
+		result.append(",\"logger\":");
+		appendJsonString(result, record.getLoggerName());
+		result.append(",\"thread\":").append(record.getThreadID());
+		if (record.getSourceClassName() != null) {
+			result.append(",\"class\":");
+			appendJsonString(result, record.getSourceClassName());
+			result.append(",\"method\":");
+			appendJsonString(result, record.getSourceMethodName());
+		}
+		result.append(",\"message\":");
+		appendJsonString(result, messageFormatter.formatMessage(record));
+		if (record.getThrown() != null) {
+			StringWriter sw = new StringWriter();
+			record.getThrown().printStackTrace(new PrintWriter(sw));
+			result.append(",\"thrown\":");
+			appendJsonString(result, sw.toString());
+		}
+		return result.append("}\n").toString();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void appendJsonString(StringBuilder json, String value) {
+		if (value == null) {
+			json.append("null");
+			return;
+		}
+
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '"':
+					json.append("\\\"");
+					break;
+				case '\\':
+					json.append("\\\\");
+					break;
+				case '\n':
+					json.append("\\n");
+					break;
+				case '\r':
+					json.append("\\r");
+					break;
+				case '\t':
+					json.append("\\t");
+					break;
+				default:
+					if (c < 0x20) {
+						json.append(String.format("\\u%04x", (int) c));
+					} else {
+						json.append(c);
+					}
+			}
+		}
+		json.append('"');
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void flush() {
+		if (drainThread != null) {
+			wakeUpDrainThread();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Stops accepting records and waits for the drain thread to write the remaining ones.
+	 */
+	@Override
+	public void close() {
+		isClosed = true;
+		if (drainThread != null) {
+			wakeUpDrainThread();
+			try {
+				drainThread.join(CLOSE_TIMEOUT);
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		synchronized (writer) {
+			flushWriter();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getCapacity() {
+		return slots.length();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoBufferedRecords() {
+		return (int) (tail.get() - head);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoWrittenRecords() {
+		return noWrittenRecords.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoDroppedRecords() {
+		return noDroppedRecords.get();
+	}
+
+}
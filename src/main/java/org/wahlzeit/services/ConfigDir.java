@@ -21,9 +21,15 @@
 package org.wahlzeit.services;
 
 import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * A ConfigDir is a Directory that can provides a two-way switch between a default directory and custom directory.
+ *
+ * Config files are looked up for each page, so whether a file exists is remembered rather than asked of the file
+ * system each time. If config files are added or removed while running, the ConfigDir needs to be invalidated.
  */
 public class ConfigDir extends Directory {
 
@@ -39,6 +45,22 @@ public class ConfigDir extends Directory {
 	protected String defaultDirName;
 	protected String customDirName;
 
+	/**
+	 * Number of file names whose existence is remembered before starting over
+	 */
+	protected static final int MAX_NO_FILE_NAMES = 1024;
+
+	/**
+	 * Whether a file exists, per full file name
+	 */
+	protected final ConcurrentMap<String, Boolean> fileExistences = new ConcurrentHashMap<String, Boolean>();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noHits = new AtomicLong();
+	protected final AtomicLong noMisses = new AtomicLong();
+
 	/**
 	 *
 	 */
@@ -112,7 +134,42 @@ public class ConfigDir extends Directory {
 	 *
 	 */
 	protected boolean doesFileExist(String fullFileName) {
-		return new File(fullFileName).exists();
+		Boolean result = fileExistences.get(fullFileName);
+		if (result != null) {
+			noHits.incrementAndGet();
+			return result;
+		}
+
+		noMisses.incrementAndGet();
+		result = new File(fullFileName).exists();
+		if (fileExistences.size() >= MAX_NO_FILE_NAMES) {
+			fileExistences.clear();
+		}
+		fileExistences.put(fullFileName, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Forgets which files exist, e.g. because config files have been added or removed.
+	 */
+	public void invalidate() {
+		fileExistences.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
 	}
 
 }
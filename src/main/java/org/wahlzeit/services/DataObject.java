@@ -25,6 +25,10 @@ import java.io.Serializable;
 /**
  * A simple abstract implementation of Persistent with write count and dirty bit.
  * Also defines (but does not use) the field "ID" for subclass use.
+ *
+ * Besides the dirty bit, a DataObject tracks which (groups of) fields have changed since the last write, so that
+ * managers only update the dependents of the changed fields. Subclasses define their own field masks next to
+ * PLAIN_FIELDS.
  */
 public abstract class DataObject implements Persistent, Serializable {
 
@@ -33,10 +37,17 @@ public abstract class DataObject implements Persistent, Serializable {
 	 */
 	public static final String ID = "id";
 
+	/**
+	 * Field masks, see incWriteCount(long); PLAIN_FIELDS are fields without dependents
+	 */
+	public static final long PLAIN_FIELDS = 1;
+	public static final long ALL_FIELDS = -1;
+
 	/**
 	 *
 	 */
 	protected transient int writeCount = 0;
+	protected transient long dirtyFields = 0;
 
 	/**
 	 *
@@ -45,18 +56,36 @@ public abstract class DataObject implements Persistent, Serializable {
 		return writeCount != 0;
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if one of the given fields has changed since the last write.
+	 */
+	public final boolean isDirty(long fields) {
+		return (dirtyFields & fields) != 0;
+	}
+
 	/**
 	 *
 	 */
 	public final void resetWriteCount() {
 		writeCount = 0;
+		dirtyFields = 0;
 	}
 
 	/**
-	 *
+	 * Marks all fields as changed, as the object can not tell which ones did.
 	 */
 	public final void incWriteCount() {
+		incWriteCount(ALL_FIELDS);
+	}
+
+	/**
+	 *
+	 */
+	public final void incWriteCount(long fields) {
 		writeCount++;
+		dirtyFields |= fields;
 	}
 
 	/**
@@ -1,11 +1,17 @@
 package org.wahlzeit.services;
 
+import com.google.common.base.Supplier;
 import org.wahlzeit.model.Client;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.UserSession;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 /**
  * Builder class for log messages, that ensures that log messages are all formatted equally.
@@ -14,6 +20,15 @@ import java.io.StringWriter;
  * <code>Formatter</code> could not be used
  *
  * (see https://stackoverflow.com/questions/30345665/how-to-customize-logging-for-google-app-engine-java).
+ *
+ * A LogBuilder only keeps the names and values that are added; the message, including the name of the session and
+ * of its client, is put together when it is emitted. A LogBuilder that is created for a logger and level checks the
+ * level first; if messages of that level are not logged, all adds are ignored and log() does nothing:
+ *
+ * LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("photo", photoId).log();
+ *
+ * Values that are expensive to compute can be passed as a Supplier to addLazyParameter(), which is only asked when
+ * the message is emitted.
  * 
  * @review
  */
@@ -31,11 +46,38 @@ public class LogBuilder {
 	protected static final String EXCEPTION_REASON = "exception reason";
 	protected static final String STACKTRACE = "stacktrace";
 
-	protected StringBuilder logMessage;
+	/**
+	 * Shared by all messages that are not logged; ignores everything
+	 */
+	protected static final LogBuilder DISABLED = new LogBuilder(null, null, null, null, false);
 
+	/**
+	 *
+	 */
+	protected final String level;
+	protected final Session session;
+	protected final Logger logger;
+	protected final Level logLevel;
+	protected final boolean isEnabled;
+
+	/**
+	 * Stands for the name of a message, which has none
+	 */
+	protected static final Object NO_NAME = new Object();
 
-	protected LogBuilder() {
-		logMessage = new StringBuilder();
+	/**
+	 * Names and values, alternating
+	 */
+	protected final List<Object> parts;
+
+
+	protected LogBuilder(String myLevel, Session mySession, Logger myLogger, Level myLogLevel, boolean myIsEnabled) {
+		level = myLevel;
+		session = mySession;
+		logger = myLogger;
+		logLevel = myLogLevel;
+		isEnabled = myIsEnabled;
+		parts = isEnabled ? new ArrayList<Object>(8) : null;
 	}
 
 
@@ -48,52 +90,36 @@ public class LogBuilder {
 	 * clients name.
 	 */
 	public static LogBuilder createUserMessage() {
-		return doCreateMessage(USER_LEVEL);
+		return doCreateMessage(USER_LEVEL, null, null);
 	}
 
 	/**
 	 * @methodtype factory
 	 *
-	 * Primitive Method that creates a LogBuilder Object and adds the Level, the current <code>HttpSession</code>, and
-	 * the clients name.
+	 * Creates a LogBuilder for a user level message that is logged by log(), or one that ignores everything if the
+	 * logger does not log messages of the level.
 	 */
-	protected static LogBuilder doCreateMessage(String level) {
-		LogBuilder result = new LogBuilder();
-		Session session = SessionManager.getThreadLocalSession();
-		String sessionName;
-		String clientName;
-		if (session != null) {
-			sessionName = session.getName();
-			Client client = UserManager.getInstance().getClientById(session.getClientId());
-			if (client != null) {
-				clientName = client.getNickName();
-			} else {
-				clientName = UserSession.ANONYMOUS_CLIENT;
-			}
-		} else {
-			sessionName = Session.NO_SESSION;
-			clientName = UserSession.ANONYMOUS_CLIENT;
-		}
-
-		result.add(LEVEL + NAME_VALUE_SEPARATOR + level);
-		result.add(SESSION + NAME_VALUE_SEPARATOR + sessionName);
-		result.add(CLIENT + NAME_VALUE_SEPARATOR + clientName);
+	public static LogBuilder createUserMessage(Logger logger, Level logLevel) {
+		return logger.isLoggable(logLevel) ? doCreateMessage(USER_LEVEL, logger, logLevel) : DISABLED;
+	}
 
-		return result;
+	/**
+	 * @methodtype factory
+	 *
+	 * Primitive Method that creates a LogBuilder Object for the Level and the current <code>HttpSession</code>; the
+	 * clients name is looked up when the message is put together.
+	 */
+	protected static LogBuilder doCreateMessage(String level, Logger logger, Level logLevel) {
+		return new LogBuilder(level, SessionManager.getThreadLocalSession(), logger, logLevel, true);
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	protected void add(String logMessagePart) {
-
-		assert logMessage != null;
-
-		if (logMessage.length() == 0) {
-			logMessage.append(logMessagePart);
-		} else {
-			logMessage.append(INFO_SEPARATOR);
-			logMessage.append(logMessagePart);
+	protected void add(Object name, Object value) {
+		if (isEnabled) {
+			parts.add(name);
+			parts.add(value);
 		}
 	}
 
@@ -107,7 +133,17 @@ public class LogBuilder {
 	 * clients name.
 	 */
 	public static LogBuilder createSystemMessage() {
-		return doCreateMessage(SYSTEM_LEVEL);
+		return doCreateMessage(SYSTEM_LEVEL, null, null);
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates a LogBuilder for a system level message that is logged by log(), or one that ignores everything if the
+	 * logger does not log messages of the level.
+	 */
+	public static LogBuilder createSystemMessage(Logger logger, Level logLevel) {
+		return logger.isLoggable(logLevel) ? doCreateMessage(SYSTEM_LEVEL, logger, logLevel) : DISABLED;
 	}
 
 	/**
@@ -116,7 +152,7 @@ public class LogBuilder {
 	 * Adds the following to the LogMessage: ", <name>=<value>".
 	 */
 	public LogBuilder addParameter(String name, int value) {
-		add(name + NAME_VALUE_SEPARATOR + String.valueOf(value));
+		add(name, value);
 		return this;
 	}
 
@@ -126,7 +162,7 @@ public class LogBuilder {
 	 * Adds the following to the LogMessage: ", <name>=<value>".
 	 */
 	public LogBuilder addParameter(String name, boolean value) {
-		add(name + NAME_VALUE_SEPARATOR + String.valueOf(value));
+		add(name, value);
 		return this;
 	}
 
@@ -136,7 +172,7 @@ public class LogBuilder {
 	 * Adds the following to the LogMessage: ", <name>=<value>".
 	 */
 	public LogBuilder addParameter(String name, String value) {
-		add(name + NAME_VALUE_SEPARATOR + value);
+		add(name, value);
 		return this;
 	}
 
@@ -146,7 +182,18 @@ public class LogBuilder {
 	 * Adds the following to the LogMessage: ", <name>=<value>.toString()".
 	 */
 	public LogBuilder addParameter(String name, Object value) {
-		add(name + NAME_VALUE_SEPARATOR + value.toString());
+		add(name, value);
+		return this;
+	}
+
+	/**
+	 * @methodtype mutate
+	 *
+	 * Adds the following to the LogMessage: ", <name>=<value>.get()"; the value is only asked for if the message is
+	 * put together.
+	 */
+	public LogBuilder addLazyParameter(String name, Supplier<?> value) {
+		add(name, value);
 		return this;
 	}
 
@@ -156,7 +203,7 @@ public class LogBuilder {
 	 * Adds the message to the LogMessage: ", <message>".
 	 */
 	public LogBuilder addMessage(String message) {
-		add(message);
+		add(NO_NAME, message);
 		return this;
 	}
 
@@ -166,10 +213,8 @@ public class LogBuilder {
 	 * Adds the stacktrace and the <code>exceptionMessage</code> to the log message.
 	 */
 	public LogBuilder addException(String exceptionMessage, Throwable throwable) {
-		add(EXCEPTION_REASON + NAME_VALUE_SEPARATOR + exceptionMessage);
-		StringWriter sw = new StringWriter();
-		throwable.printStackTrace(new PrintWriter(sw));
-		add(STACKTRACE + NAME_VALUE_SEPARATOR + sw.toString());
+		add(EXCEPTION_REASON, exceptionMessage);
+		add(STACKTRACE, throwable);
 		return this;
 	}
 
@@ -182,10 +227,52 @@ public class LogBuilder {
 	 * Adds the info that the action is performed the log message: "action=<action>".
 	 */
 	public LogBuilder addAction(String action) {
-		add(ACTION + NAME_VALUE_SEPARATOR + action);
+		add(ACTION, action);
 		return this;
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEnabled() {
+		return isEnabled;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Puts the message together and logs it, if this LogBuilder has been created for a logger and level.
+	 */
+	public void log() {
+		if (!isEnabled || (logger == null)) {
+			return;
+		}
+
+		LogRecord record = new LogRecord(logLevel, toString());
+		record.setLoggerName(logger.getName());
+		StackTraceElement caller = getCaller();
+		if (caller != null) {
+			record.setSourceClassName(caller.getClassName());
+			record.setSourceMethodName(caller.getMethodName());
+		}
+		logger.log(record);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the stack frame that called log(), as the logger would otherwise report this class.
+	 */
+	protected StackTraceElement getCaller() {
+		String className = LogBuilder.class.getName();
+		for (StackTraceElement element : new Throwable().getStackTrace()) {
+			if (!element.getClassName().equals(className)) {
+				return element;
+			}
+		}
+		return null;
+	}
+
 
 	// hidden setter and getter methods --------------------------------------------------------------------------------
 
@@ -196,10 +283,52 @@ public class LogBuilder {
 	 */
 	@Override
 	public String toString() {
+		if (!isEnabled) {
+			return "";
+		}
+
+		StringBuilder result = new StringBuilder(128);
+		appendPart(result, LEVEL, level);
+		appendPart(result, SESSION, (session != null) ? session.getName() : Session.NO_SESSION);
+		appendPart(result, CLIENT, getClientName());
+		for (int i = 0; i < parts.size(); i += 2) {
+			appendPart(result, parts.get(i), parts.get(i + 1));
+		}
+		return result.toString();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected String getClientName() {
+		if (session != null) {
+			Client client = UserManager.getInstance().getClientById(session.getClientId());
+			if (client != null) {
+				return client.getNickName();
+			}
+		}
+		return UserSession.ANONYMOUS_CLIENT;
+	}
 
-		assert logMessage != null;
-		assert logMessage.length() > 0;
+	/**
+	 * @methodtype command
+	 */
+	protected void appendPart(StringBuilder message, Object name, Object value) {
+		if (message.length() > 0) {
+			message.append(INFO_SEPARATOR);
+		}
+		if (name != NO_NAME) {
+			message.append(name).append(NAME_VALUE_SEPARATOR);
+		}
 
-		return logMessage.toString();
+		if (value instanceof Throwable) {
+			StringWriter sw = new StringWriter();
+			((Throwable) value).printStackTrace(new PrintWriter(sw));
+			message.append(sw.toString());
+		} else if (value instanceof Supplier) {
+			message.append(((Supplier<?>) value).get());
+		} else {
+			message.append(value);
+		}
 	}
 }
@@ -25,6 +25,8 @@ import com.google.appengine.api.datastore.KeyFactory;
 
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -40,6 +42,41 @@ public abstract class ObjectManager {
 
 	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
 
+	/**
+	 * If set, writes are buffered and batched instead of being written one by one; null means write-through.
+	 */
+	protected static volatile WriteBehindBuffer writeBehindBuffer = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static WriteBehindBuffer getWriteBehindBuffer() {
+		return writeBehindBuffer;
+	}
+
+	/**
+	 * @methodtype set
+	 *
+	 * Switches write-behind on (buffer != null) or off (buffer == null). Pending writes of a replaced buffer are
+	 * flushed first.
+	 */
+	public static synchronized void setWriteBehindBuffer(WriteBehindBuffer newBuffer) {
+		flushWrites();
+		writeBehindBuffer = newBuffer;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes all pending writes to the datastore; acts as a barrier for write-behind mode.
+	 */
+	public static void flushWrites() {
+		WriteBehindBuffer buffer = writeBehindBuffer;
+		if (buffer != null) {
+			buffer.flush();
+		}
+	}
+
 
 	/**
 	 * Reads the first Entity with the given key in the Datastore
@@ -48,8 +85,10 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(type, "type");
 		assertIsNonNullArgument(id, "id");
 
-		log.config(LogBuilder.createSystemMessage().
-				addMessage("Load Type " + type.toString() + " with ID " + id + " from datastore.").toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("Datastore: load entity").
+				addParameter("type", type).
+				addParameter("id", id).log();
 		return OfyService.ofy().load().type(type).id(id).now();
 	}
 
@@ -69,8 +108,10 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(type, "type");
 		assertIsNonNullArgument(id, "id");
 
-		log.config(LogBuilder.createSystemMessage().
-				addMessage("Load Type " + type.toString() + " with ID " + id + " from datastore.").toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("Datastore: load entity").
+				addParameter("type", type).
+				addParameter("id", id).log();
 		return OfyService.ofy().load().type(type).id(id).now();
 	}
 
@@ -83,14 +124,54 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(parameterName, "parameterName");
 		assertIsNonNullArgument(value, "value");
 
-		log.config(LogBuilder.createSystemMessage().
-				addMessage("Load Type " + type.toString() + " with parameter " +
-						parameterName + " == " + value + " from datastore.").toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addAction("Datastore: load entity").
+				addParameter("type", type).
+				addParameter(parameterName, value).log();
 
 		return OfyService.ofy().load().type(type).ancestor(applicationRootKey).filter(parameterName, value).first()
 				.now();
 	}
 
+	/**
+	 * Reads all Entities of the specified type with the given ids in one batch, e.g. readObjects(result, Globals.class,
+	 * ids). Ids without an Entity in the Datastore are not contained in the result.
+	 */
+	protected <K, E> void readObjects(Map<K, E> result, Class<E> type, Collection<K> ids) {
+		assertIsNonNullArgument(result, "result");
+		assertIsNonNullArgument(type, "type");
+		assertIsNonNullArgument(ids, "ids");
+
+		if (ids.isEmpty()) {
+			return;
+		}
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Datastore: batch load entities of type", type.getName()).
+				addParameter("number of ids", ids.size()).log();
+		Map<K, E> objects = OfyService.ofy().load().type(type).ids(ids);
+		result.putAll(objects);
+	}
+
+	/**
+	 * Reads all Entities with the given keys in one batch. Keys without an Entity in the Datastore are not contained in
+	 * the result.
+	 */
+	protected <E> void readObjects(Map<com.googlecode.objectify.Key<E>, E> result,
+								   Collection<com.googlecode.objectify.Key<E>> keys) {
+		assertIsNonNullArgument(result, "result");
+		assertIsNonNullArgument(keys, "keys");
+
+		if (keys.isEmpty()) {
+			return;
+		}
+
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Datastore: batch load entities, number of keys", keys.size()).log();
+		Map<com.googlecode.objectify.Key<E>, E> objects = OfyService.ofy().load().keys(keys);
+		result.putAll(objects);
+	}
+
 	/**
 	 * Reads all Entities of the specified type, e.g. readObject(User.class) to get a list of all clients
 	 */
@@ -98,11 +179,11 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(result, "result");
 		assertIsNonNullArgument(type, "type");
 
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Datastore: load all entities of type", type.getName()).toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Datastore: load all entities of type", type.getName()).log();
 		List<E> objects = OfyService.ofy().load().type(type).ancestor(applicationRootKey).list();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Datastore: number of loaded objects", objects.size()).toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Datastore: number of loaded objects", objects.size()).log();
 		result.addAll(objects);
 	}
 
@@ -116,13 +197,14 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(propertyName, "propertyName");
 		assertIsNonNullArgument(value, "value");
 
-		log.info(LogBuilder.createSystemMessage().
-				addMessage("Datastore: Load all Entities of type " + type.toString() + " where parameter "
-						+ propertyName + " = " + value.toString() + " from datastore.").toString());
+		LogBuilder.createSystemMessage(log, Level.INFO).
+				addAction("Datastore: load all entities").
+				addParameter("type", type).
+				addParameter(propertyName, value).log();
 		List<E> objects = OfyService.ofy().load().type(type).
 				ancestor(applicationRootKey).filter(propertyName, value).list();
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("Datastore: number of loaded objects", objects.size()).toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("Datastore: number of loaded objects", objects.size()).log();
 		result.addAll(objects);
 	}
 
@@ -143,20 +225,25 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Writes the given entity to the datastore.
+	 * Writes the given entity to the datastore, or hands it to the write-behind buffer if there is one.
 	 */
 	protected void writeObject(Persistent object) {
 		assertIsNonNullArgument(object, "object");
 
-		if (object.isDirty()) {
-			log.info(LogBuilder.createSystemMessage().
-					addParameter("Datastore: Write object of type", object).toString());
+		WriteBehindBuffer buffer = writeBehindBuffer;
+		if (object.isDirty() && (buffer != null)) {
+			LogBuilder.createSystemMessage(log, Level.CONFIG).
+					addParameter("Datastore: Buffer write of object", object).log();
+			buffer.add(this, object);
+		} else if (object.isDirty()) {
+			LogBuilder.createSystemMessage(log, Level.INFO).
+					addParameter("Datastore: Write object of type", object).log();
 			OfyService.ofy().save().entity(object).now();
 			updateDependents(object);
 			object.resetWriteCount();
 		} else {
-			log.info(LogBuilder.createSystemMessage().
-					addParameter("Datastore: No need to update object", object).toString());
+			LogBuilder.createSystemMessage(log, Level.INFO).
+					addParameter("Datastore: No need to update object", object).log();
 		}
 	}
 
@@ -173,7 +260,11 @@ public abstract class ObjectManager {
 	protected <E> void deleteObject(E object) {
 		assertIsNonNullArgument(object, "object");
 
-		log.config(LogBuilder.createSystemMessage().addParameter("Datastore: delete entity", object).toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("Datastore: delete entity", object).log();
+		WriteBehindBuffer buffer = writeBehindBuffer;
+		if (buffer != null) {
+			buffer.remove(object);
+		}
 		OfyService.ofy().delete().entity(object).now();
 	}
 
@@ -186,11 +277,16 @@ public abstract class ObjectManager {
 		assertIsNonNullArgument(propertyName, "propertyName");
 		assertIsNonNullArgument(value, "value");
 
-		log.info(LogBuilder.createSystemMessage().
-				addMessage("Datastore: delete entities of type " + type
-						+ " where property " + propertyName + " == " + value).toString());
+		LogBuilder.createSystemMessage(log, Level.INFO).
+				addAction("Datastore: delete entities").
+				addParameter("type", type).
+				addParameter(propertyName, value).log();
 		List<com.googlecode.objectify.Key<E>> keys = OfyService.ofy().load().type(type).
 				ancestor(applicationRootKey).filter(propertyName, value).keys().list();
+		WriteBehindBuffer buffer = writeBehindBuffer;
+		if (buffer != null) {
+			buffer.remove(type, keys);
+		}
 		OfyService.ofy().delete().keys(keys);
 	}
 
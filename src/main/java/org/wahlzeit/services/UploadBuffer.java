@@ -0,0 +1,349 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * An UploadBuffer takes up the bytes of one uploaded file while it is streamed in. Bytes are kept in fixed-size chunks
+ * that are shared by all uploads through a pool, so that an upload neither allocates a large buffer up front nor
+ * copies its bytes each time a buffer grows. If an upload exceeds the memory limit, it is spilled to a temporary
+ * file; if it exceeds the size limit, reading stops right away.
+ *
+ * An UploadBuffer belongs to one request; close() returns its chunks to the pool and deletes its temporary file.
+ */
+public class UploadBuffer implements Closeable {
+
+	private static final Logger log = Logger.getLogger(UploadBuffer.class.getName());
+
+	/**
+	 * System properties to tune uploads, e.g. in appengine-web.xml
+	 */
+	public static final String MAX_BYTES_PROPERTY = "wahlzeit.upload.maxBytes";
+	public static final String MAX_MEMORY_BYTES_PROPERTY = "wahlzeit.upload.maxMemoryBytes";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_BYTES = 10L * 1024 * 1024;
+	public static final long DEFAULT_MAX_MEMORY_BYTES = 1024L * 1024;
+
+	/**
+	 *
+	 */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/**
+	 * Number of unused chunks that are kept for later uploads; more are left to the garbage collector
+	 */
+	protected static final int MAX_NO_POOLED_CHUNKS = 256;
+
+	/**
+	 *
+	 */
+	protected static final Queue<byte[]> chunkPool = new ConcurrentLinkedQueue<byte[]>();
+	protected static final AtomicInteger noPooledChunks = new AtomicInteger();
+
+	/**
+	 *
+	 */
+	protected final long maxBytes;
+	protected long maxMemoryBytes;
+	protected final File tempDir;
+
+	/**
+	 * Chunks in memory; all but the last one are full
+	 */
+	protected List<byte[]> chunks = new ArrayList<byte[]>();
+	protected int lastChunkLength = CHUNK_SIZE;
+	protected long noBytes = 0;
+
+	/**
+	 * Temporary file once the upload has been spilled, with the chunk that is used to copy to it
+	 */
+	protected File spillFile = null;
+	protected OutputStream spillStream = null;
+	protected byte[] spillChunk = null;
+
+	/**
+	 *
+	 */
+	public UploadBuffer(long myMaxBytes, long myMaxMemoryBytes, File myTempDir) {
+		if ((myMaxBytes < 0) || (myMaxBytes > Integer.MAX_VALUE - 8)) {
+			throw new IllegalArgumentException("maxBytes should be between 0 and Integer.MAX_VALUE - 8");
+		}
+		if (myMaxMemoryBytes < 0) {
+			throw new IllegalArgumentException("maxMemoryBytes should not be negative");
+		}
+
+		maxBytes = myMaxBytes;
+		maxMemoryBytes = myMaxMemoryBytes;
+		tempDir = myTempDir;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates an UploadBuffer as configured by the system properties that spills to SysConfig.getTempDir().
+	 */
+	public static UploadBuffer createFromSystemProperties() {
+		long max = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+		long maxMemory = Long.getLong(MAX_MEMORY_BYTES_PROPERTY, DEFAULT_MAX_MEMORY_BYTES);
+		return new UploadBuffer(max, maxMemory, new File(SysConfig.getTempDir().asString()));
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoBytes() {
+		return noBytes;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isSpilled() {
+		return spillStream != null;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Reads the input to its end and closes it. Throws SizeLimitExceededException as soon as the input turns out to
+	 * be larger than the size limit.
+	 */
+	public void readFrom(InputStream input) throws IOException {
+		try {
+			while (true) {
+				byte[] chunk;
+				int offset;
+				if (spillStream != null) {
+					chunk = spillChunk;
+					offset = 0;
+				} else {
+					if (lastChunkLength == CHUNK_SIZE) {
+						if ((noBytes >= maxMemoryBytes) && spill()) {
+							continue;
+						}
+						chunks.add(acquireChunk());
+						lastChunkLength = 0;
+					}
+					chunk = chunks.get(chunks.size() - 1);
+					offset = lastChunkLength;
+				}
+
+				int noBytesRead = input.read(chunk, offset, CHUNK_SIZE - offset);
+				if (noBytesRead == -1) {
+					return;
+				}
+
+				noBytes += noBytesRead;
+				if (noBytes > maxBytes) {
+					throw new SizeLimitExceededException(maxBytes);
+				}
+
+				if (spillStream != null) {
+					spillStream.write(chunk, 0, noBytesRead);
+				} else {
+					lastChunkLength += noBytesRead;
+				}
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves the bytes in memory to a temporary file, which the rest of the upload is appended to. Returns false and
+	 * keeps the upload in memory if there is no temporary file, e.g. on a read-only file system.
+	 */
+	protected boolean spill() {
+		File file = null;
+		OutputStream stream = null;
+		try {
+			if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+				throw new IOException("could not create " + tempDir);
+			}
+
+			file = File.createTempFile("upload", ".tmp", tempDir);
+			stream = new FileOutputStream(file);
+			for (int i = 0; i < chunks.size(); i++) {
+				stream.write(chunks.get(i), 0, (i < chunks.size() - 1) ? CHUNK_SIZE : lastChunkLength);
+			}
+		} catch (IOException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("could not spill upload, keeping it in memory", ex).toString());
+			close(stream);
+			if (file != null) {
+				file.delete();
+			}
+			maxMemoryBytes = maxBytes;
+			return false;
+		}
+
+		spillFile = file;
+		spillStream = stream;
+		spillChunk = (chunks.isEmpty()) ? acquireChunk() : chunks.remove(chunks.size() - 1);
+		releaseChunks();
+		return true;
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the uploaded bytes in an array of their exact size.
+	 */
+	public byte[] toByteArray() throws IOException {
+		byte[] result = new byte[(int) noBytes];
+		if (spillStream != null) {
+			spillStream.flush();
+			DataInputStream input = new DataInputStream(new FileInputStream(spillFile));
+			try {
+				input.readFully(result);
+			} finally {
+				input.close();
+			}
+		} else {
+			int offset = 0;
+			for (byte[] chunk : chunks) {
+				int length = Math.min(CHUNK_SIZE, result.length - offset);
+				System.arraycopy(chunk, 0, result, offset, length);
+				offset += length;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void close() {
+		releaseChunks();
+		if (spillChunk != null) {
+			releaseChunk(spillChunk);
+			spillChunk = null;
+		}
+		if (spillStream != null) {
+			close(spillStream);
+			spillStream = null;
+			spillFile.delete();
+			spillFile = null;
+		}
+		noBytes = 0;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void releaseChunks() {
+		for (byte[] chunk : chunks) {
+			releaseChunk(chunk);
+		}
+		chunks.clear();
+		lastChunkLength = CHUNK_SIZE;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected static void close(Closeable closeable) {
+		if (closeable != null) {
+			try {
+				closeable.close();
+			} catch (IOException ex) {
+				// nothing left to do
+			}
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected static byte[] acquireChunk() {
+		byte[] result = chunkPool.poll();
+		if (result == null) {
+			return new byte[CHUNK_SIZE];
+		}
+
+		noPooledChunks.decrementAndGet();
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected static void releaseChunk(byte[] chunk) {
+		if (noPooledChunks.incrementAndGet() <= MAX_NO_POOLED_CHUNKS) {
+			chunkPool.offer(chunk);
+		} else {
+			noPooledChunks.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getNoPooledChunks() {
+		return noPooledChunks.get();
+	}
+
+	/**
+	 * Thrown when an upload is larger than allowed.
+	 */
+	public static class SizeLimitExceededException extends IOException {
+
+		/**
+		 *
+		 */
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 *
+		 */
+		public SizeLimitExceededException(long maxBytes) {
+			super("upload is larger than " + maxBytes + " bytes");
+		}
+	}
+
+}
@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.Key;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A WriteBehindBuffer collects dirty Persistent objects instead of writing them to the datastore one by one. Objects
+ * are coalesced per entity type and written with one batched save per type, either when the buffer is full, when the
+ * oldest pending write is older than the maximum delay, or when flush() is called explicitly. The servlets call
+ * flush() at the end of each request, so the maximum delay only matters within long requests.
+ *
+ * Write-behind is opt-in, see ObjectManager.setWriteBehindBuffer(WriteBehindBuffer).
+ */
+public class WriteBehindBuffer {
+
+	private static final Logger log = Logger.getLogger(WriteBehindBuffer.class.getName());
+
+	/**
+	 * System properties to switch on and tune write-behind, e.g. in appengine-web.xml
+	 */
+	public static final String ENABLED_PROPERTY = "wahlzeit.writeBehind";
+	public static final String MAX_BATCH_SIZE_PROPERTY = "wahlzeit.writeBehind.maxBatchSize";
+	public static final String MAX_DELAY_PROPERTY = "wahlzeit.writeBehind.maxDelay";
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_MAX_BATCH_SIZE = 100;
+	public static final long DEFAULT_MAX_DELAY = 2000; // milliseconds
+
+	/**
+	 *
+	 */
+	protected final int maxBatchSize;
+	protected final long maxDelay;
+
+	/**
+	 * Pending writes per entity type; within a type, writes to the same entity are coalesced
+	 */
+	protected Map<Class<?>, Map<Object, PendingWrite>> pendingWrites =
+			new LinkedHashMap<Class<?>, Map<Object, PendingWrite>>();
+	protected int noPendingWrites = 0;
+	protected long oldestPendingWriteTime = 0;
+
+	/**
+	 * Serializes flushes so that flush() acts as a barrier; adding writes is not blocked by a running flush
+	 */
+	protected final Object flushLock = new Object();
+
+	/**
+	 *
+	 */
+	public WriteBehindBuffer() {
+		this(DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_DELAY);
+	}
+
+	/**
+	 *
+	 */
+	public WriteBehindBuffer(int myMaxBatchSize, long myMaxDelay) {
+		if (myMaxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize should be at least 1");
+		}
+		if (myMaxDelay < 0) {
+			throw new IllegalArgumentException("maxDelay should not be negative");
+		}
+
+		maxBatchSize = myMaxBatchSize;
+		maxDelay = myMaxDelay;
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates a WriteBehindBuffer as configured by the system properties, or returns null if write-behind is off.
+	 */
+	public static WriteBehindBuffer createFromSystemProperties() {
+		if (!Boolean.getBoolean(ENABLED_PROPERTY)) {
+			return null;
+		}
+
+		int batchSize = Integer.getInteger(MAX_BATCH_SIZE_PROPERTY, DEFAULT_MAX_BATCH_SIZE);
+		long delay = Long.getLong(MAX_DELAY_PROPERTY, DEFAULT_MAX_DELAY);
+		return new WriteBehindBuffer(batchSize, delay);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxBatchSize() {
+		return maxBatchSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNoPendingWrites() {
+		return noPendingWrites;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the object to the buffer; the manager is asked to update the dependents once the object has been written.
+	 * Flushes the buffer if it is full or the oldest pending write is due.
+	 */
+	public void add(ObjectManager manager, Persistent object) {
+		boolean isFlushDue;
+		synchronized (this) {
+			doAdd(manager, object);
+			isFlushDue = isFlushDue(System.currentTimeMillis());
+		}
+
+		if (isFlushDue) {
+			flushPendingWrites();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void doAdd(ObjectManager manager, Persistent object) {
+		Class<?> type = object.getClass();
+		Map<Object, PendingWrite> writesOfType = pendingWrites.get(type);
+		if (writesOfType == null) {
+			writesOfType = new LinkedHashMap<Object, PendingWrite>();
+			pendingWrites.put(type, writesOfType);
+		}
+
+		PendingWrite previous = writesOfType.put(getCoalescingKey(object), new PendingWrite(manager, object));
+		if (previous == null) {
+			if (noPendingWrites == 0) {
+				oldestPendingWriteTime = System.currentTimeMillis();
+			}
+			noPendingWrites++;
+		}
+	}
+
+	/**
+	 * Entities that already have an id are coalesced by their datastore key, all others by object identity.
+	 */
+	protected Object getCoalescingKey(Persistent object) {
+		try {
+			return Key.create(object);
+		} catch (IllegalArgumentException ex) {
+			return object; // id not yet allocated
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isFlushDue(long now) {
+		return (noPendingWrites >= maxBatchSize) ||
+				((noPendingWrites > 0) && (now - oldestPendingWriteTime >= maxDelay));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes a pending write, e.g. because the object is about to be deleted.
+	 */
+	public synchronized void remove(Object object) {
+		if (!(object instanceof Persistent)) {
+			return;
+		}
+
+		Map<Object, PendingWrite> writesOfType = pendingWrites.get(object.getClass());
+		if ((writesOfType != null) && (writesOfType.remove(getCoalescingKey((Persistent) object)) != null)) {
+			noPendingWrites--;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes the pending writes of the given type for the given datastore keys, e.g. because the entities are about
+	 * to be deleted by a query.
+	 */
+	public synchronized void remove(Class<?> type, Iterable<?> keys) {
+		Map<Object, PendingWrite> writesOfType = pendingWrites.get(type);
+		if (writesOfType == null) {
+			return;
+		}
+
+		for (Object key : keys) {
+			if (writesOfType.remove(key) != null) {
+				noPendingWrites--;
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes all pending objects, including those that are added while flushing (e.g. dependents). When this method
+	 * returns, everything added before the call has been written to the datastore.
+	 */
+	public void flush() {
+		synchronized (flushLock) {
+			while (doFlushPendingWrites() > 0) {
+				// dependents may have added new writes, so repeat until the buffer is drained
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the objects that are pending right now.
+	 */
+	protected void flushPendingWrites() {
+		synchronized (flushLock) {
+			doFlushPendingWrites();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 *
+	 * If a batch cannot be written, it is put back into the buffer together with all batches not yet written, so that
+	 * the next flush retries them; the exception is passed on.
+	 */
+	protected int doFlushPendingWrites() {
+		Map<Class<?>, Map<Object, PendingWrite>> writes;
+		int noWrites;
+		long oldestWriteTime;
+		synchronized (this) {
+			writes = pendingWrites;
+			noWrites = noPendingWrites;
+			oldestWriteTime = oldestPendingWriteTime;
+			pendingWrites = new LinkedHashMap<Class<?>, Map<Object, PendingWrite>>();
+			noPendingWrites = 0;
+		}
+
+		List<Class<?>> unwrittenTypes = new ArrayList<Class<?>>(writes.keySet());
+		try {
+			for (Map.Entry<Class<?>, Map<Object, PendingWrite>> entry : writes.entrySet()) {
+				writeBatch(entry.getKey(), entry.getValue().values());
+				unwrittenTypes.remove(entry.getKey());
+			}
+		} catch (RuntimeException ex) {
+			for (Class<?> type : unwrittenTypes) {
+				requeue(type, writes.get(type), oldestWriteTime);
+			}
+			throw ex;
+		}
+
+		return noWrites;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Puts writes that could not be written back into the buffer; writes added in the meantime take precedence.
+	 */
+	protected synchronized void requeue(Class<?> type, Map<Object, PendingWrite> writes, long writeTime) {
+		Map<Object, PendingWrite> writesOfType = pendingWrites.get(type);
+		if (writesOfType == null) {
+			writesOfType = new LinkedHashMap<Object, PendingWrite>();
+			pendingWrites.put(type, writesOfType);
+		}
+
+		boolean wasEmpty = (noPendingWrites == 0);
+		for (Map.Entry<Object, PendingWrite> write : writes.entrySet()) {
+			if (!writesOfType.containsKey(write.getKey())) {
+				writesOfType.put(write.getKey(), write.getValue());
+				noPendingWrites++;
+			}
+		}
+
+		if (wasEmpty || (writeTime < oldestPendingWriteTime)) {
+			oldestPendingWriteTime = writeTime;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeBatch(Class<?> type, Iterable<PendingWrite> batch) {
+		List<Persistent> objects = new ArrayList<Persistent>();
+		for (PendingWrite write : batch) {
+			objects.add(write.object);
+		}
+
+		if (objects.isEmpty()) {
+			return;
+		}
+
+		LogBuilder.createSystemMessage(log, Level.INFO).
+				addParameter("Datastore: Write batch of type", type.getName()).
+				addParameter("size", objects.size()).log();
+		OfyService.ofy().save().entities(objects).now();
+
+		for (PendingWrite write : batch) {
+			write.manager.updateDependents(write.object);
+			write.object.resetWriteCount();
+		}
+	}
+
+	/**
+	 * An object waiting to be written, together with the manager that knows about its dependents.
+	 */
+	protected static class PendingWrite {
+
+		protected final ObjectManager manager;
+		protected final Persistent object;
+
+		protected PendingWrite(ObjectManager myManager, Persistent myObject) {
+			manager = myManager;
+			object = myObject;
+		}
+	}
+
+}
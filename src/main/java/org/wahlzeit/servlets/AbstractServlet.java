@@ -20,12 +20,15 @@
 
 package org.wahlzeit.servlets;
 
+import com.google.common.base.Supplier;
 import org.wahlzeit.main.ServiceMain;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.Session;
 import org.wahlzeit.services.SessionManager;
 import org.wahlzeit.utils.StringUtil;
+import org.wahlzeit.webparts.Utf8Writer;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
@@ -38,6 +41,7 @@ import java.io.PrintWriter;
 import java.net.InetAddress;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -80,16 +84,29 @@ public abstract class AbstractServlet extends HttpServlet {
 		request.setCharacterEncoding("UTF-8");
 		response.setCharacterEncoding("UTF-8");
 
+		if (!ServiceMain.getInstance().isShuttingDown() && serveCachedPage(request, response)) {
+			return;
+		}
+
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myGet(request, response);
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myGet(request, response);
+			}
+		} finally {
+			try {
+				if (us != null) {
+					us.saveState();
+				}
+				ObjectManager.flushWrites(); // write-behind barrier, see WriteBehindBuffer
+			} finally {
+				SessionManager.dropThreadLocalSession();
+			}
 		}
-
-		SessionManager.dropThreadLocalSession();
 	}
 
 	/**
@@ -102,13 +119,31 @@ public abstract class AbstractServlet extends HttpServlet {
 		UserSession us = ensureUserSession(request);
 		SessionManager.setThreadLocalSession(us);
 
-		if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
-			displayNullPage(request, response);
-		} else {
-			myPost(request, response);
+		try {
+			if (ServiceMain.getInstance().isShuttingDown() || (us == null)) {
+				displayNullPage(request, response);
+			} else {
+				myPost(request, response);
+			}
+		} finally {
+			try {
+				if (us != null) {
+					us.saveState();
+				}
+				ObjectManager.flushWrites(); // write-behind barrier, see WriteBehindBuffer
+			} finally {
+				SessionManager.dropThreadLocalSession();
+			}
 		}
+	}
 
-		SessionManager.dropThreadLocalSession();
+	/**
+	 * @methodproperty hook
+	 *
+	 * Serves the page from a cache before any session is looked at; returns false if the page is not cached.
+	 */
+	protected boolean serveCachedPage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		return false;
 	}
 
 	/**
@@ -155,6 +190,50 @@ public abstract class AbstractServlet extends HttpServlet {
 		// do nothing
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Evaluates the conditional request headers; If-None-Match takes precedence over If-Modified-Since.
+	 */
+	protected boolean isNotModified(HttpServletRequest request, String eTag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return isMatchingETag(ifNoneMatch, eTag);
+		}
+
+		if (lastModified < 0) {
+			return false;
+		}
+
+		long ifModifiedSince;
+		try {
+			ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		} catch (IllegalArgumentException ex) {
+			return false; // not a date, ignore it
+		}
+
+		// HTTP dates have a resolution of seconds
+		return (ifModifiedSince >= 0) && (lastModified / 1000 <= ifModifiedSince / 1000);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * If-None-Match uses the weak comparison, so W/"x" matches "x".
+	 */
+	protected boolean isMatchingETag(String ifNoneMatch, String eTag) {
+		for (String candidate : ifNoneMatch.split(",")) {
+			candidate = candidate.trim();
+			if (candidate.startsWith("W/")) {
+				candidate = candidate.substring(2);
+			}
+			if (candidate.equals("*") || candidate.equals(eTag)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
 	/**
 	 *
 	 */
@@ -170,7 +249,7 @@ public abstract class AbstractServlet extends HttpServlet {
 	protected void redirectRequest(HttpServletResponse response, String link) throws IOException {
 		response.setContentType("text/html");
 		String newTarget = new String("/" + link + ".html");
-		log.config(LogBuilder.createSystemMessage().addParameter("Redirect to", newTarget).toString());
+		LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("Redirect to", newTarget).log();
 		response.sendRedirect(newTarget);
 	}
 
@@ -178,20 +257,27 @@ public abstract class AbstractServlet extends HttpServlet {
 	 *
 	 */
 	protected void configureResponse(Session ctx, HttpServletResponse response, WebPart result) throws IOException {
-		long processingTime = ctx.getProcessingTime();
-		result.addString("processingTime", StringUtil.asStringInSeconds((processingTime == 0) ? 1 : processingTime));
-		log.config(LogBuilder.createSystemMessage().
-				addParameter("proctime", String.valueOf(processingTime)).toString());
+		addProcessingTime(ctx, result);
 
-		response.setContentType("text/html");
+		response.setContentType("text/html; charset=UTF-8");
 
-		PrintWriter out = response.getWriter();
+		Utf8Writer out = new Utf8Writer(response.getOutputStream());
 		result.writeOn(out);
 		out.close();
 
 		response.setStatus(HttpServletResponse.SC_OK);
 	}
 
+	/**
+	 *
+	 */
+	protected void addProcessingTime(Session ctx, WebPart result) {
+		long processingTime = ctx.getProcessingTime();
+		result.addString("processingTime", StringUtil.asStringInSeconds((processingTime == 0) ? 1 : processingTime));
+		LogBuilder.createSystemMessage(log, Level.CONFIG).
+				addParameter("proctime", processingTime).log();
+	}
+
 	/**
 	 *
 	 */
@@ -210,16 +296,37 @@ public abstract class AbstractServlet extends HttpServlet {
 	 *
 	 */
 	protected String getRequestArgsAsString(UserSession us, Map args) {
-		StringBuffer result = new StringBuffer(96);
+		StringBuilder result = new StringBuilder(96).append('[');
 		for (Iterator i = args.keySet().iterator(); i.hasNext(); ) {
 			String key = i.next().toString();
-			String value = us.getAsString(args, key);
-			result.append(key + "=" + value);
+			result.append(key).append('=').append(us.getAsString(args, key));
 			if (i.hasNext()) {
 				result.append("; ");
 			}
 		}
-		return "[" + result.toString() + "]";
+		return result.append(']').toString();
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the request arguments as string only when asked, i.e. when they are logged.
+	 */
+	protected Supplier<String> getRequestArgsAsLazyString(final UserSession us, final Map<?, ?> args) {
+		return new Supplier<String>() {
+			@Override
+			public String get() {
+				StringBuilder result = new StringBuilder(96).append('[');
+				for (Map.Entry<?, ?> entry : args.entrySet()) {
+					if (result.length() > 1) {
+						result.append("; ");
+					}
+					String key = entry.getKey().toString();
+					result.append(key).append('=').append(us.getAsString(args, key));
+				}
+				return result.append(']').toString();
+			}
+		};
 	}
 
 }
@@ -28,24 +28,26 @@ import org.apache.commons.fileupload.FileItemIterator;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.wahlzeit.handlers.PartUtil;
+import org.wahlzeit.handlers.UploadPhotoFormHandler;
 import org.wahlzeit.handlers.WebFormHandler;
 import org.wahlzeit.handlers.WebPageHandler;
 import org.wahlzeit.handlers.WebPartHandlerManager;
-import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.UploadBuffer;
 import org.wahlzeit.webparts.WebPart;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -60,6 +62,12 @@ public class MainServlet extends AbstractServlet {
 	 */
 	private static final long serialVersionUID = 42L; // any one does; class never serialized
 
+	/**
+	 * The site URL of this installation, e.g. "https://example.org/"; cached guest pages contain links to the site URL,
+	 * so pages are only cached for requests to the configured one
+	 */
+	public static final String SITE_URL_PROPERTY = "wahlzeit.siteUrl";
+
 	/**
 	 *
 	 */
@@ -75,11 +83,11 @@ public class MainServlet extends AbstractServlet {
 		} else {
 			link = PartUtil.NULL_FORM_NAME;
 		}
-		log.info(LogBuilder.createUserMessage().addParameter("posted to", link).toString());
+		LogBuilder.createUserMessage(log, Level.INFO).addParameter("posted to", link).log();
 
 		Map args = getRequestArgs(request, us);
-		log.info(LogBuilder.createSystemMessage().
-				addParameter("POST arguments", getRequestArgsAsString(us, args)).toString());
+		LogBuilder.createSystemMessage(log, Level.INFO).
+				addLazyParameter("POST arguments", getRequestArgsAsLazyString(us, args)).log();
 
 		WebFormHandler formHandler = WebPartHandlerManager.getWebFormHandler(link);
 		link = PartUtil.DEFAULT_PAGE_NAME;
@@ -99,30 +107,29 @@ public class MainServlet extends AbstractServlet {
 		long startTime = System.currentTimeMillis();
 
 		UserSession us = (UserSession) SessionManager.getThreadLocalSession();
-		String link = request.getRequestURI();
-		int linkStart = link.lastIndexOf("/") + 1;
-		int linkEnd = link.indexOf(".html");
-		if (linkEnd == -1) {
-			linkEnd = link.length();
-		}
-
-		link = link.substring(linkStart, linkEnd);
-		log.info(LogBuilder.createUserMessage().addParameter("requested URI", request.getRequestURI()).toString());
+		String link = getPageLink(request);
+		LogBuilder.createUserMessage(log, Level.INFO).addParameter("requested URI", request.getRequestURI()).log();
 
 
 		WebPageHandler handler = WebPartHandlerManager.getWebPageHandler(link);
 		String newLink = PartUtil.DEFAULT_PAGE_NAME;
 		if (handler != null) {
 			Map args = getRequestArgs(request, us);
-			log.info(LogBuilder.createSystemMessage().
-					addParameter("GET arguments", getRequestArgsAsString(us, args)).toString());
+			LogBuilder.createSystemMessage(log, Level.INFO).
+					addLazyParameter("GET arguments", getRequestArgsAsLazyString(us, args)).log();
 			newLink = handler.handleGet(us, link, args);
 		}
 
 		if (newLink.equals(link)) { // no redirect necessary
 			WebPart result = handler.makeWebPart(us);
 			us.addProcessingTime(System.currentTimeMillis() - startTime);
-			configureResponse(us, response, result);
+			if (isCacheablePageRequest(request) && handler.isCacheableForGuests()) {
+				addProcessingTime(us, result);
+				PageCache.CachedPage page = PageCache.getInstance().put(getPageCacheKey(request, link), result);
+				writeCachedPage(request, response, page);
+			} else {
+				configureResponse(us, response, result);
+			}
 			us.clearSavedArgs(); // saved args go from post to next get
 			us.resetProcessingTime();
 		} else {
@@ -132,6 +139,112 @@ public class MainServlet extends AbstractServlet {
 		SessionManager.dropThreadLocalSession();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected String getPageLink(HttpServletRequest request) {
+		String link = request.getRequestURI();
+		int linkStart = link.lastIndexOf("/") + 1;
+		int linkEnd = link.indexOf(".html");
+		if (linkEnd == -1) {
+			linkEnd = link.length();
+		}
+
+		return link.substring(linkStart, linkEnd);
+	}
+
+	/**
+	 * Serves pages that look the same for all new guests from the PageCache, without creating a session.
+	 */
+	@Override
+	protected boolean serveCachedPage(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (!isCacheablePageRequest(request)) {
+			return false;
+		}
+
+		String link = getPageLink(request);
+		WebPageHandler handler = WebPartHandlerManager.getWebPageHandler(link);
+		if ((handler == null) || !handler.isCacheableForGuests()) {
+			return false;
+		}
+
+		PageCache.CachedPage page = PageCache.getInstance().get(getPageCacheKey(request, link));
+		if (page == null) {
+			return false;
+		}
+
+		LogBuilder.createSystemMessage(log, Level.INFO).addParameter("served cached page", link).log();
+		writeCachedPage(request, response, page);
+		return true;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Only requests without a session are sure to come from a new guest. The site URL of a request is taken from the
+	 * client's Host header, so only requests to the configured site URL are cached.
+	 */
+	protected boolean isCacheablePageRequest(HttpServletRequest request) {
+		return (request.getRequestedSessionId() == null) && (request.getQueryString() == null) &&
+				getSiteUrl(request).equals(System.getProperty(SITE_URL_PROPERTY));
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * A new guest's page depends on the language of the request; the site URL is always the configured one.
+	 */
+	protected String getPageCacheKey(HttpServletRequest request, String link) {
+		return link + "|" + request.getLocale().getLanguage();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Sends the page, gzip compressed if the client accepts it, unless the client has it already.
+	 */
+	protected void writeCachedPage(HttpServletRequest request, HttpServletResponse response,
+			PageCache.CachedPage page) throws IOException {
+		response.setHeader("ETag", page.getETag());
+		response.setHeader("Cache-Control", "no-cache");
+		response.setHeader("Vary", "Accept-Encoding, Accept-Language, Cookie");
+
+		if (isNotModified(request, page.getETag(), -1)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		byte[] content = page.getBytes();
+		if (isGzipAccepted(request)) {
+			response.setHeader("Content-Encoding", "gzip");
+			content = page.getGzipBytes();
+		}
+
+		response.setContentType("text/html; charset=UTF-8");
+		response.setContentLength(content.length);
+		OutputStream out = response.getOutputStream();
+		out.write(content);
+		out.close();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isGzipAccepted(HttpServletRequest request) {
+		String acceptEncoding = request.getHeader("Accept-Encoding");
+		if (acceptEncoding == null) {
+			return false;
+		}
+
+		for (String coding : acceptEncoding.split(",")) {
+			String[] parts = coding.trim().split(";");
+			if (parts[0].trim().equalsIgnoreCase("gzip")) {
+				return (parts.length == 1) || !parts[1].trim().matches("q=0(\\.0*)?");
+			}
+		}
+		return false;
+	}
+
 	/**
 	 *
 	 */
@@ -146,11 +259,12 @@ public class MainServlet extends AbstractServlet {
 
 	/**
 	 * Searches for files in the request and puts them in the resulting map with the key "fileName". When a file is
-	 * found, you can access its path by searching for elements with the key "fileName".
+	 * found, you can access its path by searching for elements with the key "fileName", and the uploaded image with
+	 * the key UploadPhotoFormHandler.UPLOADED_IMAGE; the image belongs to this request only.
 	 */
 	protected Map getMultiPartRequestArgs(HttpServletRequest request, UserSession us) throws IOException,
 			ServletException {
-		Map<String, String> result = new HashMap<String, String>();
+		Map<String, Object> result = new HashMap<String, Object>();
 		result.putAll(request.getParameterMap());
 		try {
 			ServletFileUpload upload = new ServletFileUpload();
@@ -163,18 +277,19 @@ public class MainServlet extends AbstractServlet {
 				if (!fileItemStream.isFormField()) {
 					InputStream inputStream = fileItemStream.openStream();
 					Image image = getImage(inputStream);
-					User user = (User) us.getClient();
-					user.setUploadedImage(image);
+					if (image != null) {
+						result.put(UploadPhotoFormHandler.UPLOADED_IMAGE, image);
+					}
 					result.put("fileName", filename);
-					log.config(LogBuilder.createSystemMessage().addParameter("Uploaded image", filename).toString());
+					LogBuilder.createSystemMessage(log, Level.CONFIG).addParameter("Uploaded image", filename).log();
 				} else {
 					String key = fileItemStream.getFieldName();
 					InputStream is = fileItemStream.openStream();
 					String value = CharStreams.toString(new InputStreamReader(is, Charsets.UTF_8));
 					result.put(key, value);
-					log.config(LogBuilder.createSystemMessage().
+					LogBuilder.createSystemMessage(log, Level.CONFIG).
 							addParameter("Key of uploaded parameter", key).
-							addParameter("value", value).toString());
+							addParameter("value", value).log();
 				}
 			}
 		} catch (Exception ex) {
@@ -185,22 +300,20 @@ public class MainServlet extends AbstractServlet {
 	}
 
 	/**
-	 * Create an Image object from the Input stream.
+	 * Create an Image object from the Input stream, or return null if the image is larger than allowed, see
+	 * UploadBuffer.
 	 */
 	private Image getImage(InputStream input) throws IOException {
-		Image image;
+		UploadBuffer buffer = UploadBuffer.createFromSystemProperties();
 		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024 * 1024];
-			int bytesRead = input.read(buffer);
-			while (bytesRead != -1) {
-				outputStream.write(buffer, 0, bytesRead);
-				bytesRead = input.read(buffer);
-			}
-			image = ImagesServiceFactory.makeImage(outputStream.toByteArray());
+			buffer.readFrom(input);
+			return ImagesServiceFactory.makeImage(buffer.toByteArray());
+		} catch (UploadBuffer.SizeLimitExceededException ex) {
+			LogBuilder.createSystemMessage(log, Level.WARNING).
+					addException("rejected uploaded image", ex).log();
+			return null;
 		} finally {
-			input.close();
+			buffer.close();
 		}
-		return image;
 	}
 }
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.servlets;
+
+import com.google.common.io.BaseEncoding;
+import org.wahlzeit.webparts.Utf8Writer;
+import org.wahlzeit.webparts.WebPart;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A PageCache keeps complete pages for new guests, i.e. requests without a session, e.g. the info pages. A page is
+ * kept as UTF-8 bytes, as gzip compressed bytes, and with its entity tag, so that serving it takes neither a session
+ * nor rendering nor compressing. Pages expire after a while, so that changes show up eventually; clear() drops all
+ * of them at once.
+ */
+public class PageCache {
+
+	/**
+	 *
+	 */
+	protected static PageCache instance = null;
+
+	/**
+	 * System property to set how long pages are kept, e.g. in appengine-web.xml
+	 */
+	public static final String MAX_AGE_PROPERTY = "wahlzeit.pageCache.maxAge";
+
+	/**
+	 *
+	 */
+	public static final long DEFAULT_MAX_AGE = 5 * 60 * 1000; // milliseconds
+
+	/**
+	 * Number of pages after which the cache starts over; pages times languages times host names
+	 */
+	public static final int MAX_NO_PAGES = 256;
+
+	/**
+	 *
+	 */
+	protected final long maxAge;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<String, CachedPage> pages = new ConcurrentHashMap<String, CachedPage>();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noHits = new AtomicLong();
+	protected final AtomicLong noMisses = new AtomicLong();
+
+	/**
+	 *
+	 */
+	public PageCache(long myMaxAge) {
+		if (myMaxAge < 0) {
+			throw new IllegalArgumentException("maxAge should not be negative");
+		}
+
+		maxAge = myMaxAge;
+	}
+
+	/**
+	 *
+	 */
+	public static synchronized PageCache getInstance() {
+		if (instance == null) {
+			instance = createFromSystemProperties();
+		}
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	public static synchronized void setInstance(PageCache newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	public static PageCache createFromSystemProperties() {
+		return new PageCache(Long.getLong(MAX_AGE_PROPERTY, DEFAULT_MAX_AGE));
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the page, or null if it is not cached or has expired.
+	 */
+	public CachedPage get(String key) {
+		CachedPage result = pages.get(key);
+		if ((result == null) || (result.creationTime + maxAge < System.currentTimeMillis())) {
+			noMisses.incrementAndGet();
+			return null;
+		}
+
+		noHits.incrementAndGet();
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Renders the page, compresses it, and keeps it; returns the cached page.
+	 */
+	public CachedPage put(String key, WebPart page) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(8 * 1024);
+		Utf8Writer writer = new Utf8Writer(out);
+		page.writeOn(writer);
+		writer.close();
+
+		CachedPage result = new CachedPage(out.toByteArray());
+		if (maxAge > 0) {
+			if (pages.size() >= MAX_NO_PAGES) {
+				pages.clear();
+			}
+			pages.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		pages.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
+	}
+
+	/**
+	 * A rendered page in plain and gzip compressed form.
+	 */
+	public static class CachedPage {
+
+		protected final byte[] bytes;
+		protected final byte[] gzipBytes;
+		protected final String eTag;
+		protected final long creationTime = System.currentTimeMillis();
+
+		protected CachedPage(byte[] myBytes) throws IOException {
+			bytes = myBytes;
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+			GZIPOutputStream gzipOut = new GZIPOutputStream(out);
+			gzipOut.write(bytes);
+			gzipOut.close();
+			gzipBytes = out.toByteArray();
+
+			try {
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+				eTag = "\"" + BaseEncoding.base16().lowerCase().encode(digest.digest(bytes)) + "\"";
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException("MD5 is not supported", ex);
+			}
+		}
+
+		public byte[] getBytes() {
+			return bytes;
+		}
+
+		public byte[] getGzipBytes() {
+			return gzipBytes;
+		}
+
+		public String getETag() {
+			return eTag;
+		}
+
+		public long getCreationTime() {
+			return creationTime;
+		}
+	}
+
+}
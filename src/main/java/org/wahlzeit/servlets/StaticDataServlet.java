@@ -1,6 +1,7 @@
 package org.wahlzeit.servlets;
 
 import com.google.appengine.api.images.Image;
+import com.google.common.io.BaseEncoding;
 import org.apache.http.HttpStatus;
 import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoManager;
@@ -11,7 +12,24 @@ import org.wahlzeit.services.LogBuilder;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -26,6 +44,37 @@ public class StaticDataServlet extends AbstractServlet {
 
 	Logger log = Logger.getLogger(StaticDataServlet.class.getName());
 
+	/**
+	 * Images of a photo never change, so clients and proxies may keep them as long as they like
+	 */
+	protected static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	/**
+	 *
+	 */
+	protected static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+
+	/**
+	 * Content types by photo file ending, see Photo.getEnding()
+	 */
+	protected static final Map<String, String> CONTENT_TYPES = new HashMap<String, String>();
+
+	static {
+		CONTENT_TYPES.put("jpg", "image/jpeg");
+		CONTENT_TYPES.put("jpeg", "image/jpeg");
+		CONTENT_TYPES.put("png", "image/png");
+		CONTENT_TYPES.put("gif", "image/gif");
+		CONTENT_TYPES.put("bmp", "image/bmp");
+		CONTENT_TYPES.put("webp", "image/webp");
+	}
+
+	/**
+	 * Entity tags of images by photo id and size, so that images need not be hashed for each request; images never
+	 * change, so the tags never get stale
+	 */
+	protected static final int MAX_NO_ETAGS = 10000;
+	protected final ConcurrentMap<String, String> eTags = new ConcurrentHashMap<String, String>();
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		try {
@@ -33,59 +82,386 @@ public class StaticDataServlet extends AbstractServlet {
 			String photoId = request.getParameter("photoId");
 			String sizeString = request.getParameter("size");
 			int size = Integer.valueOf(sizeString);
-			log.info(LogBuilder.createSystemMessage().
+			LogBuilder.createSystemMessage(log, Level.INFO).
 					addAction("Provide static resource").
 					addParameter("type", type).
 					addParameter("photoId", photoId).
-					addParameter("size", size).toString());
+					addParameter("size", size).log();
 
 			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
-				if (image != null) {
-					response.getOutputStream().write(image.getImageData());
-					response.getOutputStream().flush();
-					response.setStatus(HttpStatus.SC_OK);
+				Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+				String imageKey = photoId + "-" + size;
+				if (serveNotModified(request, response, photo, size, imageKey)) {
+					return;
+				}
+
+				ImageContent content = getImageContent(photo, photoId, size);
+				if (content != null) {
+					serveImage(request, response, photo, imageKey, content);
 				} else {
-					log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
+					LogBuilder.createSystemMessage(log, Level.WARNING).addMessage("image not found").log();
 					response.setStatus(HttpStatus.SC_NOT_FOUND);
 				}
 			} else {
-				log.warning(LogBuilder.createSystemMessage().
-						addMessage("unimplemented static resource type has been requested").toString());
+				LogBuilder.createSystemMessage(log, Level.WARNING).
+						addMessage("unimplemented static resource type has been requested").log();
 				response.setStatus(HttpStatus.SC_NOT_IMPLEMENTED);
 			}
 
 		} catch (Exception e) {
-			log.severe(LogBuilder.createSystemMessage().addException("Problem when loading image", e).toString());
+			LogBuilder.createSystemMessage(log, Level.SEVERE).addException("Problem when loading image", e).log();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Answers with "304 Not Modified" if the client has the image already and this can be told from the cached entity
+	 * tag or the creation time of the photo, i.e. without loading the image. Only images known to exist qualify, i.e.
+	 * those with a cached entity tag (they have been served before) or of a stored size. Returns false if the image is
+	 * needed, so that missing images still get "404 Not Found".
+	 */
+	protected boolean serveNotModified(HttpServletRequest request, HttpServletResponse response, Photo photo,
+			int size, String imageKey) {
+		String eTag = eTags.get(imageKey);
+		if (eTag == null) {
+			if (!isStoredSize(photo, size)) {
+				return false;
+			}
+			if (request.getHeader("If-None-Match") != null) {
+				return false; // entity tag not known yet, so it must be computed from the image
+			}
+		}
+
+		long lastModified = (photo != null) ? photo.getCreationTime() : -1;
+		if (!isNotModified(request, eTag, lastModified)) {
+			return false;
+		}
+
+		setCacheHeaders(response, eTag, lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+		return true;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isStoredSize(Photo photo, int size) {
+		if ((photo == null) || (size < 0) || (size >= PhotoSize.values().length)) {
+			return false;
+		}
+		return photo.isStoredSize(PhotoSize.getFromInt(size));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Sends the image, or the part of it asked for by a Range header, unless the client has it already.
+	 */
+	protected void serveImage(HttpServletRequest request, HttpServletResponse response, Photo photo, String imageKey,
+			ImageContent content) throws IOException {
+		String eTag = getETag(imageKey, content);
+		long lastModified = (photo != null) ? photo.getCreationTime() : -1;
+		setCacheHeaders(response, eTag, lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+
+		if (isNotModified(request, eTag, lastModified)) {
+			response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+			return;
+		}
+
+		long length = content.getLength();
+		long[] range = null;
+		if (isRangeApplicable(request, eTag, lastModified)) {
+			range = getRange(request.getHeader("Range"), length);
+		}
+
+		if (range == null) {
+			response.setStatus(HttpStatus.SC_OK);
+			response.setContentType(getContentType(photo));
+			response.setContentLength((int) length);
+			writeContent(response, content, 0, length);
+		} else if (range.length == 0) {
+			response.setStatus(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+			response.setHeader("Content-Range", "bytes */" + length);
+		} else {
+			long rangeLength = range[1] - range[0] + 1;
+			response.setStatus(HttpStatus.SC_PARTIAL_CONTENT);
+			response.setContentType(getContentType(photo));
+			response.setHeader("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + length);
+			response.setContentLength((int) rangeLength);
+			writeContent(response, content, range[0], rangeLength);
 		}
 	}
 
 	/**
 	 * @methodtype command
+	 */
+	protected void writeContent(HttpServletResponse response, ImageContent content, long from, long length)
+			throws IOException {
+		OutputStream out = response.getOutputStream();
+		content.writeTo(Channels.newChannel(out), from, length);
+		out.flush();
+	}
+
+	/**
+	 * @methodtype get
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Returns the image bytes from where they can be served with the fewest copies: from the image cache of the
+	 * <@link>PhotoManager</@link>, from a local file of the <@link>ImageStorage</@link>, or else as loaded by the
+	 * PhotoManager. If image does not exist, null is returned.
 	 */
-	private Image getImage(String photoId, int size) {
-		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+	protected ImageContent getImageContent(Photo photo, String photoId, int size) throws IOException {
+		ImageStorage imageStorage = ImageStorage.getInstance();
 		if (photo != null) {
+			PhotoManager photoManager = PhotoManager.getInstance();
 			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
+			if (photo.getImage(photoSize) == null) { // otherwise it has not been written yet
+				ByteBuffer cachedImageData = photoManager.getImageCache().get(photo.getId(), photoSize);
+				if (cachedImageData != null) {
+					return new BufferImageContent(cachedImageData);
+				}
+
+				Path file = imageStorage.getLocalImageFile(photo.getIdAsString(), size);
+				if (file != null) {
+					return new FileImageContent(file);
+				}
+			}
+
+			ByteBuffer imageData = photoManager.getImageData(photo, photoSize);
+			return (imageData != null) ? new BufferImageContent(imageData) : null;
+		}
+
+		// photo is unknown, try the image storage directly
+		Path file = imageStorage.getLocalImageFile(photoId, size);
+		if (file != null) {
+			return new FileImageContent(file);
 		}
-		// if not in cache load from Google Cloud Storage
-		if (image == null) {
-			Serializable rawImage = null;
+
+		Serializable rawImage = null;
+		try {
+			rawImage = ImageStorage.getInstance().readImage(photoId, size);
+		} catch (IOException e) {
+			LogBuilder.createSystemMessage(log, Level.WARNING).addException("Problem when reading image.", e).log();
+		}
+		if (rawImage != null && rawImage instanceof Image) {
+			return new BufferImageContent(ByteBuffer.wrap(((Image) rawImage).getImageData()));
+		}
+		return null;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a strong entity tag derived from the image bytes, so that equal images have equal tags wherever they
+	 * come from.
+	 */
+	protected String getETag(String imageKey, ImageContent content) throws IOException {
+		String result = eTags.get(imageKey);
+		if (result == null) {
 			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
+				MessageDigest digest = MessageDigest.getInstance("MD5");
+				content.updateDigest(digest);
+				result = "\"" + BaseEncoding.base16().lowerCase().encode(digest.digest()) + "\"";
+			} catch (NoSuchAlgorithmException ex) {
+				throw new IllegalStateException("MD5 is not supported", ex);
 			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
+
+			if (eTags.size() >= MAX_NO_ETAGS) {
+				eTags.clear();
 			}
+			eTags.put(imageKey, result);
 		}
-		return image;
+		return result;
 	}
-}
 
+	/**
+	 * @methodtype command
+	 */
+	protected void setCacheHeaders(HttpServletResponse response, String eTag, long lastModified) {
+		if (eTag != null) {
+			response.setHeader("ETag", eTag);
+		}
+		response.setHeader("Cache-Control", CACHE_CONTROL);
+		if (lastModified >= 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * A Range header only applies if there is no If-Range header or it still matches the image.
+	 */
+	protected boolean isRangeApplicable(HttpServletRequest request, String eTag, long lastModified) {
+		if (request.getHeader("Range") == null) {
+			return false;
+		}
+
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			return ifRange.equals(eTag); // strong comparison
+		}
+
+		if (lastModified < 0) {
+			return false;
+		}
+
+		try {
+			return lastModified / 1000 <= request.getDateHeader("If-Range") / 1000;
+		} catch (IllegalArgumentException ex) {
+			return false;
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Parses a Range header with a single byte range, e.g. "bytes=0-499", "bytes=500-" or "bytes=-500", into the first
+	 * and last byte position. Returns null if the header is malformed or asks for several ranges, so that the whole
+	 * image is sent, and an empty array if the range lies outside of the image.
+	 */
+	protected long[] getRange(String rangeHeader, long length) {
+		if (!rangeHeader.startsWith("bytes=") || (rangeHeader.indexOf(',') >= 0)) {
+			return null;
+		}
+
+		String range = rangeHeader.substring("bytes=".length()).trim();
+		int dash = range.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+
+		long first;
+		long last;
+		try {
+			String firstString = range.substring(0, dash).trim();
+			String lastString = range.substring(dash + 1).trim();
+			if (firstString.isEmpty()) {
+				long suffixLength = Long.parseLong(lastString);
+				if (suffixLength <= 0) {
+					return new long[0];
+				}
+				first = Math.max(length - suffixLength, 0);
+				last = length - 1;
+			} else {
+				first = Long.parseLong(firstString);
+				last = lastString.isEmpty() ? length - 1 : Math.min(Long.parseLong(lastString), length - 1);
+			}
+		} catch (NumberFormatException ex) {
+			return null;
+		}
+
+		if ((first < 0) || (first > last)) {
+			return (first >= length) ? new long[0] : null;
+		}
+		return new long[] { first, last };
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected String getContentType(Photo photo) {
+		if (photo == null || photo.getEnding() == null) {
+			return DEFAULT_CONTENT_TYPE;
+		}
+
+		String result = CONTENT_TYPES.get(photo.getEnding().toLowerCase(Locale.ENGLISH));
+		return (result != null) ? result : DEFAULT_CONTENT_TYPE;
+	}
+
+	/**
+	 * The bytes of an image, wherever they are.
+	 */
+	protected abstract static class ImageContent {
+
+		protected abstract long getLength() throws IOException;
+
+		protected abstract void writeTo(WritableByteChannel target, long from, long length) throws IOException;
+
+		protected abstract void updateDigest(MessageDigest digest) throws IOException;
+	}
+
+	/**
+	 * Image bytes in memory, e.g. in the image cache.
+	 */
+	protected static class BufferImageContent extends ImageContent {
+
+		protected final ByteBuffer buffer;
+
+		protected BufferImageContent(ByteBuffer myBuffer) {
+			buffer = myBuffer;
+		}
+
+		@Override
+		protected long getLength() {
+			return buffer.remaining();
+		}
+
+		@Override
+		protected void writeTo(WritableByteChannel target, long from, long length) throws IOException {
+			ByteBuffer part = buffer.duplicate();
+			int start = buffer.position() + (int) from;
+			((Buffer) part).position(start); // Buffer methods, see ImageCache.put()
+			((Buffer) part).limit(start + (int) length);
+			while (part.hasRemaining()) {
+				target.write(part);
+			}
+		}
+
+		@Override
+		protected void updateDigest(MessageDigest digest) {
+			digest.update(buffer.duplicate());
+		}
+	}
+
+	/**
+	 * Image bytes in a local file, which are handed to the target without copying them to the heap.
+	 */
+	protected static class FileImageContent extends ImageContent {
+
+		protected final Path file;
+
+		protected FileImageContent(Path myFile) {
+			file = myFile;
+		}
+
+		@Override
+		protected long getLength() throws IOException {
+			return Files.size(file);
+		}
+
+		@Override
+		protected void writeTo(WritableByteChannel target, long from, long length) throws IOException {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				long position = from;
+				long end = from + length;
+				while (position < end) {
+					long noBytes = channel.transferTo(position, end - position, target);
+					if (noBytes <= 0) {
+						throw new IOException("unexpected end of image file");
+					}
+					position += noBytes;
+				}
+			} finally {
+				channel.close();
+			}
+		}
+
+		@Override
+		protected void updateDigest(MessageDigest digest) throws IOException {
+			FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+			try {
+				digest.update(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+			} finally {
+				channel.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,802 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * A CompressedIntSet is a set of non-negative ints that stays small for sparse as well as for dense values. Values
+ * are grouped by their upper 16 bits; each group is kept as a sorted array while it is small and as a bitmap once it
+ * gets large (the scheme of "Roaring" bitmaps). Set operations work group by group.
+ *
+ * A CompressedIntSet is serialized compactly, e.g. as part of an HttpSession: the values of array groups as
+ * variable-length differences, bitmap groups as is.
+ *
+ * A CompressedIntSet is not thread-safe.
+ */
+public class CompressedIntSet implements Serializable {
+
+	/**
+	 * Bump if the format written by writeObject changes
+	 */
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Groups with more values than this are kept as bitmap
+	 */
+	protected static final int MAX_ARRAY_SIZE = 4096;
+
+	/**
+	 * 65536 bits per group
+	 */
+	protected static final int BITMAP_WORDS = 1024;
+
+	/**
+	 * Upper 16 bits of the values, sorted, and the matching groups
+	 */
+	protected transient int[] keys = new int[4];
+	protected transient Container[] containers = new Container[4];
+	protected transient int noContainers = 0;
+
+	/**
+	 *
+	 */
+	protected transient int cardinality = 0;
+
+	/**
+	 *
+	 */
+	public CompressedIntSet() {
+		// do nothing
+	}
+
+	/**
+	 * Creates a copy of the other set.
+	 */
+	public CompressedIntSet(CompressedIntSet other) {
+		keys = Arrays.copyOf(other.keys, Math.max(other.noContainers, 4));
+		containers = new Container[keys.length];
+		for (int i = 0; i < other.noContainers; i++) {
+			containers[i] = other.containers[i].copy();
+		}
+		noContainers = other.noContainers;
+		cardinality = other.cardinality;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isEmpty() {
+		return cardinality == 0;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int value) {
+		int index = indexOf(value >>> 16);
+		return (value >= 0) && (index >= 0) && containers[index].contains((char) value);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns true if the value has not been in the set before.
+	 */
+	public boolean add(int value) {
+		assertIsNonNegative(value);
+
+		int key = value >>> 16;
+		int index = indexOf(key);
+		if (index < 0) {
+			index = -index - 1;
+			insertContainer(index, key, new Container());
+		}
+
+		boolean result = containers[index].add((char) value);
+		if (result) {
+			cardinality++;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns true if the value has been in the set.
+	 */
+	public boolean remove(int value) {
+		if (value < 0) {
+			return false;
+		}
+
+		int index = indexOf(value >>> 16);
+		if (index < 0) {
+			return false;
+		}
+
+		boolean result = containers[index].remove((char) value);
+		if (result) {
+			cardinality--;
+			if (containers[index].isEmpty()) {
+				removeContainer(index);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		keys = new int[4];
+		containers = new Container[4];
+		noContainers = 0;
+		cardinality = 0;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Keeps only the values that are in the other set, too.
+	 */
+	public void and(CompressedIntSet other) {
+		int[] newKeys = new int[Math.max(Math.min(noContainers, other.noContainers), 4)];
+		Container[] newContainers = new Container[newKeys.length];
+		int n = 0;
+		cardinality = 0;
+
+		int i = 0;
+		int j = 0;
+		while ((i < noContainers) && (j < other.noContainers)) {
+			if (keys[i] < other.keys[j]) {
+				i++;
+			} else if (keys[i] > other.keys[j]) {
+				j++;
+			} else {
+				Container container = containers[i].and(other.containers[j]);
+				if (!container.isEmpty()) {
+					newKeys[n] = keys[i];
+					newContainers[n] = container;
+					cardinality += container.cardinality;
+					n++;
+				}
+				i++;
+				j++;
+			}
+		}
+
+		keys = newKeys;
+		containers = newContainers;
+		noContainers = n;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes all values of the other set.
+	 */
+	public void andNot(CompressedIntSet other) {
+		int n = 0;
+		cardinality = 0;
+
+		int j = 0;
+		for (int i = 0; i < noContainers; i++) {
+			while ((j < other.noContainers) && (other.keys[j] < keys[i])) {
+				j++;
+			}
+
+			Container container = containers[i];
+			if ((j < other.noContainers) && (other.keys[j] == keys[i])) {
+				container = container.andNot(other.containers[j]);
+			}
+
+			if (!container.isEmpty()) {
+				keys[n] = keys[i];
+				containers[n] = container;
+				cardinality += container.cardinality;
+				n++;
+			}
+		}
+
+		Arrays.fill(containers, n, noContainers, null);
+		noContainers = n;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds all values of the other set.
+	 */
+	public void or(CompressedIntSet other) {
+		int[] newKeys = new int[Math.max(noContainers + other.noContainers, 4)];
+		Container[] newContainers = new Container[newKeys.length];
+		int n = 0;
+		cardinality = 0;
+
+		int i = 0;
+		int j = 0;
+		while ((i < noContainers) || (j < other.noContainers)) {
+			Container container;
+			if ((j == other.noContainers) || ((i < noContainers) && (keys[i] < other.keys[j]))) {
+				newKeys[n] = keys[i];
+				container = containers[i++];
+			} else if ((i == noContainers) || (keys[i] > other.keys[j])) {
+				newKeys[n] = other.keys[j];
+				container = other.containers[j++].copy();
+			} else {
+				newKeys[n] = keys[i];
+				container = containers[i++].or(other.containers[j++]);
+			}
+			newContainers[n++] = container;
+			cardinality += container.cardinality;
+		}
+
+		keys = newKeys;
+		containers = newContainers;
+		noContainers = n;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the value with the given rank, i.e. select(0) is the smallest value.
+	 */
+	public int select(int rank) throws IndexOutOfBoundsException {
+		if ((rank < 0) || (rank >= cardinality)) {
+			throw new IndexOutOfBoundsException("rank " + rank + " is not in [0, " + cardinality + ")");
+		}
+
+		for (int i = 0; i < noContainers; i++) {
+			Container container = containers[i];
+			if (rank < container.cardinality) {
+				return (keys[i] << 16) | container.select(rank);
+			}
+			rank -= container.cardinality;
+		}
+
+		throw new IllegalStateException("cardinality does not match containers");
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the smallest value that is equal to or larger than from, or -1 if there is none.
+	 */
+	public int nextValue(int from) {
+		from = Math.max(from, 0);
+		int key = from >>> 16;
+		int index = indexOf(key);
+		if (index >= 0) {
+			int low = containers[index].nextValue(from & 0xFFFF);
+			if (low >= 0) {
+				return (key << 16) | low;
+			}
+			index++;
+		} else {
+			index = -index - 1;
+		}
+
+		if (index < noContainers) {
+			return (keys[index] << 16) | containers[index].nextValue(0);
+		}
+		return -1;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public int[] toArray() {
+		int[] result = new int[cardinality];
+		int n = 0;
+		for (int value = nextValue(0); value >= 0; value = nextValue(value + 1)) {
+			result[n++] = value;
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	public boolean equals(Object o) {
+		if (!(o instanceof CompressedIntSet)) {
+			return false;
+		}
+
+		CompressedIntSet other = (CompressedIntSet) o;
+		return (cardinality == other.cardinality) && Arrays.equals(toArray(), other.toArray());
+	}
+
+	/**
+	 *
+	 */
+	public int hashCode() {
+		return Arrays.hashCode(toArray());
+	}
+
+	/**
+	 *
+	 */
+	public String toString() {
+		return Arrays.toString(toArray());
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		writeVarInt(out, noContainers);
+		for (int i = 0; i < noContainers; i++) {
+			Container container = containers[i];
+			writeVarInt(out, keys[i]);
+			writeVarInt(out, container.cardinality);
+			if (container.cardinality > MAX_ARRAY_SIZE) {
+				for (long word : container.asBits()) {
+					out.writeLong(word);
+				}
+			} else {
+				int previous = 0;
+				for (int value = container.nextValue(0); value >= 0; ) {
+					writeVarInt(out, value - previous);
+					previous = value;
+					value = (value < 0xFFFF) ? container.nextValue(value + 1) : -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		noContainers = readVarInt(in);
+		keys = new int[Math.max(noContainers, 4)];
+		containers = new Container[keys.length];
+		cardinality = 0;
+		for (int i = 0; i < noContainers; i++) {
+			keys[i] = readVarInt(in);
+			int noValues = readVarInt(in);
+			if (noValues > MAX_ARRAY_SIZE) {
+				long[] bits = new long[BITMAP_WORDS];
+				for (int j = 0; j < BITMAP_WORDS; j++) {
+					bits[j] = in.readLong();
+				}
+				containers[i] = Container.fromBits(bits);
+			} else {
+				char[] values = new char[Math.max(noValues, 4)];
+				int value = 0;
+				for (int j = 0; j < noValues; j++) {
+					value += readVarInt(in);
+					values[j] = (char) value;
+				}
+				containers[i] = Container.fromValues(values, noValues);
+			}
+			cardinality += containers[i].cardinality;
+		}
+	}
+
+	/**
+	 * @methodtype conversion
+	 * @methodproperty primitive
+	 *
+	 * Writes the non-negative value in 7 bit groups, least significant first.
+	 */
+	protected static void writeVarInt(ObjectOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	/**
+	 * @methodtype conversion
+	 * @methodproperty primitive
+	 */
+	protected static int readVarInt(ObjectInputStream in) throws IOException {
+		int result = 0;
+		for (int shift = 0; shift < 32; shift += 7) {
+			int b = in.readUnsignedByte();
+			result |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return result;
+			}
+		}
+		throw new IOException("malformed variable-length int");
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperty primitive
+	 *
+	 * Returns the index of the key, or (-(insertion point) - 1) if there is no container for the key.
+	 */
+	protected int indexOf(int key) {
+		return Arrays.binarySearch(keys, 0, noContainers, key);
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void insertContainer(int index, int key, Container container) {
+		if (noContainers == keys.length) {
+			keys = Arrays.copyOf(keys, keys.length * 2);
+			containers = Arrays.copyOf(containers, containers.length * 2);
+		}
+
+		System.arraycopy(keys, index, keys, index + 1, noContainers - index);
+		System.arraycopy(containers, index, containers, index + 1, noContainers - index);
+		keys[index] = key;
+		containers[index] = container;
+		noContainers++;
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void removeContainer(int index) {
+		System.arraycopy(keys, index + 1, keys, index, noContainers - index - 1);
+		System.arraycopy(containers, index + 1, containers, index, noContainers - index - 1);
+		noContainers--;
+		containers[noContainers] = null;
+	}
+
+	/**
+	 * @methodtype assertion
+	 */
+	protected void assertIsNonNegative(int value) throws IllegalArgumentException {
+		if (value < 0) {
+			throw new IllegalArgumentException("value should not be negative: " + value);
+		}
+	}
+
+	/**
+	 * The values of one group, i.e. the lower 16 bits of values with the same upper 16 bits. Either values (sorted)
+	 * or bits is set.
+	 */
+	protected static class Container implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+
+		protected char[] values = new char[4];
+		protected long[] bits = null;
+		protected int cardinality = 0;
+
+		/**
+		 *
+		 */
+		protected Container() {
+			// do nothing
+		}
+
+		/**
+		 * @methodtype factory
+		 */
+		protected static Container fromValues(char[] values, int cardinality) {
+			Container result = new Container();
+			result.values = values;
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		/**
+		 * @methodtype factory
+		 *
+		 * Uses an array instead of the bitmap if there are only few values.
+		 */
+		protected static Container fromBits(long[] bits) {
+			Container result = new Container();
+			result.values = null;
+			result.bits = bits;
+			for (long word : bits) {
+				result.cardinality += Long.bitCount(word);
+			}
+			if (result.cardinality <= MAX_ARRAY_SIZE) {
+				result.toArrayContainer();
+			}
+			return result;
+		}
+
+		/**
+		 * @methodtype factory
+		 */
+		protected Container copy() {
+			Container result = new Container();
+			result.values = (values != null) ? Arrays.copyOf(values, values.length) : null;
+			result.bits = (bits != null) ? Arrays.copyOf(bits, bits.length) : null;
+			result.cardinality = cardinality;
+			return result;
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		protected boolean isEmpty() {
+			return cardinality == 0;
+		}
+
+		/**
+		 * @methodtype boolean-query
+		 */
+		protected boolean contains(char low) {
+			if (bits != null) {
+				return (bits[low >>> 6] & (1L << low)) != 0;
+			}
+			return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected boolean add(char low) {
+			if (bits != null) {
+				long mask = 1L << low;
+				if ((bits[low >>> 6] & mask) != 0) {
+					return false;
+				}
+				bits[low >>> 6] |= mask;
+				cardinality++;
+				return true;
+			}
+
+			int index = Arrays.binarySearch(values, 0, cardinality, low);
+			if (index >= 0) {
+				return false;
+			}
+
+			if (cardinality == MAX_ARRAY_SIZE) {
+				toBitmapContainer();
+				return add(low);
+			}
+
+			index = -index - 1;
+			if (cardinality == values.length) {
+				values = Arrays.copyOf(values, Math.min(values.length * 2, MAX_ARRAY_SIZE));
+			}
+			System.arraycopy(values, index, values, index + 1, cardinality - index);
+			values[index] = low;
+			cardinality++;
+			return true;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected boolean remove(char low) {
+			if (bits != null) {
+				long mask = 1L << low;
+				if ((bits[low >>> 6] & mask) == 0) {
+					return false;
+				}
+				bits[low >>> 6] &= ~mask;
+				cardinality--;
+				if (cardinality <= MAX_ARRAY_SIZE / 2) {
+					toArrayContainer();
+				}
+				return true;
+			}
+
+			int index = Arrays.binarySearch(values, 0, cardinality, low);
+			if (index < 0) {
+				return false;
+			}
+
+			System.arraycopy(values, index + 1, values, index, cardinality - index - 1);
+			cardinality--;
+			return true;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		protected char select(int rank) {
+			if (bits == null) {
+				return values[rank];
+			}
+
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				int wordCardinality = Long.bitCount(bits[i]);
+				if (rank < wordCardinality) {
+					long word = bits[i];
+					for (int k = 0; k < rank; k++) {
+						word &= word - 1; // clear lowest bit
+					}
+					return (char) (i * 64 + Long.numberOfTrailingZeros(word));
+				}
+				rank -= wordCardinality;
+			}
+
+			throw new IllegalStateException("cardinality does not match bits");
+		}
+
+		/**
+		 * @methodtype get
+		 *
+		 * Returns the smallest value >= from, or -1.
+		 */
+		protected int nextValue(int from) {
+			if (bits == null) {
+				int index = Arrays.binarySearch(values, 0, cardinality, (char) from);
+				index = (index >= 0) ? index : -index - 1;
+				return (index < cardinality) ? values[index] : -1;
+			}
+
+			int i = from >>> 6;
+			long word = bits[i] & (-1L << from);
+			while (word == 0) {
+				if (++i == BITMAP_WORDS) {
+					return -1;
+				}
+				word = bits[i];
+			}
+			return i * 64 + Long.numberOfTrailingZeros(word);
+		}
+
+		/**
+		 * @methodtype factory
+		 */
+		protected Container and(Container other) {
+			if (bits == null) {
+				return filter(other, true);
+			} else if (other.bits == null) {
+				return other.filter(this, true);
+			}
+
+			long[] result = new long[BITMAP_WORDS];
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				result[i] = bits[i] & other.bits[i];
+			}
+			return fromBits(result);
+		}
+
+		/**
+		 * @methodtype factory
+		 */
+		protected Container andNot(Container other) {
+			if (bits == null) {
+				return filter(other, false);
+			}
+
+			long[] result = Arrays.copyOf(bits, BITMAP_WORDS);
+			if (other.bits == null) {
+				for (int i = 0; i < other.cardinality; i++) {
+					char low = other.values[i];
+					result[low >>> 6] &= ~(1L << low);
+				}
+			} else {
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					result[i] &= ~other.bits[i];
+				}
+			}
+			return fromBits(result);
+		}
+
+		/**
+		 * @methodtype factory
+		 */
+		protected Container or(Container other) {
+			if ((bits == null) && (other.bits == null) && (cardinality + other.cardinality <= MAX_ARRAY_SIZE)) {
+				char[] result = new char[Math.max(cardinality + other.cardinality, 4)];
+				int n = 0;
+				int i = 0;
+				int j = 0;
+				while ((i < cardinality) || (j < other.cardinality)) {
+					if ((j == other.cardinality) || ((i < cardinality) && (values[i] < other.values[j]))) {
+						result[n++] = values[i++];
+					} else if ((i == cardinality) || (values[i] > other.values[j])) {
+						result[n++] = other.values[j++];
+					} else {
+						result[n++] = values[i++];
+						j++;
+					}
+				}
+				return fromValues(result, n);
+			}
+
+			long[] result = asBits();
+			if (other.bits == null) {
+				for (int i = 0; i < other.cardinality; i++) {
+					char low = other.values[i];
+					result[low >>> 6] |= 1L << low;
+				}
+			} else {
+				for (int i = 0; i < BITMAP_WORDS; i++) {
+					result[i] |= other.bits[i];
+				}
+			}
+			return fromBits(result);
+		}
+
+		/**
+		 * @methodtype factory
+		 *
+		 * Returns the values of this array container that are (or are not) contained in the other container.
+		 */
+		protected Container filter(Container other, boolean isContained) {
+			char[] result = new char[Math.max(cardinality, 4)];
+			int n = 0;
+			for (int i = 0; i < cardinality; i++) {
+				if (other.contains(values[i]) == isContained) {
+					result[n++] = values[i];
+				}
+			}
+			return fromValues(result, n);
+		}
+
+		/**
+		 * @methodtype conversion
+		 */
+		protected long[] asBits() {
+			if (bits != null) {
+				return Arrays.copyOf(bits, BITMAP_WORDS);
+			}
+
+			long[] result = new long[BITMAP_WORDS];
+			for (int i = 0; i < cardinality; i++) {
+				char low = values[i];
+				result[low >>> 6] |= 1L << low;
+			}
+			return result;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void toBitmapContainer() {
+			bits = asBits();
+			values = null;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void toArrayContainer() {
+			char[] newValues = new char[Math.max(cardinality, 4)];
+			int n = 0;
+			for (int i = 0; i < BITMAP_WORDS; i++) {
+				long word = bits[i];
+				while (word != 0) {
+					newValues[n++] = (char) (i * 64 + Long.numberOfTrailingZeros(word));
+					word &= word - 1;
+				}
+			}
+			values = newValues;
+			bits = null;
+		}
+	}
+
+}
@@ -21,6 +21,8 @@
 package org.wahlzeit.utils;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
 
 /**
  * A set of utility functions for HTML formatting.
@@ -105,26 +107,63 @@ public class HtmlUtil {
 	}
 
 	/**
-	 *
+	 * Returns the string with HTML special characters masked; returns the string itself if there are none.
 	 */
 	public static String maskForWeb(String s) {
-		StringBuffer result = new StringBuffer(s.length() + 16);
+		StringBuilder result = null;
+		int start = 0;
 		for (int i = 0; i < s.length(); i++) {
-			char c = s.charAt(i);
-			if (c == '&') {
-				result.append("&amp;");
-			} else if (c == '"') {
-				result.append("&quot;");
-			} else if (c == '<') {
-				result.append("&lt;");
-			} else if (c == '>') {
-				result.append("&gt;");
-			} else {
-				result.append(c);
+			String mask = getMaskForWeb(s.charAt(i));
+			if (mask != null) {
+				if (result == null) {
+					result = new StringBuilder(s.length() + 16);
+				}
+				result.append(s, start, i).append(mask);
+				start = i + 1;
 			}
 		}
 
+		if (result == null) {
+			return s;
+		}
+
+		result.append(s, start, s.length());
 		return result.toString();
 	}
 
+	/**
+	 * Writes the string with HTML special characters masked, in runs between the masked characters.
+	 */
+	public static void maskForWeb(String s, Writer out) throws IOException {
+		int start = 0;
+		for (int i = 0; i < s.length(); i++) {
+			String mask = getMaskForWeb(s.charAt(i));
+			if (mask != null) {
+				out.write(s, start, i - start);
+				out.write(mask);
+				start = i + 1;
+			}
+		}
+
+		out.write(s, start, s.length() - start);
+	}
+
+	/**
+	 * Returns the entity for an HTML special character, or null if the character needs no masking.
+	 */
+	protected static String getMaskForWeb(char c) {
+		switch (c) {
+			case '&':
+				return "&amp;";
+			case '"':
+				return "&quot;";
+			case '<':
+				return "&lt;";
+			case '>':
+				return "&gt;";
+			default:
+				return null;
+		}
+	}
+
 }
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * A Utf8Writer encodes characters as UTF-8 straight into its buffer and writes the buffer to an OutputStream. WebParts
+ * write the text of their templates to it as the bytes that have been encoded when compiling the template, so that
+ * only the values need encoding.
+ */
+public class Utf8Writer extends Writer {
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+	/**
+	 * Written for a surrogate without its other half
+	 */
+	protected static final byte REPLACEMENT = '?';
+
+	/**
+	 *
+	 */
+	protected final OutputStream out;
+	protected final byte[] buffer;
+	protected int count = 0;
+
+	/**
+	 * First half of a surrogate pair whose second half has not been written yet, or 0
+	 */
+	protected char highSurrogate = 0;
+
+	/**
+	 *
+	 */
+	public Utf8Writer(OutputStream myOut) {
+		this(myOut, DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 *
+	 */
+	public Utf8Writer(OutputStream myOut, int bufferSize) {
+		if (bufferSize < 4) {
+			throw new IllegalArgumentException("bufferSize should be at least 4");
+		}
+
+		out = myOut;
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes bytes that are UTF-8 already.
+	 */
+	public void write(byte[] bytes) throws IOException {
+		write(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void write(byte[] bytes, int offset, int length) throws IOException {
+		writePendingSurrogate();
+		if (length > buffer.length - count) {
+			flushBuffer();
+			if (length >= buffer.length) {
+				out.write(bytes, offset, length);
+				return;
+			}
+		}
+
+		System.arraycopy(bytes, offset, buffer, count, length);
+		count += length;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void write(int c) throws IOException {
+		writeChar((char) c);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void write(char[] chars, int offset, int length) throws IOException {
+		for (int i = offset, end = offset + length; i < end; i++) {
+			char c = chars[i];
+			if ((c < 0x80) && (highSurrogate == 0)) {
+				if (count == buffer.length) {
+					flushBuffer();
+				}
+				buffer[count++] = (byte) c;
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void write(String s, int offset, int length) throws IOException {
+		for (int i = offset, end = offset + length; i < end; i++) {
+			char c = s.charAt(i);
+			if ((c < 0x80) && (highSurrogate == 0)) {
+				if (count == buffer.length) {
+					flushBuffer();
+				}
+				buffer[count++] = (byte) c;
+			} else {
+				writeChar(c);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeChar(char c) throws IOException {
+		if (buffer.length - count < 4) {
+			flushBuffer();
+		}
+
+		if (highSurrogate != 0) {
+			if (Character.isLowSurrogate(c)) {
+				int codePoint = Character.toCodePoint(highSurrogate, c);
+				highSurrogate = 0;
+				buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+				buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+				buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+				return;
+			}
+
+			highSurrogate = 0;
+			buffer[count++] = REPLACEMENT;
+			if (buffer.length - count < 3) {
+				flushBuffer();
+			}
+		}
+
+		if (c < 0x80) {
+			buffer[count++] = (byte) c;
+		} else if (c < 0x800) {
+			buffer[count++] = (byte) (0xc0 | (c >> 6));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		} else if (Character.isHighSurrogate(c)) {
+			highSurrogate = c;
+		} else if (Character.isLowSurrogate(c)) {
+			buffer[count++] = REPLACEMENT;
+		} else {
+			buffer[count++] = (byte) (0xe0 | (c >> 12));
+			buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+			buffer[count++] = (byte) (0x80 | (c & 0x3f));
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writePendingSurrogate() throws IOException {
+		if (highSurrogate != 0) {
+			highSurrogate = 0;
+			if (count == buffer.length) {
+				flushBuffer();
+			}
+			buffer[count++] = REPLACEMENT;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void flushBuffer() throws IOException {
+		if (count > 0) {
+			out.write(buffer, 0, count);
+			count = 0;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void close() throws IOException {
+		writePendingSurrogate();
+		flushBuffer();
+		out.close();
+	}
+
+}
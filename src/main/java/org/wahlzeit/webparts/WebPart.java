@@ -32,6 +32,7 @@ import java.util.Map;
  * A WebPart is a Writable formatted as HTML, working off a template.
  * A WebPart has its data set from a client using key/value pairs.
  * A WebPart has a recursive structure; it may contain further WebParts.
+ * The values are kept in an array in the order of the template's value indexes, see WebPartTemplate.
  */
 public class WebPart implements Writable {
 
@@ -41,19 +42,29 @@ public class WebPart implements Writable {
 	protected WebPartTemplate template = null;
 
 	/**
-	 *
+	 * Values indexed by WebPartTemplate.getValueIndex(String)
 	 */
-	protected Map<String, Object> parts = new HashMap<String, Object>();
+	protected Object[] values;
+
+	/**
+	 * Values of keys that the template has no slot for; they are not written
+	 */
+	protected Map<String, Object> otherValues = null;
 
 	/**
 	 *
 	 */
 	public WebPart(WebPartTemplate myTemplate) {
 		template = myTemplate;
+		values = new Object[(template != null) ? template.getNoValues() : 0];
 	}
 
 	public Object getValue(String key) {
-		return parts.get(key);
+		int index = (template != null) ? template.getValueIndex(key) : -1;
+		if (index >= 0) {
+			return values[index];
+		}
+		return (otherValues != null) ? otherValues.get(key) : null;
 	}
 
 	/**
@@ -70,7 +81,7 @@ public class WebPart implements Writable {
 	 */
 	public void maskAndAddString(String key, String value) {
 		if (value != null) {
-			putValue(key, HtmlUtil.maskForWeb(value));
+			putValue(key, new MaskedValue(value));
 		}
 	}
 
@@ -90,7 +101,7 @@ public class WebPart implements Writable {
 	public void maskAndAddStringFromArgs(Map args, String key) {
 		Object value = args.get(key);
 		if (value != null) {
-			addString(key, HtmlUtil.maskForWeb(value.toString()));
+			maskAndAddString(key, value.toString());
 		}
 	}
 
@@ -112,9 +123,9 @@ public class WebPart implements Writable {
 	public void maskAndAddStringFromArgsWithDefault(Map args, String key, String defval) {
 		Object value = args.get(key);
 		if (value != null) {
-			addString(key, HtmlUtil.maskForWeb(value.toString()));
+			maskAndAddString(key, value.toString());
 		} else {
-			addString(key, HtmlUtil.maskForWeb(defval));
+			maskAndAddString(key, defval);
 		}
 	}
 
@@ -169,42 +180,88 @@ public class WebPart implements Writable {
 	 *
 	 */
 	protected void putValue(String key, Object value) {
-		if (value != null) {
-			parts.put(key, value);
+		if (value == null) {
+			return;
+		}
+
+		int index = (template != null) ? template.getValueIndex(key) : -1;
+		if (index >= 0) {
+			values[index] = value;
+		} else {
+			if (otherValues == null) {
+				otherValues = new HashMap<String, Object>();
+			}
+			otherValues.put(key, value);
 		}
 	}
 
 	/**
-	 *
+	 * Writes the template with the values in its slots. A Utf8Writer gets the text of the template as pre-encoded
+	 * bytes.
 	 */
 	public void writeOn(Writer out) throws IOException {
+		if (out instanceof Utf8Writer) {
+			writeOn((Utf8Writer) out);
+			return;
+		}
+
 		String tmpl = template.asString();
-		String[] keys = template.getKeys();
 		int[] slots = template.getSlots();
 
 		int start = 0;
-		for (int i = 0; i < keys.length; i++) {
+		for (int i = 0; i < slots.length; i++) {
 			int index = slots[i];
 			out.write(tmpl, start, index - start);
-
-			String key = keys[i];
-			if (key != null) {
-				Object object = parts.get(key);
-				if (object != null) {
-					if (object instanceof Writable) {
-						Writable part = (Writable) object;
-						part.writeOn(out);
-					} else {
-						String value = object.toString();
-						out.write(value);
-					}
-				}
-			}
-
+			writeValueOn(out, values[template.getValueIndex(i)]);
 			start = index;
 		}
 
 		out.write(tmpl, start, tmpl.length() - start);
 	}
 
+	/**
+	 *
+	 */
+	public void writeOn(Utf8Writer out) throws IOException {
+		int noSlots = template.getNoSlots();
+		for (int i = 0; i < noSlots; i++) {
+			out.write(template.getSegment(i));
+			writeValueOn(out, values[template.getValueIndex(i)]);
+		}
+
+		out.write(template.getSegment(noSlots));
+	}
+
+	/**
+	 *
+	 */
+	protected void writeValueOn(Writer out, Object value) throws IOException {
+		if (value instanceof Writable) {
+			((Writable) value).writeOn(out);
+		} else if (value != null) {
+			out.write(value.toString());
+		}
+	}
+
+	/**
+	 * A string that is masked for HTML when it is written, without creating the masked string.
+	 */
+	protected static class MaskedValue implements Writable {
+
+		protected final String value;
+
+		protected MaskedValue(String myValue) {
+			value = myValue;
+		}
+
+		public void writeOn(Writer out) throws IOException {
+			HtmlUtil.maskForWeb(value, out);
+		}
+
+		@Override
+		public String toString() {
+			return HtmlUtil.maskForWeb(value);
+		}
+	}
+
 }
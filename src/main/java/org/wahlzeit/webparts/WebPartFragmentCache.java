@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The WebPartFragmentCache keeps the rendered output of parts that look the same for all clients with the same
+ * language and access rights, e.g. info boxes and menus, as UTF-8 bytes. Such parts are rendered once instead of
+ * on each request.
+ *
+ * A fragment is keyed by its template (whose name includes the language), a variant such as the access rights, and
+ * the values of the slots it is filled with. A fragment is stale once its template or text has been replaced, so a
+ * reloaded template is picked up without further ado; clear() drops all fragments, e.g. after configurations have
+ * changed.
+ */
+public class WebPartFragmentCache {
+
+	/**
+	 *
+	 */
+	protected static WebPartFragmentCache instance = new WebPartFragmentCache();
+
+	/**
+	 * Number of fragments after which the cache starts over; far more than there are parts, languages, and rights
+	 */
+	public static final int MAX_NO_FRAGMENTS = 1024;
+
+	/**
+	 *
+	 */
+	protected final ConcurrentMap<String, Fragment> fragments = new ConcurrentHashMap<String, Fragment>();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noHits = new AtomicLong();
+	protected final AtomicLong noMisses = new AtomicLong();
+
+	/**
+	 *
+	 */
+	public static WebPartFragmentCache getInstance() {
+		return instance;
+	}
+
+	/**
+	 *
+	 */
+	public static void setInstance(WebPartFragmentCache newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the template rendered with the given values, from the cache if possible.
+	 */
+	public Writable getFragment(WebPartTemplate template, String variant, Map<String, String> values) {
+		String key = template.getName() + "|" + variant + "|" + values;
+		Fragment result = fragments.get(key);
+		if ((result != null) && (result.source == template)) {
+			noHits.incrementAndGet();
+			return result;
+		}
+
+		noMisses.incrementAndGet();
+		WebPart part = new WebPart(template);
+		for (Map.Entry<String, String> entry : values.entrySet()) {
+			part.addString(entry.getKey(), entry.getValue());
+		}
+		result = new Fragment(template, render(part));
+		putFragment(key, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the text, e.g. a menu, as a fragment that does not need encoding anymore.
+	 */
+	public Writable getFragment(String name, String variant, String text) {
+		String key = name + "|" + variant;
+		Fragment result = fragments.get(key);
+		if ((result != null) && (result.source == text)) {
+			noHits.incrementAndGet();
+			return result;
+		}
+
+		noMisses.incrementAndGet();
+		result = new Fragment(text, text.getBytes(StandardCharsets.UTF_8));
+		putFragment(key, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void putFragment(String key, Fragment fragment) {
+		if (fragments.size() >= MAX_NO_FRAGMENTS) {
+			fragments.clear();
+		}
+		fragments.put(key, fragment);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected byte[] render(Writable part) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+		Utf8Writer writer = new Utf8Writer(out);
+		try {
+			part.writeOn(writer);
+			writer.close();
+		} catch (IOException ex) {
+			throw new IllegalStateException("writing to memory failed", ex);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Drops all fragments of the template or text with the given name.
+	 */
+	public void invalidate(String name) {
+		String prefix = name + "|";
+		for (Iterator<String> i = fragments.keySet().iterator(); i.hasNext(); ) {
+			if (i.next().startsWith(prefix)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void clear() {
+		fragments.clear();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoFragments() {
+		return fragments.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoHits() {
+		return noHits.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoMisses() {
+		return noMisses.get();
+	}
+
+	/**
+	 * Rendered output with the template or text it has been rendered from.
+	 */
+	protected static class Fragment implements Writable {
+
+		protected final Object source;
+		protected final byte[] bytes;
+
+		protected Fragment(Object mySource, byte[] myBytes) {
+			source = mySource;
+			bytes = myBytes;
+		}
+
+		public void writeOn(Writer out) throws IOException {
+			if (out instanceof Utf8Writer) {
+				((Utf8Writer) out).write(bytes);
+			} else {
+				out.write(toString());
+			}
+		}
+
+		@Override
+		public String toString() {
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+	}
+
+}
@@ -20,12 +20,18 @@
 
 package org.wahlzeit.webparts;
 
-import java.util.LinkedList;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * A WebPartTmpl is a template for a WebPart.
  * It gets initialized once and is read-only after that.
+ *
+ * Initializing compiles the template: the text between the slots is encoded as UTF-8 once, and each distinct key
+ * gets an index, so that WebParts keep their values in an array and write the text without encoding it again.
  */
 public class WebPartTemplate {
 
@@ -40,11 +46,22 @@ public class WebPartTemplate {
 	protected String template;
 
 	/**
-	 *
+	 * Key and position in the template per slot
 	 */
 	protected String[] keys = null;
 	protected int[] slots = null;
 
+	/**
+	 * Text before each slot and after the last one, as UTF-8
+	 */
+	protected byte[][] segments = null;
+
+	/**
+	 * Value index per slot; a key that occurs in several slots has one index
+	 */
+	protected int[] valueIndexes = null;
+	protected Map<String, Integer> valueIndexesByKey = new HashMap<String, Integer>();
+
 	/**
 	 *
 	 */
@@ -56,39 +73,47 @@ public class WebPartTemplate {
 	 * @methodtype initialization
 	 */
 	public void initialize(String source) {
-		List<String> keyList = new LinkedList<String>();
-		List<Integer> slotList = new LinkedList<Integer>();
-
-		StringBuffer buffer = new StringBuffer(source);
-
-		for (int index = 0; index != -1; ) {
-			int nextSlot = buffer.indexOf("{$", index);
-			if (nextSlot != -1) {
-				int endSlot = buffer.indexOf("}", nextSlot);
-				if (endSlot != -1) {
-					String key = buffer.substring(nextSlot + 2, endSlot);
-
-					keyList.add(key);
-					slotList.add(nextSlot);
-
-					buffer.replace(nextSlot, endSlot + 1, "");
-					index = nextSlot;
-				}
-				index = endSlot;
-			} else {
-				index = -1;
+		List<String> keyList = new ArrayList<String>();
+		List<Integer> slotList = new ArrayList<Integer>();
+
+		StringBuilder buffer = new StringBuilder(source.length());
+		int index = 0;
+		for (int nextSlot = source.indexOf("{$"); nextSlot != -1; nextSlot = source.indexOf("{$", index)) {
+			int endSlot = source.indexOf("}", nextSlot);
+			if (endSlot == -1) {
+				break;
 			}
+
+			buffer.append(source, index, nextSlot);
+			keyList.add(source.substring(nextSlot + 2, endSlot));
+			slotList.add(buffer.length());
+			index = endSlot + 1;
 		}
+		buffer.append(source, index, source.length());
+		template = buffer.toString();
 
 		int length = keyList.size();
 		keys = new String[length];
 		slots = new int[length];
+		segments = new byte[length + 1][];
+		valueIndexes = new int[length];
+		valueIndexesByKey.clear();
+
+		int start = 0;
 		for (int i = 0; i < length; i++) {
 			keys[i] = keyList.get(i);
 			slots[i] = slotList.get(i);
-		}
+			segments[i] = template.substring(start, slots[i]).getBytes(StandardCharsets.UTF_8);
+			start = slots[i];
 
-		template = buffer.toString();
+			Integer valueIndex = valueIndexesByKey.get(keys[i]);
+			if (valueIndex == null) {
+				valueIndex = valueIndexesByKey.size();
+				valueIndexesByKey.put(keys[i], valueIndex);
+			}
+			valueIndexes[i] = valueIndex;
+		}
+		segments[length] = template.substring(start).getBytes(StandardCharsets.UTF_8);
 	}
 
 	/**
@@ -119,4 +144,44 @@ public class WebPartTemplate {
 		return slots; // @FIXME needs cloning?
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public int getNoSlots() {
+		return slots.length;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the UTF-8 encoded text before the slot, or after the last slot for getNoSlots().
+	 */
+	public byte[] getSegment(int i) {
+		return segments[i];
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getValueIndex(int slot) {
+		return valueIndexes[slot];
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the value index of the key, or -1 if the template has no slot for it.
+	 */
+	public int getValueIndex(String key) {
+		Integer result = valueIndexesByKey.get(key);
+		return (result != null) ? result : -1;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoValues() {
+		return valueIndexesByKey.size();
+	}
+
 }
@@ -20,6 +20,7 @@
 
 package org.wahlzeit.webparts;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 import org.wahlzeit.services.ConfigDir;
@@ -27,29 +28,73 @@ import org.wahlzeit.services.LogBuilder;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.logging.Logger;
 
 /**
  * The WebPartTemplateService creates WebPartTemplates upon request by reading them from disk.
  * It requires configuration with a template directory and uses the following naming convention: tmplDir/language/part-type/part-name.html
+ *
+ * At startup, all templates of all languages are read and compiled in parallel, so that no request has to wait for
+ * them. Templates that have not been preloaded, e.g. in tests, are still loaded upon first request.
  */
 public class WebPartTemplateService {
 
+	/**
+	 * System property to reload templates when they change on disk, e.g. in appengine-web.xml for development
+	 */
+	public static final String WATCH_PROPERTY = "wahlzeit.templates.watch";
+
+	/**
+	 *
+	 */
+	public static final String TEMPLATE_FILE_EXTENSION = ".html";
+
+	/**
+	 * Number of threads that compile templates at startup
+	 */
+	protected static final int MAX_NO_LOADING_THREADS = 4;
+
 	/**
 	 *
 	 */
 	protected static final WebPartTemplateService instance = new WebPartTemplateService();
 	private static final Logger log = Logger.getLogger(WebPartTemplateService.class.getName());
 	/**
-	 *
+	 * Templates by short name; the map is never changed but replaced as a whole, so that reading needs no locking
+	 */
+	protected volatile Map<String, WebPartTemplate> templates = Collections.emptyMap();
+	/**
+	 * Short names of templates that could not be loaded, so that they are not looked for on disk with each request
+	 */
+	protected static final int MAX_NO_MISSING_TEMPLATES = 1024;
+	protected final Set<String> missingTemplates = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	/**
+	 * Serializes replacing the templates map, so that concurrent first requests read a template only once
 	 */
-	protected Map<String, WebPartTemplate> templates = new HashMap<String, WebPartTemplate>();
+	protected final Object loadLock = new Object();
 	/**
 	 *
 	 */
 	protected ConfigDir templatesDir = null;
+	/**
+	 *
+	 */
+	protected WebPartTemplateWatcher watcher = null;
 
 	/**
 	 *
@@ -72,14 +117,20 @@ public class WebPartTemplateService {
 		String shortName = lang + File.separator + name;
 		WebPartTemplate result = templates.get(shortName);
 
-		if (result == null) {
-			try {
-				loadTemplate(shortName);
+		if ((result == null) && !missingTemplates.contains(shortName)) {
+			synchronized (loadLock) {
 				result = templates.get(shortName);
-			} catch (IOException ioex) {
-				log.warning(LogBuilder.createSystemMessage().
-						addParameter("template name", shortName).
-						addException("Problem loading template", ioex).toString());
+				if ((result == null) && !missingTemplates.contains(shortName)) {
+					try {
+						loadTemplate(shortName);
+						result = templates.get(shortName);
+					} catch (IOException ioex) {
+						addMissingTemplate(shortName);
+						log.warning(LogBuilder.createSystemMessage().
+								addParameter("template name", shortName).
+								addException("Problem loading template", ioex).toString());
+					}
+				}
 			}
 		}
 
@@ -90,26 +141,255 @@ public class WebPartTemplateService {
 	 *
 	 */
 	protected void loadTemplate(String shortName) throws IOException {
-		WebPartTemplate template = new WebPartTemplate(shortName);
-		String fileName = getTemplatesDir().getAbsoluteConfigFileName(shortName + ".html");
+		String fileName = getTemplatesDir().getAbsoluteConfigFileName(shortName + TEMPLATE_FILE_EXTENSION);
+		loadTemplate(shortName, new File(fileName));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Publishes a copy of the templates map with the template added; callers hold the loadLock.
+	 */
+	protected void loadTemplate(String shortName, File file) throws IOException {
+		WebPartTemplate template = createTemplate(shortName, file);
+		Map<String, WebPartTemplate> newTemplates = new HashMap<String, WebPartTemplate>(templates);
+		newTemplates.put(shortName, template);
+		templates = Collections.unmodifiableMap(newTemplates);
+		missingTemplates.remove(shortName);
+		WebPartFragmentCache.getInstance().invalidate(shortName);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addMissingTemplate(String shortName) {
+		if (missingTemplates.size() >= MAX_NO_MISSING_TEMPLATES) {
+			missingTemplates.clear();
+		}
+		missingTemplates.add(shortName);
+	}
+
+	/**
+	 * @methodtype factory
+	 */
+	protected WebPartTemplate createTemplate(String shortName, File file) throws IOException {
+		WebPartTemplate result = new WebPartTemplate(shortName);
 		log.config(LogBuilder.createSystemMessage().
 				addAction("open html template file").
-				addParameter("file name", fileName).toString());
-		File file = new File(fileName);
+				addParameter("file name", file.getPath()).toString());
+
+		String source = Files.toString(file, Charsets.UTF_8);
+		if (source != null) {
+			result.initialize(source);
+			log.config(LogBuilder.createSystemMessage().addAction("Initialize template").toString());
+		}
+
+		return result;
+	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Reads and compiles all templates of the languages in parallel and replaces the ones loaded so far. Templates in
+	 * the default directory take precedence over those in the custom directory, as for all config files.
+	 */
+	public void preloadTemplates(Collection<String> langs) {
+		Map<String, File> files = new LinkedHashMap<String, File>();
+		for (String lang : langs) {
+			collectTemplateFiles(files, lang, new File(getTemplatesDir().getAbsoluteCustomConfigFileName(lang)));
+			collectTemplateFiles(files, lang, new File(getTemplatesDir().getAbsoluteDefaultConfigFileName(lang)));
+		}
+
+		Map<String, WebPartTemplate> newTemplates = createTemplates(files);
+		synchronized (loadLock) {
+			templates = Collections.unmodifiableMap(newTemplates);
+			missingTemplates.clear();
+		}
+		WebPartFragmentCache.getInstance().clear();
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("Preload templates").
+				addParameter("number of templates", newTemplates.size()).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the template files below the language directory, keyed by short name; a later file replaces an earlier one.
+	 */
+	protected void collectTemplateFiles(Map<String, File> files, String lang, File langDir) {
+		collectTemplateFiles(files, lang, langDir, "");
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected void collectTemplateFiles(Map<String, File> files, String lang, File dir, String prefix) {
+		File[] children = dir.listFiles();
+		if (children == null) {
+			return; // no such directory
+		}
+
+		for (File child : children) {
+			String childName = child.getName();
+			if (child.isDirectory()) {
+				collectTemplateFiles(files, lang, child, prefix + childName + "/");
+			} else if (childName.endsWith(TEMPLATE_FILE_EXTENSION)) {
+				String name = childName.substring(0, childName.length() - TEMPLATE_FILE_EXTENSION.length());
+				files.put(lang + File.separator + prefix + name, child);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Compiles the templates with a few threads; if no threads can be started, compiles them in the calling thread.
+	 */
+	protected Map<String, WebPartTemplate> createTemplates(Map<String, File> files) {
+		Map<String, WebPartTemplate> result = new LinkedHashMap<String, WebPartTemplate>();
+
+		ExecutorService executor = null;
+		try {
+			executor = Executors.newFixedThreadPool(MAX_NO_LOADING_THREADS, getThreadFactory());
+			List<Future<WebPartTemplate>> futures = new ArrayList<Future<WebPartTemplate>>(files.size());
+			for (final Map.Entry<String, File> entry : files.entrySet()) {
+				futures.add(executor.submit(new Callable<WebPartTemplate>() {
+					@Override
+					public WebPartTemplate call() throws IOException {
+						return createTemplate(entry.getKey(), entry.getValue());
+					}
+				}));
+			}
+
+			int i = 0;
+			for (Map.Entry<String, File> entry : files.entrySet()) {
+				addTemplate(result, entry.getKey(), futures.get(i++));
+			}
+		} catch (RuntimeException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Could not start loading threads, loading templates in calling thread", ex).toString());
+			for (Map.Entry<String, File> entry : files.entrySet()) {
+				if (!result.containsKey(entry.getKey())) {
+					addTemplate(result, entry.getKey(), entry.getValue());
+				}
+			}
+		} finally {
+			if (executor != null) {
+				executor.shutdownNow();
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addTemplate(Map<String, WebPartTemplate> result, String shortName, Future<WebPartTemplate> future) {
 		try {
-			String source = Files.toString(file, Charsets.UTF_8);
-			//String source = Resources.toString(Resources.getResource(fileName), Charsets.UTF_8);
+			result.put(shortName, future.get());
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt(); // left to be loaded upon request
+		} catch (ExecutionException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("template name", shortName).
+					addException("Problem loading template", ex.getCause()).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addTemplate(Map<String, WebPartTemplate> result, String shortName, File file) {
+		try {
+			result.put(shortName, createTemplate(shortName, file));
+		} catch (IOException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("template name", shortName).
+					addException("Problem loading template", ex).toString());
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * App Engine only allows threads that are bound to the current request; outside of App Engine, e.g. in tests,
+	 * plain threads are used.
+	 */
+	protected ThreadFactory getThreadFactory() {
+		try {
+			return ThreadManager.currentRequestThreadFactory();
+		} catch (RuntimeException ex) {
+			return Executors.defaultThreadFactory();
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean hasTemplate(String lang, String name) {
+		return templates.containsKey(lang + File.separator + name);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoTemplates() {
+		return templates.size();
+	}
 
-			if (source != null) {
-				template.initialize(source);
-				log.config(LogBuilder.createSystemMessage().addAction("Initialize template").toString());
+	/**
+	 * @methodtype command
+	 *
+	 * Reloads the template from the file that has changed, if it is still the one in effect for its short name.
+	 */
+	public void reloadTemplate(String shortName) {
+		synchronized (loadLock) {
+			try {
+				loadTemplate(shortName);
+			} catch (IOException ioex) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("template name", shortName).
+						addException("Problem reloading template", ioex).toString());
 			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Starts watching the template directories if requested by system property; meant for development only.
+	 */
+	public void startWatchingIfRequested() {
+		if (Boolean.getBoolean(WATCH_PROPERTY)) {
+			startWatching();
+		}
+	}
 
-			templates.put(shortName, template);
-		} catch (IOException e) {
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void startWatching() {
+		stopWatching();
+		try {
+			watcher = new WebPartTemplateWatcher(this, getTemplatesDir());
+			watcher.start();
+		} catch (IOException | RuntimeException ex) {
+			watcher = null;
 			log.warning(LogBuilder.createSystemMessage().
-					addException("I/O Error while reading Template file", e).toString());
+					addException("Could not watch template directories", ex).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void stopWatching() {
+		if (watcher != null) {
+			watcher.stop();
+			watcher = null;
 		}
 	}
 
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import org.wahlzeit.services.ConfigDir;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+/**
+ * A WebPartTemplateWatcher reloads templates when their files change, so that template changes show without a
+ * restart during development. It watches the language directories below the default and custom template directories
+ * from a daemon thread of its own.
+ */
+public class WebPartTemplateWatcher implements Runnable {
+
+	private static final Logger log = Logger.getLogger(WebPartTemplateWatcher.class.getName());
+
+	/**
+	 *
+	 */
+	protected final WebPartTemplateService templateService;
+	protected final ConfigDir templatesDir;
+	protected final WatchService watchService;
+
+	/**
+	 * Short name prefix (e.g. "en/pages/") per watched directory
+	 */
+	protected final Map<WatchKey, String> prefixes = new ConcurrentHashMap<WatchKey, String>();
+
+	/**
+	 *
+	 */
+	protected Thread thread = null;
+
+	/**
+	 *
+	 */
+	public WebPartTemplateWatcher(WebPartTemplateService myTemplateService, ConfigDir myTemplatesDir) throws IOException {
+		templateService = myTemplateService;
+		templatesDir = myTemplatesDir;
+		watchService = FileSystems.getDefault().newWatchService();
+		registerLanguageDirs(new File(templatesDir.getAbsoluteDefaultConfigFileName("")));
+		registerLanguageDirs(new File(templatesDir.getAbsoluteCustomConfigFileName("")));
+	}
+
+	/**
+	 * @methodtype initialization
+	 */
+	protected void registerLanguageDirs(File dir) throws IOException {
+		File[] langDirs = dir.listFiles();
+		if (langDirs == null) {
+			return; // no such directory
+		}
+
+		for (File langDir : langDirs) {
+			if (langDir.isDirectory()) {
+				registerDirs(langDir, langDir.getName() + File.separator);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype initialization
+	 */
+	protected void registerDirs(File dir, String prefix) throws IOException {
+		WatchKey key = dir.toPath().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+				StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		prefixes.put(key, prefix);
+
+		File[] children = dir.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				if (child.isDirectory()) {
+					registerDirs(child, prefix + child.getName() + "/");
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void start() {
+		thread = new Thread(this, "template watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void stop() {
+		try {
+			watchService.close();
+		} catch (IOException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Problem closing watch service", ex).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void run() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				String prefix = prefixes.get(key);
+				if (prefix != null) {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						handleEvent(prefix, event);
+					}
+				}
+				if (!key.reset()) {
+					prefixes.remove(key);
+				}
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException ex) {
+			// stopped
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void handleEvent(String prefix, WatchEvent<?> event) {
+		Object context = event.context();
+		if (!(context instanceof Path)) {
+			return; // overflow, nothing to tell which template changed
+		}
+
+		if (event.kind() != StandardWatchEventKinds.ENTRY_MODIFY) {
+			templatesDir.invalidate(); // may change whether the default or the custom template is in effect
+		}
+
+		String fileName = context.toString();
+		String extension = WebPartTemplateService.TEMPLATE_FILE_EXTENSION;
+		if (fileName.endsWith(extension)) {
+			String shortName = prefix + fileName.substring(0, fileName.length() - extension.length());
+			log.config(LogBuilder.createSystemMessage().
+					addAction("Reload changed template").
+					addParameter("template name", shortName).toString());
+			templateService.reloadTemplate(shortName);
+		}
+	}
+
+}
@@ -28,6 +28,7 @@ import org.wahlzeit.managers.ManagerTestSuite;
 import org.wahlzeit.model.ModelTestSuite;
 import org.wahlzeit.services.ServiceTestSuite;
 import org.wahlzeit.utils.UtilTestSuite;
+import org.wahlzeit.webparts.WebPartTestSuite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
@@ -36,6 +37,7 @@ import org.wahlzeit.utils.UtilTestSuite;
 	ServiceTestSuite.class,
 	UtilTestSuite.class,
 	ManagerTestSuite.class,
+	WebPartTestSuite.class,
 })
 public class AllTests {
 	// Remains empty, only used to hold annotations (see B02 p23)
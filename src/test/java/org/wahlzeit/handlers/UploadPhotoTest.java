@@ -60,10 +60,11 @@ public class UploadPhotoTest {
 		WebPart part = handler.makeWebPart(session);
 		// no failure is good behavior
 
-		Map<String, String> args = new HashMap<String, String>();
+		Map<String, Object> args = new HashMap<String, Object>();
 		args.put(UploadPhotoFormHandler.CAR_MAKE, "Jaguar");
 		args.put(UploadPhotoFormHandler.CAR_MODEL, "F-Pace");
 		args.put(UploadPhotoFormHandler.CAR_YEAR, "2013");
+		args.put(UploadPhotoFormHandler.UPLOADED_IMAGE, PrivilegedUserSessionProvider.getTestImage());
 		handler.handlePost(session, args);
 
 		part = handler.makeWebPart(session);
@@ -24,8 +24,18 @@ package org.wahlzeit.managers;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
 
 import org.junit.After;
 import org.junit.Before;
@@ -36,13 +46,18 @@ import org.wahlzeit.model.CarManager;
 import org.wahlzeit.model.CarPhoto;
 import org.wahlzeit.model.CarPhotoManager;
 import org.wahlzeit.model.CarType;
+import org.wahlzeit.model.ImageResizer;
+import org.wahlzeit.model.JavaImageResizer;
+import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
 import org.wahlzeit.model.persistence.ImageStorage;
 
+import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.googlecode.objectify.ObjectifyService;
@@ -129,6 +144,68 @@ public class CarPhotoManagerTest {
 
 	}
 
+	@Test
+	public void testGetPhotosLoadsPhotosMissingInCache() throws IOException {
+
+		photoManager.addPhoto(carPhoto);
+		photoManager.addPhoto(carPhoto2);
+		photoManager.savePhoto(carPhoto);
+		photoManager.savePhoto(carPhoto2);
+
+		// evict both photos from the cache, their keys are still known
+		photoManager.getPhotoCache().remove(carPhoto.getId());
+		photoManager.getPhotoCache().remove(carPhoto2.getId());
+
+		PhotoId unknownId = PhotoId.getNextId();
+		Map<PhotoId, Photo> photos = photoManager.getPhotos(Arrays.asList(carPhoto.getId(), carPhoto2.getId(), unknownId));
+
+		assertEquals(2, photos.size());
+		assertFalse(photos.containsKey(unknownId));
+		assertEquals(carPhoto.getCar().getModel(), ((CarPhoto) photos.get(carPhoto.getId())).getCar().getModel());
+		assertEquals(carPhoto2.getCar().getModel(), ((CarPhoto) photos.get(carPhoto2.getId())).getCar().getModel());
+		assertTrue(photoManager.getPhotoCache().containsKey(carPhoto2.getId()));
+	}
+
+	@Test
+	public void testGetImageLoadsImageOnDemand() throws IOException {
+
+		ImageStorage.getInstance().writeImage(ImagesServiceFactory.makeImage(ByteBuffer.allocate(1024).array()),
+				carPhoto.getIdAsString(), PhotoSize.THUMB.asInt());
+
+		assertNull(photoManager.getImageCache().get(carPhoto.getId(), PhotoSize.THUMB));
+		assertNotNull(photoManager.getImage(carPhoto, PhotoSize.THUMB));
+		assertNull(carPhoto.getImage(PhotoSize.THUMB));
+		assertNotNull(photoManager.getImageCache().get(carPhoto.getId(), PhotoSize.THUMB));
+		assertNull(photoManager.getImage(carPhoto, PhotoSize.LARGE));
+		assertTrue(carPhoto.isStoredSize(PhotoSize.THUMB));
+		assertFalse(carPhoto.isStoredSize(PhotoSize.LARGE));
+	}
+
+	@Test
+	public void testGetImageCreatesMissingSizeFromOriginal() throws IOException {
+
+		ImageResizer<?> resizer = ImageResizer.getInstance();
+		ImageResizer.setInstance(new JavaImageResizer());
+		try {
+			BufferedImage bufferedImage = new BufferedImage(1000, 800, BufferedImage.TYPE_INT_RGB);
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ImageIO.write(bufferedImage, "png", out);
+			ImageStorage.getInstance().writeOriginalImage(ImagesServiceFactory.makeImage(out.toByteArray()),
+					carPhoto.getIdAsString());
+
+			carPhoto.setWidthAndHeight(1000, 800);
+			carPhoto.setStoredSizes(Photo.ORIGINAL_IMAGE_BIT | PhotoSize.THUMB.asBit());
+			photoManager.addPhoto(carPhoto);
+
+			assertNotNull(photoManager.getImage(carPhoto, PhotoSize.MEDIUM));
+			assertTrue(carPhoto.isStoredSize(PhotoSize.MEDIUM));
+			assertFalse(carPhoto.isStoredSize(PhotoSize.LARGE));
+			assertNotNull(ImageStorage.getInstance().readImage(carPhoto.getIdAsString(), PhotoSize.MEDIUM.asInt()));
+		} finally {
+			ImageResizer.setInstance(resizer);
+		}
+	}
+
 	@Test
 	public void testHasPhotoReturnsFalseIfPhotoDoesNotExist() {
 
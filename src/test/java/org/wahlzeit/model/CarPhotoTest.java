@@ -23,7 +23,9 @@
 package org.wahlzeit.model;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 
 import java.util.Calendar;
 
@@ -82,4 +84,38 @@ public class CarPhotoTest {
 
 	}
 
+	@Test
+	public void testPraiseDoesNotMarkFieldsWithDependents() {
+		CarPhoto photo = new CarPhoto(ford);
+		photo.resetWriteCount();
+
+		photo.addToPraise(5);
+
+		assertTrue(photo.isDirty());
+		assertTrue(photo.isDirty(Photo.PLAIN_FIELDS));
+		assertFalse(photo.isDirty(Photo.TAGS_FIELD | Photo.IMAGES_FIELD | Photo.OWNER_FIELD));
+	}
+
+	@Test
+	public void testSetOwnerIdMarksOwnerAndTags() {
+		CarPhoto photo = new CarPhoto(ford);
+		photo.resetWriteCount();
+
+		photo.setOwnerId("tommy");
+
+		assertTrue(photo.isDirty(Photo.OWNER_FIELD));
+		assertTrue(photo.isDirty(Photo.TAGS_FIELD));
+		assertFalse(photo.isDirty(Photo.IMAGES_FIELD));
+	}
+
+	@Test
+	public void testResetWriteCountClearsDirtyFields() {
+		CarPhoto photo = new CarPhoto(ford);
+		assertTrue(photo.isDirty(Photo.TAGS_FIELD));
+
+		photo.resetWriteCount();
+
+		assertFalse(photo.isDirty());
+		assertFalse(photo.isDirty(Photo.ALL_FIELDS));
+	}
 }
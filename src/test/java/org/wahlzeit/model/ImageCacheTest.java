@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ImageCache class.
+ */
+public class ImageCacheTest {
+
+	private ImageCache imageCache;
+
+	@Before
+	public void initImageCache() {
+		imageCache = new ImageCache(100 * 1000);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetReturnsCachedBytes() {
+		PhotoId photoId = PhotoId.getNextId();
+		byte[] imageData = { 1, 2, 3, 4 };
+
+		assertNull(imageCache.get(photoId, PhotoSize.THUMB));
+		assertTrue(imageCache.put(photoId, PhotoSize.THUMB, imageData));
+
+		ByteBuffer buffer = imageCache.get(photoId, PhotoSize.THUMB);
+		assertNotNull(buffer);
+		assertTrue(buffer.isDirect());
+		assertTrue(buffer.isReadOnly());
+		byte[] result = new byte[buffer.remaining()];
+		buffer.get(result);
+		assertEquals(ByteBuffer.wrap(imageData), ByteBuffer.wrap(result));
+		assertEquals(1, imageCache.getNoHits());
+		assertEquals(1, imageCache.getNoMisses());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLargeSizesAreAdmittedOnSecondRequest() {
+		PhotoId photoId = PhotoId.getNextId();
+		byte[] imageData = new byte[1000];
+
+		assertFalse(imageCache.put(photoId, PhotoSize.EXTRA_LARGE, imageData));
+		assertNull(imageCache.get(photoId, PhotoSize.EXTRA_LARGE));
+		assertTrue(imageCache.put(photoId, PhotoSize.EXTRA_LARGE, imageData));
+		assertNotNull(imageCache.get(photoId, PhotoSize.EXTRA_LARGE));
+		assertEquals(1, imageCache.getNoRejections());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsLeastRecentlyUsedImagesOfSameSize() {
+		long maxBytes = imageCache.getMaxBytes(PhotoSize.THUMB);
+		byte[] imageData = new byte[(int) (maxBytes / 4)];
+		PhotoId[] photoIds = new PhotoId[5];
+		for (int i = 0; i < photoIds.length; i++) {
+			photoIds[i] = PhotoId.getNextId();
+		}
+
+		PhotoId smallPhotoId = PhotoId.getNextId();
+		imageCache.put(smallPhotoId, PhotoSize.SMALL, new byte[100]);
+		for (int i = 0; i < 4; i++) {
+			imageCache.put(photoIds[i], PhotoSize.THUMB, imageData);
+		}
+		imageCache.get(photoIds[0], PhotoSize.THUMB);
+		imageCache.put(photoIds[4], PhotoSize.THUMB, imageData);
+
+		assertEquals(1, imageCache.getNoEvictions());
+		assertNull(imageCache.get(photoIds[1], PhotoSize.THUMB));
+		assertNotNull(imageCache.get(photoIds[0], PhotoSize.THUMB));
+		assertNotNull(imageCache.get(smallPhotoId, PhotoSize.SMALL));
+		assertTrue(imageCache.getNoBytes() <= imageCache.getMaxBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemoveDropsAllSizes() {
+		PhotoId photoId = PhotoId.getNextId();
+		imageCache.put(photoId, PhotoSize.THUMB, new byte[10]);
+		imageCache.put(photoId, PhotoSize.SMALL, new byte[20]);
+		assertEquals(30, imageCache.getNoBytes());
+
+		imageCache.remove(photoId);
+		assertNull(imageCache.get(photoId, PhotoSize.THUMB));
+		assertNull(imageCache.get(photoId, PhotoSize.SMALL));
+		assertEquals(0, imageCache.getNoBytes());
+	}
+
+}
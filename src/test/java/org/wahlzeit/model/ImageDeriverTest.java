@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for the ImageDeriver class, using the JavaImageResizer.
+ */
+public class ImageDeriverTest {
+
+	private ImageResizer<?> oldResizer;
+	private ImageDeriver imageDeriver;
+
+	@Before
+	public void setUp() {
+		oldResizer = ImageResizer.getInstance();
+		ImageResizer.setInstance(new JavaImageResizer());
+		imageDeriver = new ImageDeriver(2);
+	}
+
+	@After
+	public void tearDown() {
+		ImageResizer.setInstance(oldResizer);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSizesAreScaledInChains() {
+		List<List<PhotoSize>> chains = imageDeriver.getChains(EnumSet.allOf(PhotoSize.class));
+
+		assertEquals(2, chains.size());
+		assertEquals(Arrays.asList(PhotoSize.EXTRA_LARGE, PhotoSize.MEDIUM, PhotoSize.EXTRA_SMALL, PhotoSize.THUMB),
+				chains.get(0));
+		assertEquals(Arrays.asList(PhotoSize.LARGE, PhotoSize.SMALL), chains.get(1));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDeriveImages() throws IOException {
+		Image source = createImage(1000, 1500);
+		Map<PhotoSize, Image> images = imageDeriver.deriveImages(source, EnumSet.allOf(PhotoSize.class));
+
+		assertEquals(PhotoSize.values().length, images.size());
+		for (PhotoSize size : PhotoSize.values()) {
+			Image image = images.get(size);
+			assertEquals(size.calcAdjustedWidth(1000, 1500), image.getWidth());
+			assertEquals(size.calcAdjustedHeight(1000, 1500), image.getHeight());
+			assertEquals(Image.Format.PNG, image.getFormat());
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected Image createImage(int width, int height) throws IOException {
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ImageIO.write(image, "png", out);
+		return ImagesServiceFactory.makeImage(out.toByteArray());
+	}
+
+}
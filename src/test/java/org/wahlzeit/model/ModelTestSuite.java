@@ -41,7 +41,12 @@ import org.wahlzeit.model.persistence.PersistenceModelTestSuite;
 	CarPhotoFactoryTest.class,
 	LocationTest.class,
 	PhotoFilterTest.class,
+	PhotoTagIndexTest.class,
+	PhotoCacheTest.class,
+	ImageCacheTest.class,
+	ImageDeriverTest.class,
 	TagsTest.class,
+	UserSessionStateTest.class,
 	UserStatusTest.class,
 	ValueTest.class,
 	PersistenceModelTestSuite.class,
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the PhotoCache class.
+ */
+public class PhotoCacheTest {
+
+	private PhotoCache photoCache;
+
+	@Before
+	public void initPhotoCache() {
+		photoCache = new PhotoCache(3, 60 * 1000);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetCountsHitsAndMisses() {
+		Photo photo = createPhoto();
+		photoCache.put(photo.getId(), photo);
+
+		assertSame(photo, photoCache.get(photo.getId()));
+		assertNull(photoCache.get(PhotoId.getNextId()));
+
+		assertEquals(1, photoCache.getNoHits());
+		assertEquals(1, photoCache.getNoMisses());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsLeastFrequentlyUsedPhoto() {
+		Photo[] photos = new Photo[4];
+		for (int i = 0; i < photos.length; i++) {
+			photos[i] = createPhoto();
+		}
+
+		for (int i = 0; i < 3; i++) {
+			photoCache.put(photos[i].getId(), photos[i]);
+		}
+		for (int i = 0; i < 5; i++) {
+			photoCache.get(photos[0].getId());
+			photoCache.get(photos[2].getId());
+		}
+
+		photoCache.put(photos[3].getId(), photos[3]);
+
+		assertEquals(3, photoCache.size());
+		assertEquals(1, photoCache.getNoEvictions());
+		assertFalse(photoCache.containsKey(photos[1].getId()));
+		assertTrue(photoCache.containsKey(photos[0].getId()));
+		assertTrue(photoCache.containsKey(photos[2].getId()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testDoesNotEvictDirtyPhotos() {
+		Photo[] photos = new Photo[4];
+		for (int i = 0; i < photos.length; i++) {
+			photos[i] = new Photo(PhotoId.getNextId()); // not saved, so dirty
+			photoCache.put(photos[i].getId(), photos[i]);
+		}
+
+		assertEquals(4, photoCache.size());
+		assertEquals(0, photoCache.getNoEvictions());
+
+		photos[0].resetWriteCount();
+		photoCache.put(PhotoId.getNextId(), createPhoto());
+		assertFalse(photoCache.containsKey(photos[0].getId()));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMissingPhotoIdsExpire() {
+		PhotoId photoId = PhotoId.getNextId();
+		assertFalse(photoCache.isMissingPhotoId(photoId));
+
+		photoCache.putMissingPhotoId(photoId);
+		assertTrue(photoCache.isMissingPhotoId(photoId));
+		assertEquals(1, photoCache.getNoMissingPhotoHits());
+
+		Photo photo = new Photo(photoId);
+		photoCache.put(photoId, photo);
+		assertFalse(photoCache.isMissingPhotoId(photoId));
+
+		PhotoCache expiringCache = new PhotoCache(3, 0);
+		expiringCache.putMissingPhotoId(photoId);
+		assertFalse(expiringCache.isMissingPhotoId(photoId));
+	}
+
+	/**
+	 *
+	 */
+	protected Photo createPhoto() {
+		Photo result = new Photo(PhotoId.getNextId());
+		result.resetWriteCount();
+		return result;
+	}
+
+}
@@ -22,6 +22,11 @@ package org.wahlzeit.model;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -46,8 +51,8 @@ public class PhotoFilterTest {
 		assertEquals("", photoFilter.userName);
 		assertEquals(Tags.EMPTY_TAGS, photoFilter.tags);
 
-		assertEquals(0, photoFilter.processedPhotoIds.size());
-		assertEquals(0, photoFilter.displayablePhotoIds.size());
+		assertEquals(0, photoFilter.processedPhotoIds.cardinality());
+		assertEquals(0, photoFilter.displayablePhotoIds.cardinality());
 	}
 
 	/**
@@ -70,11 +75,11 @@ public class PhotoFilterTest {
 		photoFilter.setTags(new Tags("test"));
 		assertEquals("test", photoFilter.getTags().asString());
 
-		photoFilter.displayablePhotoIds.add(new PhotoId(3));
-		assertTrue(photoFilter.displayablePhotoIds.size() == 1);
+		photoFilter.displayablePhotoIds.add(3);
+		assertTrue(photoFilter.displayablePhotoIds.cardinality() == 1);
 
-		photoFilter.processedPhotoIds.add(new PhotoId(2));
-		assertTrue(photoFilter.processedPhotoIds.size() == 1);
+		photoFilter.processedPhotoIds.add(2);
+		assertTrue(photoFilter.processedPhotoIds.cardinality() == 1);
 
 		photoFilter.clear();
 
@@ -84,4 +89,87 @@ public class PhotoFilterTest {
 		assertTrue(photoFilter.processedPhotoIds.isEmpty());
 	}
 
+	/**
+	 *
+	 */
+	@Test
+	public void testFilteredPhotoIdsExcludeProcessedAndSkippedPhotos() {
+		Photo[] photos = createPhotos(3, "filtertest");
+
+		try {
+			photoFilter.setTags(new Tags("filtertest"));
+			photoFilter.addProcessedPhoto(photos[0]);
+			photoFilter.addSkippedPhotoId(photos[1].getId());
+
+			photoFilter.generateDisplayablePhotoIds();
+			assertArrayEquals(new int[] { photos[2].getId().asInt() }, photoFilter.getDisplayablePhotoIds().toArray());
+
+			// only skipped photos are left, so these are shown again
+			photoFilter.addProcessedPhoto(photos[2]);
+			photoFilter.generateDisplayablePhotoIds();
+			assertArrayEquals(new int[] { photos[1].getId().asInt() }, photoFilter.getDisplayablePhotoIds().toArray());
+		} finally {
+			removePhotos(photos);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRandomDisplayablePhotoIdSkipsProcessedAndInvisiblePhotos() {
+		Photo[] photos = createPhotos(4, "samplertest");
+
+		try {
+			photoFilter.setTags(new Tags("samplertest"));
+			photoFilter.addProcessedPhoto(photos[0]);
+			photos[1].setStatus(PhotoStatus.FLAGGED);
+
+			Set<PhotoId> shownPhotoIds = new HashSet<PhotoId>();
+			for (int i = 0; i < 100; i++) {
+				shownPhotoIds.add(photoFilter.getRandomDisplayablePhotoId());
+			}
+			assertEquals(new HashSet<PhotoId>(Arrays.asList(photos[2].getId(), photos[3].getId())), shownPhotoIds);
+
+			// status changes are picked up without resetting the filter
+			photos[1].setStatus(PhotoStatus.VISIBLE);
+			photoFilter.addProcessedPhoto(photos[2]);
+			photoFilter.addProcessedPhoto(photos[3]);
+			assertEquals(photos[1].getId(), photoFilter.getRandomDisplayablePhotoId());
+
+			photoFilter.addProcessedPhoto(photos[1]);
+			assertEquals(PhotoId.NULL_ID, photoFilter.getRandomDisplayablePhotoId());
+		} finally {
+			removePhotos(photos);
+		}
+	}
+
+	/**
+	 *
+	 */
+	protected Photo[] createPhotos(int noPhotos, String tag) {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		Photo[] photos = new Photo[noPhotos];
+		for (int i = 0; i < photos.length; i++) {
+			photos[i] = new Photo(PhotoId.getNextId());
+			photos[i].setTags(new Tags(tag));
+			photoManager.getPhotoCache().put(photos[i].getId(), photos[i]);
+			photoManager.getPhotoTagIndex().update(photos[i]);
+			photoManager.updateDisplayablePhotoId(photos[i]);
+		}
+		return photos;
+	}
+
+	/**
+	 *
+	 */
+	protected void removePhotos(Photo[] photos) {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		for (Photo photo : photos) {
+			photoManager.getPhotoCache().remove(photo.getId());
+			photoManager.getPhotoTagIndex().remove(photo.getId());
+			photoManager.updateDisplayablePhotoId(photo);
+		}
+	}
+
 }
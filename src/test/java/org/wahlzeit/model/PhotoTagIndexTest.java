@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for the PhotoTagIndex class.
+ */
+public class PhotoTagIndexTest {
+
+	private PhotoTagIndex photoTagIndex;
+
+	private Photo flowerPhoto;
+	private Photo treePhoto;
+
+	@Before
+	public void initPhotoTagIndex() {
+		photoTagIndex = new PhotoTagIndex(new PhotoTagCollector());
+
+		flowerPhoto = new Photo(new PhotoId(3));
+		flowerPhoto.setOwnerId("tommy");
+		flowerPhoto.setTags(new Tags("flower, red"));
+
+		treePhoto = new Photo(new PhotoId(70000));
+		treePhoto.setOwnerId("anna");
+		treePhoto.setTags(new Tags("tree, red"));
+
+		photoTagIndex.rebuild(Arrays.asList(flowerPhoto, treePhoto));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRebuild() {
+		assertArrayEquals(new int[] { 3 }, photoTagIndex.getPhotoIds("tg:flower").toArray());
+		assertArrayEquals(new int[] { 3 }, photoTagIndex.getPhotoIds("un:tommy").toArray());
+		assertArrayEquals(new int[] { 3, 70000 }, photoTagIndex.getPhotoIds("tg:red").toArray());
+		assertEquals(0, photoTagIndex.getNoPhotoIds("tg:blue"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUpdateRemovesOldTags() {
+		flowerPhoto.setTags(new Tags("blue"));
+		photoTagIndex.update(flowerPhoto);
+
+		assertEquals(0, photoTagIndex.getNoPhotoIds("tg:flower"));
+		assertArrayEquals(new int[] { 70000 }, photoTagIndex.getPhotoIds("tg:red").toArray());
+		assertArrayEquals(new int[] { 3 }, photoTagIndex.getPhotoIds("tg:blue").toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetPhotoIdsWithAllTags() {
+		assertArrayEquals(new int[] { 3, 70000 }, photoTagIndex.getPhotoIdsWithAllTags(Arrays.asList("tg:red")).toArray());
+		assertArrayEquals(new int[] { 70000 },
+				photoTagIndex.getPhotoIdsWithAllTags(Arrays.asList("tg:red", "un:anna")).toArray());
+		assertEquals(0, photoTagIndex.getPhotoIdsWithAllTags(Arrays.asList("tg:red", "tg:none")).cardinality());
+		assertEquals(0, photoTagIndex.getPhotoIdsWithAllTags(Arrays.asList("tg:flower", "tg:tree")).cardinality());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReturnedSetIsACopy() {
+		photoTagIndex.getPhotoIds("tg:red").add(5);
+
+		assertEquals(2, photoTagIndex.getNoPhotoIds("tg:red"));
+	}
+
+}
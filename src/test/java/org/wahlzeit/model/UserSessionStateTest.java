@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the UserSessionState class.
+ */
+public class UserSessionStateTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOnlyChangesMakeStateDirty() {
+		UserSessionState state = new UserSessionState();
+		state.setClientId("anna");
+		state.setSavedArg(UserSession.MESSAGE, "hello");
+		assertTrue(state.isDirty());
+
+		state.resetDirty();
+		assertFalse(state.isDirty());
+		assertEquals(1, state.getVersion());
+
+		state.setClientId("anna");
+		state.setSavedArg(UserSession.MESSAGE, "hello");
+		state.setMessage(null);
+		state.clearPraisedPhotoIds();
+		assertFalse(state.isDirty());
+
+		state.setSavedArg(UserSession.MESSAGE, "bye");
+		assertTrue(state.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testChangedPhotoFilterMakesStateDirty() {
+		UserSessionState state = new UserSessionState();
+		PhotoFilter photoFilter = new PhotoFilter();
+		state.setPhotoFilter(photoFilter);
+		state.resetDirty();
+		assertFalse(state.isDirty());
+
+		photoFilter.addSkippedPhotoId(new PhotoId(7));
+		assertTrue(state.isDirty());
+
+		state.resetDirty();
+		photoFilter.addSkippedPhotoId(new PhotoId(7));
+		assertFalse(state.isDirty());
+		assertEquals(2, state.getVersion());
+	}
+
+}
@@ -5,6 +5,7 @@ import com.google.appengine.api.images.ImagesServiceFactory;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.wahlzeit.model.PhotoSize;
 
 import java.io.IOException;
 import java.io.Serializable;
@@ -128,4 +129,19 @@ public abstract class AbstractAdapterTest {
 		exists = imageStorage.doesImageExist("wrong file name", 1);
 		assert !exists;
 	}
+
+	@Test
+	public void testGetStoredSizes() {
+		assert imageStorage.getStoredSizes("noSizes") == 0;
+
+		try {
+			imageStorage.writeImage(smallTestImage, "someSizes", PhotoSize.THUMB.asInt());
+			imageStorage.writeImage(smallTestImage, "someSizes", PhotoSize.MEDIUM.asInt());
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+
+		int storedSizes = imageStorage.getStoredSizes("someSizes");
+		assert storedSizes == (PhotoSize.THUMB.asBit() | PhotoSize.MEDIUM.asBit());
+	}
 }
@@ -2,16 +2,24 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.RuleChain;
 import org.junit.rules.TestRule;
+import org.wahlzeit.model.persistence.DatastoreAdapter.ImageChunk;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
 import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -26,6 +34,7 @@ public class DatastoreAdapterTest extends AbstractAdapterTest {
 			outerRule(new LocalDatastoreServiceTestConfigProvider()).
 			around(new RegisteredOfyEnvironmentProvider());
 
+	private Image largeTestImage;
 	private Image tooLargeTestImage;
 
 
@@ -33,7 +42,13 @@ public class DatastoreAdapterTest extends AbstractAdapterTest {
 	protected void storageDependentSetUp() {
 		imageStorage = new DatastoreAdapter();
 
-		ByteBuffer bb = ByteBuffer.allocate(1024 * 1025);
+		ByteBuffer bb = ByteBuffer.allocate(1024 * 1024 * 3 + 5);
+		for (int i = 0; i < bb.capacity(); i++) {
+			bb.put(i, (byte) i);
+		}
+		largeTestImage = ImagesServiceFactory.makeImage(bb.array());
+
+		bb = ByteBuffer.allocate(DatastoreAdapter.MAX_IMAGE_SIZE + 1);
 		tooLargeTestImage = ImagesServiceFactory.makeImage(bb.array());
 	}
 
@@ -46,4 +61,49 @@ public class DatastoreAdapterTest extends AbstractAdapterTest {
 			fail("IOException should not be thrown!");
 		}
 	}
+
+	@Test
+	public void testLargeImageIsStoredInChunks() throws IOException {
+		imageStorage.writeImage(largeTestImage, "large", 4);
+
+		assertEquals(4, countChunks("large4"));
+		assertTrue(imageStorage.doesImageExist("large", 4));
+		Image image = (Image) imageStorage.readImage("large", 4);
+		assertArrayEquals(largeTestImage.getImageData(), image.getImageData());
+	}
+
+	@Test
+	public void testOverwritingLargeImageDeletesChunks() throws IOException {
+		imageStorage.writeImage(largeTestImage, "overwritten", 4);
+		imageStorage.writeImage(smallTestImage, "overwritten", 4);
+
+		assertEquals(0, countChunks("overwritten4"));
+		Image image = (Image) imageStorage.readImage("overwritten", 4);
+		assertArrayEquals(smallTestImage.getImageData(), image.getImageData());
+	}
+
+	@Test
+	public void testOverwritingLargeImageReplacesChunks() throws IOException {
+		imageStorage.writeImage(largeTestImage, "replaced", 4);
+		imageStorage.writeImage(largeTestImage, "replaced", 4);
+
+		assertEquals(4, countChunks("replaced4"));
+		Image image = (Image) imageStorage.readImage("replaced", 4);
+		assertArrayEquals(largeTestImage.getImageData(), image.getImageData());
+	}
+
+	/**
+	 *
+	 */
+	private int countChunks(final String imageId) {
+		return ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				return OfyService.ofy().load().type(ImageChunk.class).
+						filterKey(">=", Key.create(ImageChunk.class, ImageChunk.getFirstId(imageId))).
+						filterKey("<", Key.create(ImageChunk.class, ImageChunk.getLastId(imageId))).
+						keys().list().size();
+			}
+		});
+	}
 }
@@ -0,0 +1,69 @@
+package org.wahlzeit.model.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link FileSystemAdapter}
+ */
+public class FileSystemAdapterTest extends AbstractAdapterTest {
+
+	@Rule
+	public TemporaryFolder photosDir = new TemporaryFolder();
+
+	@Override
+	protected void storageDependentSetUp() {
+		imageStorage = new FileSystemAdapter(photosDir.getRoot().toPath());
+	}
+
+	@Test
+	public void testImagesOfPhotoShareShardDirectory() {
+		try {
+			imageStorage.writeImage(smallTestImage, "x1a", 0);
+			imageStorage.writeImage(smallTestImage, "x1a", 3);
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+
+		Path thumbFile = ((FileSystemAdapter) imageStorage).getImageFile("x1a", 0);
+		Path mediumFile = ((FileSystemAdapter) imageStorage).getImageFile("x1a", 3);
+		assertTrue(thumbFile.toFile().isFile());
+		assertEquals(thumbFile.getParent(), mediumFile.getParent());
+
+		// no temporary files are left behind
+		File[] files = thumbFile.getParent().toFile().listFiles();
+		assertEquals(2, files.length);
+	}
+
+	@Test
+	public void testOverwriteImage() {
+		try {
+			imageStorage.writeImage(smallTestImage, "x1b", 1);
+			imageStorage.writeImage(maxSizeTestImage, "x1b", 1);
+		} catch (IOException e) {
+			fail("IOException should not be thrown!");
+		}
+
+		Path file = ((FileSystemAdapter) imageStorage).getImageFile("x1b", 1);
+		assertEquals(maxSizeTestImage.getImageData().length, file.toFile().length());
+	}
+
+	@Test
+	public void testGetLocalImageFile() throws IOException {
+		assertNull(imageStorage.getLocalImageFile("x1c", 2));
+
+		imageStorage.writeImage(smallTestImage, "x1c", 2);
+		Path file = imageStorage.getLocalImageFile("x1c", 2);
+		assertEquals(((FileSystemAdapter) imageStorage).getImageFile("x1c", 2), file);
+	}
+}
@@ -28,6 +28,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	DatastoreAdapterTest.class,
+	FileSystemAdapterTest.class,
 })
 public class PersistenceModelTestSuite {
 	// Remains empty, only used to hold annotations (see B02 p23)
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link AsyncLogHandler}.
+ */
+public class AsyncLogHandlerTest {
+
+	@Test
+	public void testRecordsAreWrittenAsJsonLinesInOrder() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		AsyncLogHandler handler = new AsyncLogHandler(out, 16, 4, AsyncLogHandler.OverflowPolicy.BLOCK);
+		for (int i = 0; i < 100; i++) {
+			handler.publish(createRecord("record " + i));
+		}
+		handler.publish(createRecord("say \"hello\"\n\tbye"));
+		handler.close();
+
+		String[] lines = out.toString("UTF-8").split("\n");
+		assertEquals(101, lines.length);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(lines[i].startsWith("{\"time\":"));
+			assertTrue(lines[i].endsWith(",\"message\":\"record " + i + "\"}"));
+		}
+		assertTrue(lines[100].contains("\"level\":\"INFO\",\"logger\":\"test\""));
+		assertTrue(lines[100].endsWith(",\"message\":\"say \\\"hello\\\"\\n\\tbye\"}"));
+		assertEquals(101, handler.getNoWrittenRecords());
+		assertEquals(0, handler.getNoDroppedRecords());
+	}
+
+	@Test
+	public void testRecordsAreDroppedIfBufferIsFull() throws Exception {
+		final CountDownLatch isReleased = new CountDownLatch(1);
+		OutputStream out = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				try {
+					isReleased.await();
+				} catch (InterruptedException ex) {
+					throw new IOException(ex);
+				}
+			}
+		};
+
+		AsyncLogHandler handler = new AsyncLogHandler(out, 4, 1, AsyncLogHandler.OverflowPolicy.DROP);
+		assertEquals(4, handler.getCapacity());
+		for (int i = 0; i < 20; i++) {
+			handler.publish(createRecord("record " + i));
+		}
+		assertTrue(handler.getNoDroppedRecords() >= 20 - 4 - 1);
+
+		isReleased.countDown();
+		handler.close();
+		assertEquals(20, handler.getNoWrittenRecords() + handler.getNoDroppedRecords());
+	}
+
+	protected LogRecord createRecord(String message) {
+		LogRecord result = new LogRecord(Level.INFO, message);
+		result.setLoggerName("test");
+		return result;
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link ConfigDir}.
+ */
+public class ConfigDirTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void testResolvedFileNamesAreRememberedUntilInvalidated() throws IOException {
+		File root = tempFolder.getRoot();
+		assertTrue(new File(root, "config/static/custom").mkdirs());
+		assertTrue(new File(root, "config/static/default").mkdirs());
+		assertTrue(new File(root, "config/static/custom/wahlzeit.css").createNewFile());
+
+		ConfigDir configDir = new ConfigDir(root.getPath(), "config" + File.separator + "static");
+		String customFileName = configDir.getRelativeCustomConfigFileName("wahlzeit.css");
+		assertEquals(customFileName, configDir.getRelativeConfigFileName("wahlzeit.css"));
+		assertEquals(customFileName, configDir.getRelativeConfigFileName("wahlzeit.css"));
+		assertEquals(1, configDir.getNoMisses());
+		assertEquals(1, configDir.getNoHits());
+
+		assertTrue(new File(root, "config/static/default/wahlzeit.css").createNewFile());
+		assertEquals(customFileName, configDir.getRelativeConfigFileName("wahlzeit.css"));
+
+		configDir.invalidate();
+		String defaultFileName = configDir.getRelativeDefaultConfigFileName("wahlzeit.css");
+		assertEquals(defaultFileName, configDir.getRelativeConfigFileName("wahlzeit.css"));
+		assertEquals(2, configDir.getNoMisses());
+	}
+
+}
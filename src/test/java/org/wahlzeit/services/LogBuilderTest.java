@@ -1,5 +1,6 @@
 package org.wahlzeit.services;
 
+import com.google.common.base.Supplier;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.RuleChain;
@@ -12,8 +13,15 @@ import org.wahlzeit.testEnvironmentProvider.UserSessionProvider;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 import static org.wahlzeit.services.LogBuilder.ACTION;
@@ -173,4 +181,68 @@ public class LogBuilderTest {
 		expectedLogMessage = expectedLogMessage + INFO_SEPARATOR + ACTION + NAME_VALUE_SEPARATOR + null;
 		assertEquals(expectedLogMessage, logMessage);
 	}
+
+	@Test
+	public void testDisabledMessageIsNeitherBuiltNorLogged() {
+		List<LogRecord> records = new ArrayList<LogRecord>();
+		Logger logger = createLogger(records, Level.INFO);
+		final int[] noCalls = { 0 };
+
+		LogBuilder logBuilder = LogBuilder.createSystemMessage(logger, Level.CONFIG);
+		assertFalse(logBuilder.isEnabled());
+		logBuilder.addLazyParameter("Yoda", new Supplier<String>() {
+			@Override
+			public String get() {
+				noCalls[0]++;
+				return "Frank Oz";
+			}
+		}).log();
+
+		assertEquals(0, noCalls[0]);
+		assertEquals(0, records.size());
+	}
+
+	@Test
+	public void testEnabledMessageIsLoggedWithCaller() {
+		List<LogRecord> records = new ArrayList<LogRecord>();
+		Logger logger = createLogger(records, Level.CONFIG);
+
+		LogBuilder.createSystemMessage(logger, Level.CONFIG).addLazyParameter("Yoda", new Supplier<String>() {
+			@Override
+			public String get() {
+				return "Frank Oz";
+			}
+		}).log();
+
+		assertEquals(1, records.size());
+		LogRecord record = records.get(0);
+		assertEquals(Level.CONFIG, record.getLevel());
+		assertEquals(getExpectedSystemMessage() + INFO_SEPARATOR + "Yoda" + NAME_VALUE_SEPARATOR + "Frank Oz",
+				record.getMessage());
+		assertEquals(LogBuilderTest.class.getName(), record.getSourceClassName());
+		assertEquals("testEnabledMessageIsLoggedWithCaller", record.getSourceMethodName());
+	}
+
+	protected Logger createLogger(final List<LogRecord> records, Level level) {
+		Logger result = Logger.getAnonymousLogger();
+		result.setUseParentHandlers(false);
+		result.setLevel(level);
+		result.addHandler(new Handler() {
+			@Override
+			public void publish(LogRecord record) {
+				records.add(record);
+			}
+
+			@Override
+			public void flush() {
+				// do nothing
+			}
+
+			@Override
+			public void close() {
+				// do nothing
+			}
+		});
+		return result;
+	}
 }
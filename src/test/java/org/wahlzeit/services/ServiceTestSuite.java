@@ -29,9 +29,13 @@ import org.wahlzeit.services.mailing.MailingServiceTestSuite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+	AsyncLogHandlerTest.class,
+	ConfigDirTest.class,
 	EmailAddressTest.class,
 	LogBuilderTest.class,
 	MailingServiceTestSuite.class,
+	UploadBufferTest.class,
+	WriteBehindBufferTest.class,
 })
 public class ServiceTestSuite {
 	// Remains empty, only used to hold annotations (see B02 p23)
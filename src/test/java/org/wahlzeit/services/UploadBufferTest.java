@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link UploadBuffer}.
+ */
+public class UploadBufferTest {
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	@Test
+	public void testSmallUploadStaysInMemory() throws IOException {
+		byte[] data = createData(3 * UploadBuffer.CHUNK_SIZE + 17);
+		UploadBuffer buffer = new UploadBuffer(data.length, data.length, tempFolder.getRoot());
+		try {
+			buffer.readFrom(new ByteArrayInputStream(data));
+			assertFalse(buffer.isSpilled());
+			assertEquals(data.length, buffer.getNoBytes());
+			assertArrayEquals(data, buffer.toByteArray());
+		} finally {
+			buffer.close();
+		}
+		assertTrue(UploadBuffer.getNoPooledChunks() >= 4);
+	}
+
+	@Test
+	public void testLargeUploadIsSpilledToTempDir() throws IOException {
+		byte[] data = createData(5 * UploadBuffer.CHUNK_SIZE + 3);
+		File tempDir = new File(tempFolder.getRoot(), "temp");
+		UploadBuffer buffer = new UploadBuffer(data.length, UploadBuffer.CHUNK_SIZE, tempDir);
+		try {
+			buffer.readFrom(new ByteArrayInputStream(data));
+			assertTrue(buffer.isSpilled());
+			assertEquals(1, tempDir.list().length);
+			assertArrayEquals(data, buffer.toByteArray());
+		} finally {
+			buffer.close();
+		}
+		assertEquals(0, tempDir.list().length);
+	}
+
+	@Test
+	public void testUploadLargerThanLimitIsRejected() throws IOException {
+		byte[] data = createData(2 * UploadBuffer.CHUNK_SIZE);
+		UploadBuffer buffer = new UploadBuffer(data.length - 1, 0, tempFolder.getRoot());
+		try {
+			buffer.readFrom(new ByteArrayInputStream(data));
+			fail("upload should have been rejected");
+		} catch (UploadBuffer.SizeLimitExceededException ex) {
+			// expected
+		} finally {
+			buffer.close();
+		}
+		assertEquals(0, tempFolder.getRoot().list().length);
+	}
+
+	/**
+	 *
+	 */
+	private static byte[] createData(int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (i * 31);
+		}
+		return result;
+	}
+
+}
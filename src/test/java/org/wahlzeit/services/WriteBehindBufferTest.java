@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.services;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.model.Globals;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link WriteBehindBuffer}.
+ */
+public class WriteBehindBufferTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	/**
+	 * Counts the dependents updates the buffer asks for
+	 */
+	private static class CountingObjectManager extends ObjectManager {
+		private int noUpdatedDependents = 0;
+
+		@Override
+		protected void updateDependents(Persistent object) {
+			noUpdatedDependents++;
+		}
+	}
+
+	@Test
+	public void testWritesAreBufferedUntilFlush() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000);
+				CountingObjectManager manager = new CountingObjectManager();
+				Globals globals = createGlobals(42);
+
+				buffer.add(manager, globals);
+				assertEquals(1, buffer.getNoPendingWrites());
+				assertTrue(globals.isDirty());
+				OfyService.ofy().clear();
+				Globals before = OfyService.ofy().load().type(Globals.class).id(Globals.DEAULT_ID).now();
+				assertTrue(before == null || before.getLastPhotoId() != 42);
+
+				buffer.flush();
+				assertEquals(0, buffer.getNoPendingWrites());
+				assertFalse(globals.isDirty());
+				assertEquals(1, manager.noUpdatedDependents);
+
+				OfyService.ofy().clear();
+				Globals stored = OfyService.ofy().load().type(Globals.class).id(Globals.DEAULT_ID).now();
+				assertNotNull(stored);
+				assertEquals(42, stored.getLastPhotoId());
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testWritesToSameEntityAreCoalesced() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000);
+				CountingObjectManager manager = new CountingObjectManager();
+
+				buffer.add(manager, createGlobals(1));
+				buffer.add(manager, createGlobals(2));
+				assertEquals(1, buffer.getNoPendingWrites());
+
+				buffer.flush();
+				assertEquals(1, manager.noUpdatedDependents);
+
+				OfyService.ofy().clear();
+				Globals stored = OfyService.ofy().load().type(Globals.class).id(Globals.DEAULT_ID).now();
+				assertEquals(2, stored.getLastPhotoId());
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testFullBufferIsFlushed() {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				WriteBehindBuffer buffer = new WriteBehindBuffer(1, 60000);
+				CountingObjectManager manager = new CountingObjectManager();
+
+				buffer.add(manager, createGlobals(7));
+				assertEquals(0, buffer.getNoPendingWrites());
+				assertEquals(1, manager.noUpdatedDependents);
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void testRemovedWriteIsDropped() {
+		WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000);
+		Globals globals = createGlobals(3);
+
+		buffer.add(new CountingObjectManager(), globals);
+		buffer.remove(globals);
+		assertEquals(0, buffer.getNoPendingWrites());
+	}
+
+	@Test
+	public void testFailedWriteIsRequeued() {
+		WriteBehindBuffer buffer = new WriteBehindBuffer(10, 60000) {
+			@Override
+			protected void writeBatch(Class<?> type, Iterable<PendingWrite> batch) {
+				throw new IllegalStateException("datastore unavailable");
+			}
+		};
+		Globals globals = createGlobals(5);
+
+		buffer.add(new CountingObjectManager(), globals);
+		try {
+			buffer.flush();
+			fail("flush should pass on the failure");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		assertEquals(1, buffer.getNoPendingWrites());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBatchSize() {
+		new WriteBehindBuffer(0, 0);
+	}
+
+	private static Globals createGlobals(int lastPhotoId) {
+		Globals result = new Globals();
+		result.setLastPhotoId(lastPhotoId);
+		return result;
+	}
+
+}
@@ -14,6 +14,7 @@ import org.wahlzeit.model.Guest;
 import org.wahlzeit.model.LanguageConfigs;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
+import org.wahlzeit.model.UserSessionState;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.SessionManager;
 
@@ -25,8 +26,6 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -57,6 +56,13 @@ public class PrivilegedUserSessionProvider extends ExternalResource {
 		return imageData.getData();
 	}
 
+	/**
+	 * Returns the image that tests upload in place of the user
+	 */
+	public static Image getTestImage() {
+		return ImagesServiceFactory.makeImage(loadLocalImageFileAsByteArray("src/test/assets/test_image.jpg"));
+	}
+
 	@Override
 	protected void before() throws Throwable {
 
@@ -68,24 +74,19 @@ public class PrivilegedUserSessionProvider extends ExternalResource {
 			LanguageConfigs.put(Language.GERMAN, new GermanModelConfig());
 
 			HttpSession httpSession = mock(HttpSession.class);
-			when(httpSession.getAttribute(UserSession.INITIALIZED)).thenReturn(UserSession.INITIALIZED);
 			String privilegedUserName = ObjectifyService.run(new Work<String>() {
 				@Override
 				public String run() {
 					User user = new User("privilegedUserId", "privilegedUserNickname", "user@privileged.com");
 					user.setLanguage(Language.ENGLISH);
 
-					user.setUploadedImage(ImagesServiceFactory
-							.makeImage(loadLocalImageFileAsByteArray("src/test/assets/test_image.jpg")));
-
 					return user.getId();
 				}
 			});
-			when(httpSession.getAttribute(UserSession.CLIENT_ID)).thenReturn(privilegedUserName);
-
-			Map<String, Object> dummyMap = new HashMap<String, Object>();
-			dummyMap.put(UserSession.MESSAGE, "dummy Message");
-			when(httpSession.getAttribute(UserSession.SAVED_ARGS)).thenReturn(dummyMap);
+			UserSessionState state = new UserSessionState();
+			state.setClientId(privilegedUserName);
+			state.setSavedArg(UserSession.MESSAGE, "dummy Message");
+			when(httpSession.getAttribute(UserSession.STATE)).thenReturn(state);
 
 			userSession = new UserSession(USER_SESSION_NAME, "", httpSession, "en");
 
@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the CompressedIntSet class.
+ */
+public class CompressedIntSetTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddContainsRemove() {
+		CompressedIntSet set = new CompressedIntSet();
+
+		assertTrue(set.add(7));
+		assertFalse(set.add(7));
+		assertTrue(set.add(70000));
+		assertTrue(set.contains(7));
+		assertTrue(set.contains(70000));
+		assertFalse(set.contains(8));
+		assertFalse(set.contains(-7));
+		assertEquals(2, set.cardinality());
+
+		assertTrue(set.remove(7));
+		assertFalse(set.remove(7));
+		assertArrayEquals(new int[] { 70000 }, set.toArray());
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testAddNegativeValue() {
+		new CompressedIntSet().add(-1);
+	}
+
+	/**
+	 * Adds enough values to a group to switch it to a bitmap and back again.
+	 */
+	@Test
+	public void testDenseGroup() {
+		CompressedIntSet set = new CompressedIntSet();
+		TreeSet<Integer> expected = new TreeSet<Integer>();
+		for (int i = 0; i < 10000; i++) {
+			set.add(3 * i);
+			expected.add(3 * i);
+		}
+		assertSameValues(expected, set);
+
+		for (int i = 0; i < 9000; i++) {
+			set.remove(3 * i);
+			expected.remove(3 * i);
+		}
+		assertSameValues(expected, set);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSetOperations() {
+		Random random = new Random(42);
+		for (int run = 0; run < 20; run++) {
+			int range = (run % 2 == 0) ? 200000 : 20000;
+			TreeSet<Integer> a = randomValues(random, range, random.nextInt(15000));
+			TreeSet<Integer> b = randomValues(random, range, random.nextInt(15000));
+
+			CompressedIntSet and = asSet(a);
+			and.and(asSet(b));
+			TreeSet<Integer> expectedAnd = new TreeSet<Integer>(a);
+			expectedAnd.retainAll(b);
+			assertSameValues(expectedAnd, and);
+
+			CompressedIntSet andNot = asSet(a);
+			andNot.andNot(asSet(b));
+			TreeSet<Integer> expectedAndNot = new TreeSet<Integer>(a);
+			expectedAndNot.removeAll(b);
+			assertSameValues(expectedAndNot, andNot);
+
+			CompressedIntSet or = asSet(a);
+			or.or(asSet(b));
+			TreeSet<Integer> expectedOr = new TreeSet<Integer>(a);
+			expectedOr.addAll(b);
+			assertSameValues(expectedOr, or);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSelectAndNextValue() {
+		TreeSet<Integer> values = randomValues(new Random(7), 300000, 12000);
+		CompressedIntSet set = asSet(values);
+
+		int rank = 0;
+		for (Integer value : values) {
+			assertEquals(value.intValue(), set.select(rank++));
+			assertEquals(value.intValue(), set.nextValue(value));
+			Integer next = values.higher(value);
+			assertEquals((next != null) ? next.intValue() : -1, set.nextValue(value + 1));
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCopyIsIndependent() {
+		CompressedIntSet set = asSet(randomValues(new Random(3), 100000, 6000));
+		CompressedIntSet copy = new CompressedIntSet(set);
+		assertEquals(set, copy);
+
+		copy.add(100001);
+		assertFalse(set.contains(100001));
+	}
+
+	/**
+	 *
+	 */
+	protected TreeSet<Integer> randomValues(Random random, int range, int count) {
+		TreeSet<Integer> result = new TreeSet<Integer>();
+		for (int i = 0; i < count; i++) {
+			result.add(random.nextInt(range));
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected CompressedIntSet asSet(TreeSet<Integer> values) {
+		CompressedIntSet result = new CompressedIntSet();
+		for (Integer value : values) {
+			result.add(value);
+		}
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	protected void assertSameValues(TreeSet<Integer> expected, CompressedIntSet actual) {
+		int[] expectedValues = new int[expected.size()];
+		int i = 0;
+		for (Integer value : expected) {
+			expectedValues[i++] = value;
+		}
+		assertArrayEquals(expectedValues, actual.toArray());
+		assertEquals(expected.size(), actual.cardinality());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSerializationIsCompact() throws IOException, ClassNotFoundException {
+		CompressedIntSet set = new CompressedIntSet();
+		for (int i = 0; i < 1000; i++) {
+			set.add(1000 + 3 * i);
+		}
+		set.add(65535);
+		for (int i = 0; i < 10000; i++) {
+			set.add(200000 + i);
+		}
+		set.remove(200005);
+
+		byte[] data = serialize(set);
+		CompressedIntSet copy = (CompressedIntSet) new ObjectInputStream(new ByteArrayInputStream(data)).readObject();
+		assertEquals(set, copy);
+		assertEquals(set.cardinality(), copy.cardinality());
+		assertTrue(copy.add(4));
+		assertTrue(copy.contains(200004));
+		assertFalse(copy.contains(200005));
+
+		CompressedIntSet sparseSet = new CompressedIntSet();
+		for (int i = 0; i < 100; i++) {
+			sparseSet.add(5000 + 17 * i);
+		}
+		assertTrue(serialize(sparseSet).length < serialize(new CompressedIntSet()).length + 2 * 100 + 16);
+	}
+
+	/**
+	 *
+	 */
+	protected byte[] serialize(CompressedIntSet set) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(set);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test cases for the HtmlUtil class.
+ */
+public class HtmlUtilTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMaskForWeb() throws IOException {
+		String plain = "nothing to mask";
+		assertSame(plain, HtmlUtil.maskForWeb(plain));
+
+		String html = "<a href=\"x\">Tom & Jerry</a>";
+		String masked = "&lt;a href=&quot;x&quot;&gt;Tom &amp; Jerry&lt;/a&gt;";
+		assertEquals(masked, HtmlUtil.maskForWeb(html));
+
+		StringWriter out = new StringWriter();
+		HtmlUtil.maskForWeb(html, out);
+		assertEquals(masked, out.toString());
+	}
+
+}
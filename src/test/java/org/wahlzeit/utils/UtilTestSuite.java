@@ -29,6 +29,8 @@ import org.junit.runners.Suite;
 @Suite.SuiteClasses({
 	StringUtilTest.class,
 	VersionTest.class,
+	CompressedIntSetTest.class,
+	HtmlUtilTest.class,
 })
 public class UtilTestSuite {
 	// Remains empty, only used to hold annotations (see B02 p23)
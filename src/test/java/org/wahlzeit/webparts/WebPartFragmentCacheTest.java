@@ -0,0 +1,68 @@
+/*
+ * UtilTestSuite
+ * 
+ * Copyright (c) 2017 by xabuloes, http://github.com/xabuloes
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * Test cases for the WebPartFragmentCache class.
+ */
+public class WebPartFragmentCacheTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFragmentIsRenderedOnceAndReplacedWithItsTemplate() throws IOException {
+		WebPartFragmentCache cache = new WebPartFragmentCache();
+		WebPartTemplate template = new WebPartTemplate("en/infos/TestInfo");
+		template.initialize("<p>{$domainName}</p>");
+
+		Writable fragment = cache.getFragment(template, "guest", Collections.singletonMap("domainName", "a.org"));
+		assertSame(fragment, cache.getFragment(template, "guest", Collections.singletonMap("domainName", "a.org")));
+		assertNotSame(fragment, cache.getFragment(template, "user", Collections.singletonMap("domainName", "a.org")));
+		assertEquals(1, cache.getNoHits());
+		assertEquals(2, cache.getNoMisses());
+
+		StringWriter out = new StringWriter();
+		fragment.writeOn(out);
+		assertEquals("<p>a.org</p>", out.toString());
+
+		WebPartTemplate newTemplate = new WebPartTemplate("en/infos/TestInfo");
+		newTemplate.initialize("<b>{$domainName}</b>");
+		Writable newFragment = cache.getFragment(newTemplate, "guest", Collections.singletonMap("domainName", "a.org"));
+		assertEquals("<b>a.org</b>", newFragment.toString());
+
+		cache.invalidate("en/infos/TestInfo");
+		assertEquals(0, cache.getNoFragments());
+	}
+
+}
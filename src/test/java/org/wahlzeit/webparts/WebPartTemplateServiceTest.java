@@ -0,0 +1,78 @@
+/*
+ * UtilTestSuite
+ * 
+ * Copyright (c) 2017 by xabuloes, http://github.com/xabuloes
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import org.junit.Test;
+import org.wahlzeit.services.ConfigDir;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the WebPartTemplateService class.
+ */
+public class WebPartTemplateServiceTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPreloadTemplatesOfAllLanguages() {
+		WebPartTemplateService service = new WebPartTemplateService();
+		service.setTemplatesDir(new ConfigDir("src/main/webapp", "config" + File.separator + "templates"));
+
+		service.preloadTemplates(Arrays.asList("en", "de", "ja"));
+		assertEquals(76, service.getNoTemplates());
+		assertTrue(service.hasTemplate("en", "pages/ShowInfoPage"));
+		assertTrue(service.hasTemplate("de", "pages/ShowInfoPage"));
+		assertFalse(service.hasTemplate("ja", "pages/ShowInfoPage"));
+
+		WebPartTemplate template = service.getTemplate("en", "pages/ShowInfoPage");
+		assertNotNull(template);
+		assertSame(template, service.getTemplate("en", "pages/ShowInfoPage"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMissingTemplateIsLookedForOnce() {
+		WebPartTemplateService service = new WebPartTemplateService();
+		service.setTemplatesDir(new ConfigDir("src/main/webapp", "config" + File.separator + "templates"));
+
+		assertNull(service.getTemplate("en", "pages/NoSuchPage"));
+		assertTrue(service.missingTemplates.contains("en" + File.separator + "pages/NoSuchPage"));
+		assertNull(service.getTemplate("en", "pages/NoSuchPage"));
+
+		assertNotNull(service.getTemplate("en", "pages/ShowInfoPage"));
+		assertEquals(1, service.getNoTemplates());
+	}
+
+}
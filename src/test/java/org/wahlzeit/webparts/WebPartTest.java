@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2006-2009 by Dirk Riehle, http://dirkriehle.com
+ *
+ * This file is part of the Wahlzeit photo rating application.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * License along with this program. If not, see
+ * <http://www.gnu.org/licenses/>.
+ */
+
+package org.wahlzeit.webparts;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Test cases for the WebPart class.
+ */
+public class WebPartTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTemplateIsCompiledIntoSegmentsAndValueIndexes() {
+		WebPartTemplate template = new WebPartTemplate("test");
+		template.initialize("<p>{$a}{$b}, {$a}</p>{$unclosed");
+
+		assertEquals("<p>, </p>{$unclosed", template.asString());
+		assertEquals(3, template.getNoSlots());
+		assertEquals(2, template.getNoValues());
+		assertEquals(template.getValueIndex(0), template.getValueIndex(2));
+		assertEquals(-1, template.getValueIndex("c"));
+		assertEquals("</p>{$unclosed", new String(template.getSegment(3), StandardCharsets.UTF_8));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWriteOnWriterAndUtf8WriterAgree() throws IOException {
+		WebPartTemplate template = new WebPartTemplate("test");
+		template.initialize("<p>Gr\u00fc\u00dfe, {$name}!</p>{$part}<i>{$name}</i>");
+
+		WebPartTemplate partTemplate = new WebPartTemplate("part");
+		partTemplate.initialize("<b>{$value}</b>");
+		WebPart part = new WebPart(partTemplate);
+		part.maskAndAddString("value", "1 < 2 \uD83D\uDE00");
+
+		WebPart page = new WebPart(template);
+		page.maskAndAddString("name", "Tom & Jerry");
+		page.addWritable("part", part);
+		page.addString("unknown", "not written");
+
+		String expected = "<p>Gr\u00fc\u00dfe, Tom &amp; Jerry!</p><b>1 &lt; 2 \uD83D\uDE00</b><i>Tom &amp; Jerry</i>";
+
+		StringWriter writer = new StringWriter();
+		page.writeOn(writer);
+		assertEquals(expected, writer.toString());
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Utf8Writer utf8Writer = new Utf8Writer(bytes, 16);
+		page.writeOn(utf8Writer);
+		utf8Writer.close();
+		assertEquals(expected, new String(bytes.toByteArray(), StandardCharsets.UTF_8));
+
+		assertEquals("Tom &amp; Jerry", page.getValue("name").toString());
+		assertEquals("not written", page.getValue("unknown"));
+	}
+
+}